@@ -0,0 +1,90 @@
+package com.alfred.common.datamodel;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded log of the most recent changes made by the StateDeviceManager,
+ * indexed by sequence number. Older entries are overwritten as new changes
+ * are appended, so the log can answer "what changed since N" as long as N is
+ * recent enough.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class ChangeLog {
+
+    // How long a reader waits for an append that is still in progress before
+    // treating the change as lost
+    private static final long MAX_WAIT_NANOS = 1000000L;
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+
+    /**
+     * @param capacity The number of changes to keep. Must be a power of two
+     */
+    ChangeLog(int capacity) {
+        if(capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Error: capacity must be a power of two");
+        }
+        ring = new AtomicReferenceArray<Entry>(capacity);
+        mask = capacity - 1;
+    }
+
+    void append(long sequence, String id, boolean removed) {
+        int slot = (int) sequence & mask;
+        Entry entry = new Entry(sequence, id, removed);
+        Entry current;
+        do {
+            current = ring.get(slot);
+            // an append held up until the ring wrapped past it must not
+            // overwrite the newer change
+            if(current != null && current.sequence > sequence) return;
+        } while(!ring.compareAndSet(slot, current, entry));
+    }
+
+    /**
+     * Collects the ids of the devices changed after one sequence number up
+     * to and including another
+     *
+     * @return The ids in the order they were first changed, or null if the
+     *         log no longer holds every change in the range, or a device was
+     *         removed in the range, or a change in the range took too long
+     *         to be appended
+     */
+    Set<String> getChangedIds(long since, long upTo) {
+        if(upTo - since > ring.length()) return null;
+        Set<String> ids = new LinkedHashSet<String>();
+        for(long sequence = since + 1; sequence <= upTo; sequence++) {
+            Entry entry = ring.get((int) sequence & mask);
+            // the sequence number is taken just before the entry is appended,
+            // so an older entry means the append is still in progress. If it
+            // doesn't land soon the ring may wrap past it, so it's treated as
+            // overwritten
+            long deadline = 0;
+            while(entry == null || entry.sequence < sequence) {
+                if(deadline == 0) deadline = System.nanoTime() + MAX_WAIT_NANOS;
+                else if(System.nanoTime() - deadline > 0) return null;
+                Thread.yield();
+                entry = ring.get((int) sequence & mask);
+            }
+            if(entry.sequence > sequence || entry.removed) return null;
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+
+    private static final class Entry {
+        final long sequence;
+        final String id;
+        final boolean removed;
+
+        Entry(long sequence, String id, boolean removed) {
+            this.sequence = sequence;
+            this.id = id;
+            this.removed = removed;
+        }
+    }
+}
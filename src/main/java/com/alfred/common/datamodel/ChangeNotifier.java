@@ -0,0 +1,126 @@
+package com.alfred.common.datamodel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the notifications of changes in the order the changes were made to
+ * each device. A notification is queued while the device map holds the lock
+ * for the device id, so the notifications of one device are queued in the
+ * order its changes were applied. Once the lock is released, the thread that
+ * made the change delivers the queued notifications, unless another thread is
+ * already delivering them, in which case that thread delivers this one too.
+ * <p>
+ * Ids are spread over a fixed number of stripes with a queue each, so
+ * notifications for devices in different stripes are delivered in parallel. A
+ * handler that changes a device in the stripe it is being notified for has
+ * that change delivered after it returns instead of from inside the change.
+ * <p>
+ * A thread delivers at most a fixed number of notifications per call. If the
+ * queue is still not empty it hands the rest to the notifier thread, so a
+ * writer isn't kept delivering other threads' changes for as long as they
+ * keep coming.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class ChangeNotifier<T> {
+
+    // Notifications delivered per call before the rest are handed off
+    private static final int MAX_DRAIN = 1024;
+
+    private final Stripe<T>[] stripes;
+    private final int mask;
+    private final Consumer<T> delivery;
+    // Delivers what a capped call left behind
+    private final ExecutorService drainer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "alfred-notifier");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(ChangeNotifier.class);
+
+    /**
+     * @param stripes The number of stripes. Must be a power of two
+     * @param delivery Delivers one notification
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ChangeNotifier(int stripes, Consumer<T> delivery) {
+        if(stripes < 1 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("Error: stripes must be a power of two");
+        }
+        this.stripes = new Stripe[stripes];
+        for(int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe<T>();
+        }
+        this.mask = stripes - 1;
+        this.delivery = delivery;
+    }
+
+    /**
+     * Queues a notification. Called while the map holds the lock for the id
+     */
+    void enqueue(String id, T notification) {
+        stripe(id).queue.add(notification);
+    }
+
+    /**
+     * Delivers the queued notifications of the id's stripe, unless another
+     * thread is already delivering them. Delivers at most
+     * <code>MAX_DRAIN</code> and leaves the rest to the notifier thread
+     */
+    void deliver(final String id) {
+        Stripe<T> stripe = stripe(id);
+        while(stripe.delivering.compareAndSet(false, true)) {
+            int delivered = 0;
+            try {
+                T notification;
+                while(delivered < MAX_DRAIN && (notification = stripe.queue.poll()) != null) {
+                    delivered++;
+                    try {
+                        delivery.accept(notification);
+                    } catch (RuntimeException e) {
+                        log.error("Handler failed on " + notification, e);
+                    }
+                }
+            } finally {
+                stripe.delivering.set(false);
+            }
+            // a notification may have been queued after the last poll but
+            // before the flag was cleared
+            if(stripe.queue.isEmpty()) return;
+            if(delivered == MAX_DRAIN) {
+                drainer.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(id);
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    private Stripe<T> stripe(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    private static final class Stripe<T> {
+        final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+        final AtomicBoolean delivering = new AtomicBoolean();
+    }
+}
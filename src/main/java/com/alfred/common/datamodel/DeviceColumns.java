@@ -0,0 +1,147 @@
+package com.alfred.common.datamodel;
+
+import java.util.Arrays;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * The state, type, version and time of the last change of every device,
+ * stored as primitive arrays indexed by device handle (see
+ * {@link DeviceHandles}). Reading a column doesn't allocate, and a scan over
+ * every device is a loop over a few arrays instead of a walk through the
+ * device map.
+ * <p>
+ * The StateDeviceManager writes a device's columns from inside the atomic map
+ * operation that changes it, so writes to one device are in order. Reads
+ * aren't locked: a reader running at the same time as a change may see some
+ * columns before the change and some after. The device map stays the source
+ * of truth.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class DeviceColumns {
+
+    // Stored for a missing state or type, and for removed devices
+    static final byte NONE = -1;
+
+    private static final int PAGE_BITS = DeviceHandles.PAGE_BITS;
+    private static final int PAGE_SIZE = DeviceHandles.PAGE_SIZE;
+    private static final int PAGE_MASK = DeviceHandles.PAGE_MASK;
+
+    // Replaced, never changed in place, when a page is added
+    private volatile Page[] pages = new Page[0];
+
+    /**
+     * Stores the columns of a device that was added or changed
+     */
+    void put(int handle, ImmutableStateDevice device, long time) {
+        Page page = page(handle);
+        int i = handle & PAGE_MASK;
+        page.state[i] = encode(device.getState());
+        page.type[i] = encode(device.getType());
+        page.lastChanged[i] = time;
+        page.version[i] = device.getVersion();
+    }
+
+    /**
+     * Clears the columns of a device that was removed
+     */
+    void remove(int handle, long time) {
+        Page page = page(handle);
+        int i = handle & PAGE_MASK;
+        page.state[i] = NONE;
+        page.type[i] = NONE;
+        page.lastChanged[i] = time;
+        page.version[i] = 0;
+    }
+
+    State getState(int handle) {
+        Page page = find(handle);
+        return page == null ? null : State.valueOf(page.state[handle & PAGE_MASK]);
+    }
+
+    Type getType(int handle) {
+        Page page = find(handle);
+        return page == null ? null : Type.valueOf(page.type[handle & PAGE_MASK]);
+    }
+
+    long getLastChanged(int handle) {
+        Page page = find(handle);
+        return page == null ? 0 : page.lastChanged[handle & PAGE_MASK];
+    }
+
+    long getVersion(int handle) {
+        Page page = find(handle);
+        return page == null ? 0 : page.version[handle & PAGE_MASK];
+    }
+
+    /**
+     * @return The handles of the devices of the type in the state, in handle
+     *         order
+     */
+    int[] getHandles(Type type, State state) {
+        byte wantedType = encode(type);
+        byte wantedState = encode(state);
+        Page[] current = pages;
+        int[] handles = new int[16];
+        int found = 0;
+        for(int p = 0; p < current.length; p++) {
+            byte[] types = current[p].type;
+            byte[] states = current[p].state;
+            for(int i = 0; i < PAGE_SIZE; i++) {
+                if(types[i] == wantedType && states[i] == wantedState) {
+                    if(found == handles.length) handles = Arrays.copyOf(handles, found * 2);
+                    handles[found++] = (p << PAGE_BITS) | i;
+                }
+            }
+        }
+        return Arrays.copyOf(handles, found);
+    }
+
+    private Page find(int handle) {
+        Page[] current = pages;
+        int p = handle >>> PAGE_BITS;
+        return handle < 0 || p >= current.length ? null : current[p];
+    }
+
+    private Page page(int handle) {
+        Page page = find(handle);
+        if(page != null) return page;
+        synchronized(this) {
+            Page[] current = pages;
+            int p = handle >>> PAGE_BITS;
+            if(p >= current.length) {
+                Page[] grown = Arrays.copyOf(current, p + 1);
+                for(int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Page();
+                }
+                pages = grown;
+                current = grown;
+            }
+            return current[p];
+        }
+    }
+
+    static byte encode(State state) {
+        return state == null ? NONE : (byte) state.getNumber();
+    }
+
+    static byte encode(Type type) {
+        return type == null ? NONE : (byte) type.getNumber();
+    }
+
+    private static final class Page {
+        final byte[] state = new byte[PAGE_SIZE];
+        final byte[] type = new byte[PAGE_SIZE];
+        final long[] lastChanged = new long[PAGE_SIZE];
+        final long[] version = new long[PAGE_SIZE];
+
+        Page() {
+            // handles without a device yet don't match any scan
+            Arrays.fill(state, NONE);
+            Arrays.fill(type, NONE);
+        }
+    }
+}
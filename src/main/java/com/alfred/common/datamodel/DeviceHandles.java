@@ -0,0 +1,70 @@
+package com.alfred.common.datamodel;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns device ids as dense int handles, so code that reads a device over
+ * and over can look its id up once and then index arrays with the handle.
+ * <p>
+ * An id keeps its handle for the life of the process, even if the device is
+ * removed and added again. Handles are given out in order from 0.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class DeviceHandles {
+
+    static final int PAGE_BITS = 12;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+
+    // Ids by handle, in pages so growing never copies an id. Replaced, never
+    // changed in place, when a page is added
+    private volatile String[][] ids = new String[1][];
+
+    // Guarded by this
+    private int count;
+
+    /**
+     * @return The handle for the id, given out the first time the id is seen
+     */
+    int intern(String id) {
+        Integer handle = handles.get(id);
+        if(handle != null) return handle;
+        synchronized(this) {
+            handle = handles.get(id);
+            if(handle != null) return handle;
+            int next = count++;
+            String[][] pages = ids;
+            int page = next >>> PAGE_BITS;
+            if(page >= pages.length) pages = Arrays.copyOf(pages, pages.length * 2);
+            if(pages[page] == null) pages[page] = new String[PAGE_SIZE];
+            pages[page][next & PAGE_MASK] = id;
+            ids = pages;
+            handles.put(id, next);
+            return next;
+        }
+    }
+
+    /**
+     * @return The handle for the id, or -1 if the id has never been seen
+     */
+    int get(String id) {
+        Integer handle = handles.get(id);
+        return handle == null ? -1 : handle;
+    }
+
+    /**
+     * @return The id for the handle, or null if the handle hasn't been given
+     *         out
+     */
+    String getId(int handle) {
+        String[][] pages = ids;
+        int page = handle >>> PAGE_BITS;
+        if(handle < 0 || page >= pages.length || pages[page] == null) return null;
+        return pages[page][handle & PAGE_MASK];
+    }
+}
@@ -0,0 +1,204 @@
+package com.alfred.common.datamodel;
+
+import java.util.Arrays;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+
+/**
+ * The recent state changes of every device, in a fixed size ring per device
+ * indexed by device handle (see {@link DeviceHandles}). Each entry is a
+ * <code>long</code> time and a <code>byte</code> state, so the memory used is
+ * the ring depth times nine bytes per device however often devices change.
+ * <p>
+ * The StateDeviceManager records a change from inside the atomic map
+ * operation that makes it, so the entries of one device are in order. Each
+ * ring is locked while it is written or copied. A device's ring is released
+ * when the device is removed or goes offline, since handles are never
+ * recycled and the ring would otherwise be kept for good.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class DeviceHistory {
+
+    private static final int PAGE_BITS = DeviceHandles.PAGE_BITS;
+    private static final int PAGE_MASK = DeviceHandles.PAGE_MASK;
+
+    private static final StateHistory EMPTY = new StateHistory(new long[0], new State[0]);
+
+    private volatile int depth;
+
+    // Rings by handle, created when a device first changes. Replaced, never
+    // changed in place, when a page is added
+    private volatile Ring[][] rings = new Ring[0][];
+
+    /**
+     * Sets the number of changes kept per device and clears the history
+     */
+    synchronized void setDepth(int depth) {
+        if(depth < 0) throw new IllegalArgumentException("Error: history depth can't be negative");
+        this.depth = depth;
+        rings = new Ring[0][];
+    }
+
+    void record(int handle, State state, long time) {
+        if(depth == 0) return;
+        Ring ring = ring(handle);
+        if(ring != null) ring.add(time, DeviceColumns.encode(state));
+    }
+
+    /**
+     * Drops the ring of a device that is gone. A device added again with the
+     * same id starts a new one
+     */
+    void release(int handle) {
+        if(find(handle) == null) return;
+        synchronized(this) {
+            Ring[][] pages = rings;
+            int page = handle >>> PAGE_BITS;
+            if(page < pages.length) pages[page][handle & PAGE_MASK] = null;
+        }
+    }
+
+    /**
+     * @return Up to the last count entries
+     */
+    StateHistory last(int handle, int count) {
+        Ring ring = find(handle);
+        return ring == null ? EMPTY : ring.copy(count, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return The entries from a time, inclusive, to a time, exclusive
+     */
+    StateHistory range(int handle, long from, long to) {
+        Ring ring = find(handle);
+        return ring == null ? EMPTY : ring.copy(Integer.MAX_VALUE, from, to);
+    }
+
+    /**
+     * @return The time of the last change to the state, or -1
+     */
+    long lastTime(int handle, State state) {
+        Ring ring = find(handle);
+        return ring == null ? -1 : ring.lastTime(DeviceColumns.encode(state));
+    }
+
+    /**
+     * @return The milliseconds spent in the state between two times, counting
+     *         only the time covered by the entries still in the ring
+     */
+    long timeInState(int handle, State state, long from, long to) {
+        Ring ring = find(handle);
+        return ring == null ? 0 : ring.timeInState(DeviceColumns.encode(state), from, to);
+    }
+
+    private Ring find(int handle) {
+        Ring[][] pages = rings;
+        int page = handle >>> PAGE_BITS;
+        if(handle < 0 || page >= pages.length) return null;
+        return pages[page][handle & PAGE_MASK];
+    }
+
+    private Ring ring(int handle) {
+        Ring ring = find(handle);
+        if(ring != null) return ring;
+        synchronized(this) {
+            if(depth == 0) return null;
+            Ring[][] pages = rings;
+            int page = handle >>> PAGE_BITS;
+            if(page >= pages.length) {
+                pages = Arrays.copyOf(pages, page + 1);
+                for(int i = rings.length; i < pages.length; i++) {
+                    pages[i] = new Ring[DeviceHandles.PAGE_SIZE];
+                }
+            }
+            ring = pages[page][handle & PAGE_MASK];
+            if(ring == null) {
+                ring = new Ring(depth);
+                pages[page][handle & PAGE_MASK] = ring;
+            }
+            rings = pages;
+            return ring;
+        }
+    }
+
+    private static final class Ring {
+        private final long[] times;
+        private final byte[] states;
+        // Total number of entries ever added
+        private long count;
+
+        Ring(int depth) {
+            times = new long[depth];
+            states = new byte[depth];
+        }
+
+        synchronized void add(long time, byte state) {
+            int slot = (int) (count % times.length);
+            times[slot] = time;
+            states[slot] = state;
+            count++;
+        }
+
+        synchronized StateHistory copy(int max, long from, long to) {
+            int held = held();
+            int first = held;
+            int last = held;
+            // newest first, so the last max entries in the range are taken
+            for(int i = held - 1; i >= 0 && last - first < max; i--) {
+                long time = times[slot(i, held)];
+                if(time >= to) {
+                    last = i;
+                    first = i;
+                } else if(time >= from) {
+                    first = i;
+                } else {
+                    break;
+                }
+            }
+            int size = last - first;
+            long[] copyTimes = new long[size];
+            State[] copyStates = new State[size];
+            for(int i = 0; i < size; i++) {
+                int slot = slot(first + i, held);
+                copyTimes[i] = times[slot];
+                copyStates[i] = State.valueOf(states[slot]);
+            }
+            return new StateHistory(copyTimes, copyStates);
+        }
+
+        synchronized long lastTime(byte state) {
+            int held = held();
+            for(int i = held - 1; i >= 0; i--) {
+                int slot = slot(i, held);
+                if(states[slot] == state) return times[slot];
+            }
+            return -1;
+        }
+
+        synchronized long timeInState(byte state, long from, long to) {
+            int held = held();
+            long total = 0;
+            for(int i = 0; i < held; i++) {
+                int slot = slot(i, held);
+                if(states[slot] != state) continue;
+                long start = Math.max(times[slot], from);
+                long end = i + 1 < held ? Math.min(times[slot(i + 1, held)], to) : to;
+                if(end > start) total += end - start;
+            }
+            return total;
+        }
+
+        private int held() {
+            return (int) Math.min(count, times.length);
+        }
+
+        /**
+         * @return The array slot of an entry, 0 being the oldest held
+         */
+        private int slot(int index, int held) {
+            return (int) ((count - held + index) % times.length);
+        }
+    }
+}
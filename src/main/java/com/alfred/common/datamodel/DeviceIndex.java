@@ -0,0 +1,110 @@
+package com.alfred.common.datamodel;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * Secondary indexes over the devices in the StateDeviceManager: the ids of
+ * the devices of each type, the ids of the devices in each state, and the ids
+ * and a count for every type and state pair.
+ * <p>
+ * The manager updates the index from inside the atomic map operation that
+ * changes a device, so changes to one device are applied in order. A reader
+ * running at the same time as a change may briefly see a device in both its
+ * old and new state set, or in neither.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class DeviceIndex {
+
+    private static final int STATES = State.values().length;
+
+    private final EnumMap<Type, Set<String>> byType = new EnumMap<Type, Set<String>>(Type.class);
+    private final EnumMap<State, Set<String>> byState = new EnumMap<State, Set<String>>(State.class);
+
+    // Ids and count of the devices for every type and state, indexed by
+    // type.ordinal() * STATES + state.ordinal()
+    private final Set<String>[] byPair;
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(Type.values().length * STATES);
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    DeviceIndex() {
+        byPair = new Set[Type.values().length * STATES];
+        for(int i = 0; i < byPair.length; i++) {
+            byPair[i] = ConcurrentHashMap.<String> newKeySet();
+        }
+        for(Type type : Type.values()) {
+            byType.put(type, ConcurrentHashMap.<String> newKeySet());
+        }
+        for(State state : State.values()) {
+            byState.put(state, ConcurrentHashMap.<String> newKeySet());
+        }
+    }
+
+    /**
+     * Moves a device from its previous entries to its current ones
+     *
+     * @param previous The device before the change, or null if it was added
+     * @param current The device after the change, or null if it was removed
+     */
+    void update(StateDevice previous, StateDevice current) {
+        if(previous != null) {
+            String id = previous.getId();
+            if(previous.getType() != null) byType.get(previous.getType()).remove(id);
+            if(previous.getState() != null) byState.get(previous.getState()).remove(id);
+            if(previous.getType() != null && previous.getState() != null) {
+                int slot = slot(previous.getType(), previous.getState());
+                byPair[slot].remove(id);
+                counts.decrementAndGet(slot);
+            }
+        }
+        if(current != null) {
+            String id = current.getId();
+            if(current.getType() != null) byType.get(current.getType()).add(id);
+            if(current.getState() != null) byState.get(current.getState()).add(id);
+            if(current.getType() != null && current.getState() != null) {
+                int slot = slot(current.getType(), current.getState());
+                byPair[slot].add(id);
+                counts.incrementAndGet(slot);
+            }
+        }
+    }
+
+    Set<String> getIds(Type type) {
+        return Collections.unmodifiableSet(byType.get(type));
+    }
+
+    Set<String> getIds(State state) {
+        return Collections.unmodifiableSet(byState.get(state));
+    }
+
+    /**
+     * @return The ids of the devices of the type in the state
+     */
+    Set<String> getIds(Type type, State state) {
+        return Collections.unmodifiableSet(byPair[slot(type, state)]);
+    }
+
+    int count(Type type) {
+        return byType.get(type).size();
+    }
+
+    int count(State state) {
+        return byState.get(state).size();
+    }
+
+    int count(Type type, State state) {
+        return counts.get(slot(type, state));
+    }
+
+    private static int slot(Type type, State state) {
+        return type.ordinal() * STATES + state.ordinal();
+    }
+}
@@ -0,0 +1,117 @@
+package com.alfred.common.datamodel;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * When each device was last heard from, indexed by device handle (see
+ * {@link DeviceHandles}), and the time to live of each device type.
+ * <p>
+ * A report only writes the time it was seen, so it takes constant time. The
+ * StateDeviceManager arms one check per device on its timing wheel the first
+ * time the device is seen. When the check runs it either finds the device
+ * idle for longer than its time to live, or moves itself to when the device
+ * would expire given its last report. No scan of every device is ever made.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class DeviceLiveness {
+
+    private static final int PAGE_BITS = DeviceHandles.PAGE_BITS;
+    private static final int PAGE_SIZE = DeviceHandles.PAGE_SIZE;
+    private static final int PAGE_MASK = DeviceHandles.PAGE_MASK;
+
+    // Time to live by type ordinal, in nanoseconds. Replaced, never changed
+    // in place
+    private volatile long[] ttls = new long[Type.values().length];
+
+    // Replaced, never changed in place, when a page is added
+    private volatile Page[] pages = new Page[0];
+
+    void setTtl(Type type, long ttl, TimeUnit unit) {
+        synchronized(this) {
+            long[] updated = ttls.clone();
+            updated[type.ordinal()] = Math.max(unit.toNanos(ttl), 0);
+            ttls = updated;
+        }
+    }
+
+    /**
+     * @return The time to live of the type in nanoseconds, or 0 if devices
+     *         of the type don't expire
+     */
+    long getTtl(Type type) {
+        return type == null ? 0 : ttls[type.ordinal()];
+    }
+
+    /**
+     * Records that a device was seen
+     *
+     * @param now The time by the device manager's timing wheel
+     * @return True if the device has no check armed and the caller has to
+     *         schedule one
+     */
+    boolean touch(int handle, long now) {
+        Page page = page(handle);
+        int i = handle & PAGE_MASK;
+        // the wheel thread only needs to see the time eventually, a late
+        // read just moves the check on once more
+        page.lastSeen.lazySet(i, now);
+        return page.armed.get(i) == 0 && page.armed.compareAndSet(i, 0, 1);
+    }
+
+    /**
+     * Marks a device as having no check armed, after its check found it gone
+     * or expired
+     */
+    void disarm(int handle) {
+        Page page = find(handle);
+        if(page != null) page.armed.set(handle & PAGE_MASK, 0);
+    }
+
+    /**
+     * @param now The time by the device manager's timing wheel
+     * @return The nanoseconds since the device was last seen, or -1 if it
+     *         has never been seen
+     */
+    long getIdle(int handle, long now) {
+        Page page = find(handle);
+        if(page == null) return -1;
+        long seen = page.lastSeen.get(handle & PAGE_MASK);
+        return seen == 0 ? -1 : now - seen;
+    }
+
+    private Page find(int handle) {
+        Page[] current = pages;
+        int p = handle >>> PAGE_BITS;
+        return handle < 0 || p >= current.length ? null : current[p];
+    }
+
+    private Page page(int handle) {
+        Page page = find(handle);
+        if(page != null) return page;
+        synchronized(this) {
+            Page[] current = pages;
+            int p = handle >>> PAGE_BITS;
+            if(p >= current.length) {
+                Page[] grown = Arrays.copyOf(current, p + 1);
+                for(int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Page();
+                }
+                pages = grown;
+                current = grown;
+            }
+            return current[p];
+        }
+    }
+
+    private static final class Page {
+        final AtomicLongArray lastSeen = new AtomicLongArray(PAGE_SIZE);
+        final AtomicIntegerArray armed = new AtomicIntegerArray(PAGE_SIZE);
+    }
+}
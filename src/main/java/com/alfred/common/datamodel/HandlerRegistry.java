@@ -0,0 +1,194 @@
+package com.alfred.common.datamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.alfred.common.handlers.AsyncStateDeviceHandler;
+import com.alfred.common.handlers.BatchStateDeviceHandler;
+import com.alfred.common.handlers.OfflineStateDeviceHandler;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * The StateDeviceHandlers registered with the StateDeviceManager, indexed by
+ * their subscriptions. A handler with a subscription on device ids is only
+ * looked at for those ids, one with a subscription on types only for those
+ * types, and handlers without a subscription are called for every device.
+ * <p>
+ * The index is copy-on-write: registering a handler rebuilds it, and
+ * notifications read the current index without locking.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class HandlerRegistry {
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private final LinkedHashMap<StateDeviceHandler, Subscription> registrations = new LinkedHashMap<StateDeviceHandler, Subscription>();
+
+    private volatile Index index = new Index();
+
+    /**
+     * Registers a handler, replacing the subscription if the handler is
+     * already registered
+     *
+     * @param subscription The subscription, or null for every device
+     */
+    synchronized void add(StateDeviceHandler handler, Subscription subscription) {
+        registrations.put(handler, subscription);
+        rebuild();
+    }
+
+    synchronized void remove(StateDeviceHandler handler) {
+        if(!registrations.containsKey(handler)) return;
+        registrations.remove(handler);
+        rebuild();
+    }
+
+    /**
+     * Calls every matching handler for a change
+     *
+     * @param batched
+     *            True if the change is part of a batch, in which case batch
+     *            handlers are skipped and notified by <code>notifyBatch</code>
+     */
+    void notify(Kind kind, StateDevice device, boolean batched) {
+        Index current = index;
+        notify(current.wildcard, kind, device, batched);
+        Type type = device.getType();
+        if(type != null) {
+            Entry[] entries = current.byType.get(type);
+            if(entries != null) notify(entries, kind, device, batched);
+        }
+        if(!current.byId.isEmpty()) {
+            Entry[] entries = current.byId.get(device.getId());
+            if(entries != null) notify(entries, kind, device, batched);
+        }
+        notify(current.byPrefix, kind, device, batched);
+    }
+
+    /**
+     * Calls every batch handler with the devices in the batch that match its
+     * subscription
+     */
+    void notifyBatch(List<StateDevice> devices) {
+        for(Entry entry : index.batch) {
+            List<StateDevice> matching = devices;
+            if(entry.subscription != null) {
+                matching = new ArrayList<StateDevice>(devices.size());
+                for(StateDevice device : devices) {
+                    if(entry.subscription.matches(device)) matching.add(device);
+                }
+                if(matching.isEmpty()) continue;
+                matching = Collections.unmodifiableList(matching);
+            }
+            ((BatchStateDeviceHandler) entry.handler).onBatchUpdate(matching);
+        }
+    }
+
+    private static void notify(Entry[] entries, Kind kind, StateDevice device, boolean batched) {
+        for(Entry entry : entries) {
+            if(batched && entry.batch) continue;
+            if(entry.subscription != null && !entry.subscription.matches(device)) continue;
+            switch(kind) {
+            case ADD:
+                entry.handler.onAddDevice(device);
+                break;
+            case UPDATE:
+                entry.handler.onUpdateDevice(device);
+                break;
+            case REMOVE:
+                entry.handler.onRemoveDevice(device);
+                break;
+            case OFFLINE:
+                if(entry.offline) ((OfflineStateDeviceHandler) entry.handler).onDeviceOffline(device);
+                else entry.handler.onRemoveDevice(device);
+                break;
+            }
+        }
+    }
+
+    // Each registration is indexed under exactly one kind of key, so a
+    // handler is never found twice for the same device
+    private void rebuild() {
+        List<Entry> wildcard = new ArrayList<Entry>();
+        List<Entry> byPrefix = new ArrayList<Entry>();
+        List<Entry> batch = new ArrayList<Entry>();
+        EnumMap<Type, List<Entry>> byType = new EnumMap<Type, List<Entry>>(Type.class);
+        HashMap<String, List<Entry>> byId = new HashMap<String, List<Entry>>();
+        for(Map.Entry<StateDeviceHandler, Subscription> registration : registrations.entrySet()) {
+            Entry entry = new Entry(registration.getKey(), registration.getValue());
+            Subscription subscription = entry.subscription;
+            if(entry.batch) batch.add(entry);
+            if(subscription == null) {
+                wildcard.add(entry);
+            } else if(!subscription.getIds().isEmpty() && subscription.getIdPrefixes().isEmpty()) {
+                for(String id : subscription.getIds()) {
+                    List<Entry> entries = byId.get(id);
+                    if(entries == null) byId.put(id, entries = new ArrayList<Entry>());
+                    entries.add(entry);
+                }
+            } else if(!subscription.getIdPrefixes().isEmpty()) {
+                byPrefix.add(entry);
+            } else if(!subscription.getTypes().isEmpty()) {
+                for(Type type : subscription.getTypes()) {
+                    List<Entry> entries = byType.get(type);
+                    if(entries == null) byType.put(type, entries = new ArrayList<Entry>());
+                    entries.add(entry);
+                }
+            } else {
+                wildcard.add(entry);
+            }
+        }
+        Index updated = new Index();
+        updated.wildcard = wildcard.toArray(NONE);
+        updated.byPrefix = byPrefix.toArray(NONE);
+        updated.batch = batch.toArray(NONE);
+        for(Map.Entry<Type, List<Entry>> entries : byType.entrySet()) {
+            updated.byType.put(entries.getKey(), entries.getValue().toArray(NONE));
+        }
+        for(Map.Entry<String, List<Entry>> entries : byId.entrySet()) {
+            updated.byId.put(entries.getKey(), entries.getValue().toArray(NONE));
+        }
+        index = updated;
+    }
+
+    private static final class Entry {
+        final StateDeviceHandler handler;
+        final Subscription subscription;
+        final boolean batch;
+        final boolean offline;
+
+        Entry(StateDeviceHandler handler, Subscription subscription) {
+            this.handler = handler;
+            this.subscription = subscription;
+            this.batch = isBatch(handler);
+            this.offline = handler instanceof OfflineStateDeviceHandler;
+        }
+
+        // An async handler takes batches only when the handler it wraps does,
+        // so a wrapped per-device handler still sees adds as adds
+        private static boolean isBatch(StateDeviceHandler handler) {
+            if(handler instanceof AsyncStateDeviceHandler) {
+                return isBatch(((AsyncStateDeviceHandler) handler).getHandler());
+            }
+            return handler instanceof BatchStateDeviceHandler;
+        }
+    }
+
+    private static final class Index {
+        Entry[] wildcard = NONE;
+        Entry[] byPrefix = NONE;
+        Entry[] batch = NONE;
+        final EnumMap<Type, Entry[]> byType = new EnumMap<Type, Entry[]>(Type.class);
+        final HashMap<String, Entry[]> byId = new HashMap<String, Entry[]>();
+    }
+}
@@ -0,0 +1,113 @@
+package com.alfred.common.datamodel;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+
+/**
+ *
+ * An immutable StateDevice. This is the form the StateDeviceManager keeps
+ * devices in, which lets the manager hand out a shared reference instead of a
+ * copy when a device is read.
+ * <p>
+ * The state of an immutable device can't be changed in place. Use
+ * <code>withState</code> to get a new instance with a different state.
+ * Calling <code>setState</code> throws an
+ * <code>UnsupportedOperationException</code>.
+ * <p>
+ * Devices stored by the StateDeviceManager carry a version, which is the
+ * manager's sequence number for the change that produced them.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class ImmutableStateDevice extends StateDevice {
+
+    private final long _version;
+
+    // Built the first time it is asked for. Two threads may both build it,
+    // either is fine to keep
+    private volatile StateDeviceMessage _message;
+
+    /**
+     * Copy constructor
+     *
+     * @param device The device to copy
+     */
+    public ImmutableStateDevice(StateDevice device) {
+        this(device, 0);
+    }
+
+    ImmutableStateDevice(StateDevice device, long version) {
+        super(device);
+        _version = version;
+    }
+
+    private ImmutableStateDevice(ImmutableStateDevice device, State state, long version) {
+        super(device, state);
+        _version = version;
+    }
+
+    /**
+     * Returns an immutable instance of the input device. Immutable devices are
+     * returned as is, any other device is copied
+     *
+     * @param device A StateDevice
+     * @return An immutable instance of the device
+     */
+    public static ImmutableStateDevice of(StateDevice device) {
+        if(device instanceof ImmutableStateDevice) return (ImmutableStateDevice) device;
+        return new ImmutableStateDevice(device);
+    }
+
+    /**
+     * Returns a device with the new state. If the state is unchanged this
+     * instance is returned
+     *
+     * @param state The new state
+     * @return An immutable device with the given state
+     */
+    public ImmutableStateDevice withState(State state) {
+        return withState(state, _version);
+    }
+
+    ImmutableStateDevice withState(State state, long version) {
+        if(getState() == state) return this;
+        return new ImmutableStateDevice(this, state, version);
+    }
+
+    /**
+     * @return The StateDeviceManager sequence number of the change that last
+     *         modified this device, or 0 if it isn't stored by the manager
+     */
+    public long getVersion() {
+        return _version;
+    }
+
+    /**
+     * Returns the message for this device. The message is built once and
+     * the same instance returned after that, so broadcasting a device to many
+     * clients doesn't build it for each one
+     *
+     * @return A StateDeviceMessage object
+     */
+    @Override
+    public StateDeviceMessage toMessage() {
+        StateDeviceMessage message = _message;
+        if(message == null) {
+            message = super.toMessage();
+            _message = message;
+        }
+        return message;
+    }
+
+    /**
+     * Not supported, immutable devices can't change state in place
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void setState(State state) {
+        throw new UnsupportedOperationException("Device " + getId() + " is immutable, use withState");
+    }
+
+}
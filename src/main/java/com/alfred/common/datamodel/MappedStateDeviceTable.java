@@ -0,0 +1,622 @@
+package com.alfred.common.datamodel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ *
+ * A table of devices kept in a memory-mapped file instead of on the heap, for
+ * deployments with too many devices to hold as StateDevice objects.
+ * <p>
+ * The file is a fixed number of fixed size slots, found through an open
+ * addressed hash of the device id with linear probing. Each slot holds the id
+ * and name as chars, up to the lengths the table was created with, and the
+ * state and type as single bytes. Looking up or changing the state of a
+ * device doesn't allocate, and the table survives a restart because it is the
+ * file. Call <code>force</code> to make sure the changes have reached the
+ * disk.
+ * <p>
+ * Any number of threads can read while one thread at a time changes the
+ * table. Reads are optimistic and are retried if they overlap a change.
+ * <p>
+ * The table doesn't grow. It holds up to three quarters of its slots, and the
+ * whole file must fit in one mapping, which is 2GB.
+ * <p>
+ * Removed slots are cleared by moving the devices around inside the file.
+ * Each move is recorded in the header first, and a device that is displaced
+ * is copied to a scratch slot after the others, so a process that dies in
+ * the middle of a move leaves enough in the file for the next
+ * <code>open</code> to finish it.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class MappedStateDeviceTable implements Closeable {
+
+    private static final int MAGIC = 0x414C4644; // "ALFD"
+    private static final int FORMAT = 1;
+
+    // Header: magic, format, capacity, max id length, max name length, size,
+    // then the rehash step in progress and the two slots it moves between
+    private static final int HEADER_SIZE = 64;
+    private static final int SIZE_OFFSET = 20;
+    private static final int STEP_OFFSET = 24;
+    private static final int STEP_FROM = 28;
+    private static final int STEP_TO = 32;
+
+    // Rehash steps
+    private static final int NO_STEP = 0;
+    // Moving a device to an empty slot
+    private static final int MOVE = 1;
+    // Moving a device to a slot whose device is in the scratch slot
+    private static final int SWAP = 2;
+    // Moving the device in the scratch slot to the slot that was freed
+    private static final int SWAP_BACK = 3;
+
+    // Slot: status, state, type, id length, name length, hash, id, name
+    private static final int STATUS = 0;
+    private static final int STATE = 1;
+    private static final int TYPE = 2;
+    private static final int ID_LENGTH = 3;
+    private static final int NAME_LENGTH = 4;
+    private static final int HASH = 8;
+    private static final int ID = 12;
+
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+    // Still to be put back in place by a rehash
+    private static final byte MOVING = 3;
+
+    // Stored for a missing state or type
+    private static final byte NONE = -1;
+
+    private final FileChannel channel;
+    // Null once the table is closed. Read under the lock, or once per
+    // optimistic read
+    private MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int maxIdLength;
+    private final int maxNameLength;
+    private final int slotSize;
+    private final StampedLock lock = new StampedLock();
+
+    // Guarded by the write lock
+    private int size;
+    private int removed;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(MappedStateDeviceTable.class);
+
+    private MappedStateDeviceTable(FileChannel channel, MappedByteBuffer buffer, int capacity,
+            int maxIdLength, int maxNameLength) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxIdLength = maxIdLength;
+        this.maxNameLength = maxNameLength;
+        this.slotSize = slotSize(maxIdLength, maxNameLength);
+    }
+
+    /**
+     * Opens the table in a file, creating the file if it doesn't exist. An
+     * existing file keeps the capacity and lengths it was created with
+     *
+     * @param file The table file
+     * @param capacity The number of slots. Must be a power of two
+     * @param maxIdLength The longest device id, in chars, up to 255
+     * @param maxNameLength The longest device name, in chars, up to 255.
+     *            Longer names are cut off
+     * @return The open table
+     * @throws IOException if the file can't be opened or isn't a table
+     */
+    public static MappedStateDeviceTable open(Path file, int capacity, int maxIdLength, int maxNameLength)
+            throws IOException {
+        if(capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Error: capacity must be a power of two");
+        }
+        if(maxIdLength < 1 || maxIdLength > 255 || maxNameLength < 0 || maxNameLength > 255) {
+            throw new IllegalArgumentException("Error: id and name lengths must be at most 255");
+        }
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            if(!created) {
+                MappedByteBuffer header = channel.size() < HEADER_SIZE ? null
+                        : channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if(header == null || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+                    throw new IOException("Error: " + file + " is not a device table");
+                }
+                capacity = header.getInt(8);
+                maxIdLength = header.getInt(12);
+                maxNameLength = header.getInt(16);
+            }
+            // one more slot for the scratch slot
+            long length = HEADER_SIZE + (capacity + 1L) * slotSize(maxIdLength, maxNameLength);
+            if(length > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Error: table of " + length + " bytes is larger than 2GB");
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, length);
+            MappedStateDeviceTable table = new MappedStateDeviceTable(channel, buffer, capacity,
+                    maxIdLength, maxNameLength);
+            if(created) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, FORMAT);
+                buffer.putInt(8, capacity);
+                buffer.putInt(12, maxIdLength);
+                buffer.putInt(16, maxNameLength);
+                buffer.putInt(SIZE_OFFSET, 0);
+            } else {
+                table.countSlots();
+            }
+            log.info("Opened device table " + file + " with " + table.size + " devices");
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds a device, or replaces the device with the same id
+     *
+     * @param device The device to store
+     * @return True if the device was added, false if it replaced one
+     * @throws IllegalArgumentException if the id is too long
+     * @throws IllegalStateException if the table is full
+     */
+    public boolean put(StateDevice device) {
+        String id = device.getId();
+        if(id.length() > maxIdLength) {
+            throw new IllegalArgumentException("Error: id " + id + " is longer than " + maxIdLength + " chars");
+        }
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(mapped(), id, hash);
+            boolean added = slot < 0;
+            if(added) {
+                int limit = capacity - (capacity >>> 2);
+                if(size + removed >= limit) {
+                    if(size >= limit) throw new IllegalStateException("Error: device table is full");
+                    rehash();
+                }
+                slot = freeSlot(hash);
+                if(buffer.get(offset(slot) + STATUS) == REMOVED) removed--;
+                size++;
+                buffer.putInt(SIZE_OFFSET, size);
+            }
+            int offset = offset(slot);
+            buffer.put(offset + STATE, encode(device.getState()));
+            buffer.put(offset + TYPE, encode(device.getType()));
+            buffer.put(offset + ID_LENGTH, (byte) id.length());
+            buffer.putInt(offset + HASH, hash);
+            putChars(offset + ID, id, id.length());
+            String name = device.getName();
+            int nameLength = name == null ? 0 : Math.min(name.length(), maxNameLength);
+            buffer.put(offset + NAME_LENGTH, (byte) nameLength);
+            putChars(offset + ID + 2 * maxIdLength, name, nameLength);
+            buffer.put(offset + STATUS, USED);
+            return added;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Changes the state of a device
+     *
+     * @param id The device id
+     * @param state The new state
+     * @return False if the device isn't in the table
+     */
+    public boolean setState(CharSequence id, State state) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(mapped(), id, hash);
+            if(slot < 0) return false;
+            buffer.put(offset(slot) + STATE, encode(state));
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a device
+     *
+     * @param id The device id
+     * @return False if the device isn't in the table
+     */
+    public boolean remove(CharSequence id) {
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int slot = find(mapped(), id, hash);
+            if(slot < 0) return false;
+            buffer.put(offset(slot) + STATUS, REMOVED);
+            size--;
+            removed++;
+            buffer.putInt(SIZE_OFFSET, size);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param id The device id
+     * @return The state of the device, or null if it isn't in the table or
+     *         has no state
+     */
+    public State getState(CharSequence id) {
+        return State.valueOf(readByte(id, STATE));
+    }
+
+    /**
+     * @param id The device id
+     * @return The type of the device, or null if it isn't in the table or
+     *         has no type
+     */
+    public Type getType(CharSequence id) {
+        return Type.valueOf(readByte(id, TYPE));
+    }
+
+    /**
+     * @param id The device id
+     * @return True if the device is in the table
+     */
+    public boolean contains(CharSequence id) {
+        int hash = hash(id);
+        long stamp = lock.tryOptimisticRead();
+        boolean found = find(mapped(), id, hash) >= 0;
+        if(lock.validate(stamp)) return found;
+        stamp = lock.readLock();
+        try {
+            return find(mapped(), id, hash) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies a device out of the table. Unlike the other reads this allocates
+     * the device and its strings
+     *
+     * @param id The device id
+     * @return The device, or null if it isn't in the table
+     */
+    public StateDevice getDevice(CharSequence id) {
+        int hash = hash(id);
+        long stamp = lock.readLock();
+        try {
+            int slot = find(mapped(), id, hash);
+            return slot < 0 ? null : readDevice(offset(slot));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies every device out of the table, in slot order
+     *
+     * @param action Called with each device
+     */
+    public void forEach(Consumer<? super StateDevice> action) {
+        long stamp = lock.readLock();
+        try {
+            mapped();
+            for(int slot = 0; slot < capacity; slot++) {
+                int offset = offset(slot);
+                if(buffer.get(offset + STATUS) == USED) action.accept(readDevice(offset));
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The number of devices in the table
+     */
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int current = size;
+        if(lock.validate(stamp)) return current;
+        stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return The number of slots in the table
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the changes made so far to the disk
+     */
+    public void force() {
+        long stamp = lock.readLock();
+        try {
+            mapped().force();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Writes the changes to the disk and closes the file. Any use of the
+     * table afterwards throws an <code>IllegalStateException</code>
+     */
+    @Override
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            if(buffer == null) return;
+            buffer.force();
+            // the mapping goes away once nothing refers to it
+            buffer = null;
+            channel.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return The mapping
+     * @throws IllegalStateException if the table is closed
+     */
+    private MappedByteBuffer mapped() {
+        MappedByteBuffer current = buffer;
+        if(current == null) throw new IllegalStateException("Error: device table is closed");
+        return current;
+    }
+
+    private int readByte(CharSequence id, int field) {
+        int hash = hash(id);
+        long stamp = lock.tryOptimisticRead();
+        MappedByteBuffer mapped = mapped();
+        int slot = find(mapped, id, hash);
+        int value = slot < 0 ? NONE : mapped.get(offset(slot) + field);
+        if(!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                mapped = mapped();
+                slot = find(mapped, id, hash);
+                value = slot < 0 ? NONE : mapped.get(offset(slot) + field);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return The slot holding the id, or -1. May read a slot that is being
+     *         changed, callers validate the lock stamp afterwards
+     */
+    private int find(MappedByteBuffer mapped, CharSequence id, int hash) {
+        int length = id.length();
+        if(length > maxIdLength) return -1;
+        for(int probe = 0, slot = hash & mask; probe < capacity; probe++, slot = (slot + 1) & mask) {
+            int offset = offset(slot);
+            byte status = mapped.get(offset + STATUS);
+            if(status == EMPTY) return -1;
+            if(status == USED && mapped.getInt(offset + HASH) == hash
+                    && (mapped.get(offset + ID_LENGTH) & 0xFF) == length && idEquals(mapped, offset, id, length)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int freeSlot(int hash) {
+        int slot = hash & mask;
+        while(buffer.get(offset(slot) + STATUS) == USED) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Clears the removed slots by putting every device back in place. The
+     * devices are moved around inside the mapping, so no copy of the table
+     * is made on the heap. Called with the write lock held when removed slots
+     * fill the table, and on open to finish a rehash that was cut short
+     */
+    private void rehash() {
+        for(int slot = 0; slot < capacity; slot++) {
+            int offset = offset(slot);
+            byte status = buffer.get(offset + STATUS);
+            if(status == USED) buffer.put(offset + STATUS, MOVING);
+            else if(status == REMOVED) buffer.put(offset + STATUS, EMPTY);
+        }
+        for(int slot = 0; slot < capacity; slot++) {
+            int offset = offset(slot);
+            while(buffer.get(offset + STATUS) == MOVING) {
+                // the first slot from the device's home that isn't placed
+                int target = buffer.getInt(offset + HASH) & mask;
+                byte status;
+                while((status = buffer.get(offset(target) + STATUS)) == USED) {
+                    target = (target + 1) & mask;
+                }
+                if(target == slot) {
+                    buffer.put(offset + STATUS, USED);
+                } else if(status == EMPTY) {
+                    beginStep(MOVE, slot, target);
+                    move(slot, target);
+                } else {
+                    // the target holds a device still to be placed, which
+                    // takes this slot and is placed next
+                    copySlot(offset(target), offset(capacity));
+                    beginStep(SWAP, slot, target);
+                    swap(slot, target);
+                }
+            }
+        }
+        removed = 0;
+    }
+
+    /**
+     * Records the step about to be made. Its slots are written before the
+     * step itself, and every step can be made again from where it stopped,
+     * so a step found in the header is finished by making it again
+     */
+    private void beginStep(int step, int from, int to) {
+        buffer.putInt(STEP_FROM, from);
+        buffer.putInt(STEP_TO, to);
+        buffer.putInt(STEP_OFFSET, step);
+    }
+
+    private void move(int from, int to) {
+        int fromOffset = offset(from);
+        // already made if the slot was emptied before the process died
+        if(buffer.get(fromOffset + STATUS) == MOVING) {
+            copySlot(fromOffset, offset(to));
+            buffer.put(offset(to) + STATUS, USED);
+            buffer.put(fromOffset + STATUS, EMPTY);
+        }
+        buffer.putInt(STEP_OFFSET, NO_STEP);
+    }
+
+    /**
+     * Moves a device to a slot whose device was copied to the scratch slot,
+     * then moves that device to the freed slot
+     */
+    private void swap(int from, int to) {
+        copySlot(offset(from), offset(to));
+        buffer.put(offset(to) + STATUS, USED);
+        buffer.putInt(STEP_OFFSET, SWAP_BACK);
+        swapBack(from);
+    }
+
+    private void swapBack(int from) {
+        copySlot(offset(capacity), offset(from));
+        buffer.putInt(STEP_OFFSET, NO_STEP);
+    }
+
+    /**
+     * Finishes the step of a rehash that was cut short
+     */
+    private void finishStep() {
+        int step = buffer.getInt(STEP_OFFSET);
+        if(step == NO_STEP) return;
+        int from = buffer.getInt(STEP_FROM);
+        int to = buffer.getInt(STEP_TO);
+        if(from < 0 || from >= capacity || to < 0 || to >= capacity) {
+            log.warn("Ignoring a damaged rehash step in the device table");
+            buffer.putInt(STEP_OFFSET, NO_STEP);
+            return;
+        }
+        if(step == MOVE) move(from, to);
+        else if(step == SWAP) swap(from, to);
+        else if(step == SWAP_BACK) swapBack(from);
+        else buffer.putInt(STEP_OFFSET, NO_STEP);
+    }
+
+    // Slots are a multiple of 8 bytes and start 8 byte aligned
+    private void copySlot(int from, int to) {
+        for(int i = 0; i < slotSize; i += 8) {
+            buffer.putLong(to + i, buffer.getLong(from + i));
+        }
+    }
+
+    private void countSlots() {
+        finishStep();
+        boolean moving = false;
+        for(int slot = 0; slot < capacity; slot++) {
+            byte status = buffer.get(offset(slot) + STATUS);
+            if(status == USED || status == MOVING) size++;
+            else if(status == REMOVED) removed++;
+            if(status == MOVING) moving = true;
+        }
+        // a rehash was cut short, so finish it
+        if(moving) rehash();
+        // the stored size is only a hint, the slots are the truth
+        buffer.putInt(SIZE_OFFSET, size);
+    }
+
+    private boolean idEquals(MappedByteBuffer mapped, int offset, CharSequence id, int length) {
+        for(int i = 0; i < length; i++) {
+            if(mapped.getChar(offset + ID + 2 * i) != id.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void putChars(int offset, String value, int length) {
+        for(int i = 0; i < length; i++) {
+            buffer.putChar(offset + 2 * i, value.charAt(i));
+        }
+    }
+
+    private String getChars(int offset, int length) {
+        char[] chars = new char[length];
+        for(int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(offset + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    private StateDevice readDevice(int offset) {
+        int nameLength = buffer.get(offset + NAME_LENGTH) & 0xFF;
+        return new StateDevice.Builder()
+                .setId(getChars(offset + ID, buffer.get(offset + ID_LENGTH) & 0xFF))
+                .setName(nameLength == 0 ? null : getChars(offset + ID + 2 * maxIdLength, nameLength))
+                .setState(State.valueOf(buffer.get(offset + STATE)))
+                .setType(Type.valueOf(buffer.get(offset + TYPE)))
+                .build();
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private static int slotSize(int maxIdLength, int maxNameLength) {
+        // rounded up to 8 bytes so the hash stays aligned
+        return (ID + 2 * (maxIdLength + maxNameLength) + 7) & ~7;
+    }
+
+    private static byte encode(State state) {
+        return state == null ? NONE : (byte) state.getNumber();
+    }
+
+    private static byte encode(Type type) {
+        return type == null ? NONE : (byte) type.getNumber();
+    }
+
+    private static int hash(CharSequence id) {
+        // the same function as String.hashCode, so a String can use its
+        // cached hash
+        int hash = 0;
+        if(id instanceof String) {
+            hash = id.hashCode();
+        } else {
+            for(int i = 0; i < id.length(); i++) {
+                hash = 31 * hash + id.charAt(i);
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
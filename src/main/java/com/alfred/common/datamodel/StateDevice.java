@@ -65,7 +65,20 @@ public class StateDevice {
         _state = device.getState();
         _type  = device.getType();
     }
-    
+
+    /**
+     * Copy constructor with a new state
+     *
+     * Creates a copy from a reference, replacing its state
+     *
+     */
+    protected StateDevice(StateDevice device, State state) {
+        _id    = device.getId();
+        _name  = device.getName();
+        _state = state;
+        _type  = device.getType();
+    }
+
     /**
      * This constructor takes a state device protobuf message
      * 
@@ -148,12 +161,12 @@ public class StateDevice {
      * @return A StateDeviceMessage object
      */
     public StateDeviceMessage toMessage() {
-        return StateDeviceMessage.newBuilder()
-                .setId(_id)
-                .setName(_name)
-                .setState(_state)
-                .setType(_type)
-                .build();
+        StateDeviceMessage.Builder builder = StateDeviceMessage.newBuilder().setId(_id);
+        // devices created from a message may not have a name or type
+        if(_name != null) builder.setName(_name);
+        if(_state != null) builder.setState(_state);
+        if(_type != null) builder.setType(_type);
+        return builder.build();
     }
 
     
@@ -0,0 +1,599 @@
+package com.alfred.common.datamodel;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ *
+ * An append-only journal of device changes, so the StateDeviceManager can
+ * rebuild its devices after a restart instead of polling every physical
+ * device.
+ * <p>
+ * Each record is a one byte operation followed by a length-delimited
+ * StateDeviceMessage, written with <code>writeDelimitedTo</code>. A put
+ * record holds the whole device, a remove record only its id.
+ * <p>
+ * Changes are group committed: each change is added to an in-memory batch
+ * while the device is being changed, and a single writer thread writes the
+ * batches with one system call. The batches are striped by device id, so
+ * changes to different devices rarely wait for each other, while the records
+ * of one device stay in order. The thread that made the change waits until
+ * its batch has been written before the handlers are notified, so a change
+ * that has been reported survives the process being killed. The
+ * {@link FsyncPolicy} decides when the file is also forced to disk, which is
+ * what protects against losing power.
+ * <p>
+ * Once the journal can't be written, it refuses every later record, so a
+ * change that can't be journaled is not made and memory doesn't fill up with
+ * records that will never be written.
+ * <p>
+ * A journal is opened with <code>open</code> and attached with
+ * <code>StateDeviceManager.setJournal</code>, which replays it first.
+ * <p>
+ * The journal is split into numbered segments so it doesn't grow forever.
+ * <code>StateDeviceManager.snapshot</code> starts a new segment, writes every
+ * device to a snapshot file with the same number, and then deletes the older
+ * segments and snapshots. The snapshot is written while devices keep
+ * changing, so it may already contain some of the changes in the new segment;
+ * replaying them again is harmless because a put record holds the whole
+ * device. A snapshot is encoded like a StateListMessage, one device field per
+ * device, so it can be read without loading it all at once.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class StateDeviceJournal implements Closeable {
+
+    /**
+     * When the journal file is forced to disk
+     */
+    public enum FsyncPolicy {
+        /** Never, the operating system writes the file back on its own */
+        NEVER,
+        /** At most once per interval, from the writer thread */
+        INTERVAL,
+        /** After every batch, before the waiting threads are released */
+        ALWAYS
+    }
+
+    static final byte PUT    = 0;
+    static final byte REMOVE = 1;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Field 1 of a StateListMessage, length delimited
+    private static final int DEVICE_TAG = 0x0A;
+
+    // Number of batches records are appended to. Must be a power of two
+    private static final int STRIPES = 16;
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long intervalNanos;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile boolean open;
+    private volatile IOException failure;
+    // Set when the writer thread has ended
+    private volatile boolean stopped;
+    // The segment the writer is asked to move to, and the one it is on
+    private volatile long requestedSegment;
+    private volatile long currentSegment;
+
+    // Guards lastSegment, and is notified when the writer moves to a new
+    // segment or stops
+    private final Object lock = new Object();
+    private long lastSegment;
+
+    // Only used by the writer thread once it has been started
+    private FileChannel channel;
+    private long segment;
+    private volatile Thread writer;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(StateDeviceJournal.class);
+
+    private StateDeviceJournal(Path directory, FsyncPolicy policy, long intervalNanos) {
+        this.directory = directory;
+        this.policy = policy;
+        this.intervalNanos = intervalNanos;
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Opens the journal in a directory, creating the directory if needed.
+     * With the INTERVAL policy the file is forced once a second
+     *
+     * @param directory The journal directory
+     * @param policy When to force the journal to disk
+     * @return The journal, ready to be attached to the StateDeviceManager
+     * @throws IOException if the directory can't be created
+     */
+    public static StateDeviceJournal open(Path directory, FsyncPolicy policy) throws IOException {
+        return open(directory, policy, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Opens the journal in a directory, creating the directory if needed
+     *
+     * @param directory The journal directory
+     * @param policy When to force the journal to disk
+     * @param interval How often to force the journal with the INTERVAL policy
+     * @param unit The unit of the interval
+     * @return The journal, ready to be attached to the StateDeviceManager
+     * @throws IOException if the directory can't be created
+     */
+    public static StateDeviceJournal open(Path directory, FsyncPolicy policy, long interval, TimeUnit unit)
+            throws IOException {
+        Files.createDirectories(directory);
+        return new StateDeviceJournal(directory, policy, unit.toNanos(interval));
+    }
+
+    /**
+     * Reads back the latest snapshot and every record written after it, then
+     * starts accepting new records. A record that was only partly written
+     * when the process died is cut off
+     */
+    void replay(Visitor visitor) throws IOException {
+        if(open || stopped) throw new IllegalStateException("Error: journal has already been replayed");
+        for(Path file : list("*" + TEMP_SUFFIX)) {
+            Files.delete(file);
+        }
+        List<Long> snapshots = listNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long first = 0;
+        if(!snapshots.isEmpty()) {
+            first = snapshots.get(snapshots.size() - 1);
+            readSnapshot(snapshotPath(first), visitor);
+        }
+        // a crash between writing a snapshot and deleting the files it
+        // replaces can leave older files behind
+        deleteBefore(first);
+        List<Long> segments = listNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        for(int i = 0; i < segments.size(); i++) {
+            Path path = segmentPath(segments.get(i));
+            long end = replay(path, visitor);
+            if(end < Files.size(path)) {
+                log.warn("Discarding incomplete record at " + end + " in " + path);
+                try(FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    truncate.truncate(end);
+                }
+            }
+        }
+        segment = segments.isEmpty() ? Math.max(first, 1) : segments.get(segments.size() - 1);
+        channel = openSegment(segment);
+        synchronized(lock) {
+            lastSegment = segment;
+        }
+        requestedSegment = segment;
+        currentSegment = segment;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "alfred-journal");
+        writer.setDaemon(true);
+        open = true;
+        writer.start();
+    }
+
+    /**
+     * Adds a record to the batch of the device's stripe. Called while the
+     * device is being changed, so records for one device are journaled in
+     * order
+     *
+     * @throws UncheckedIOException if the journal can't be written, in which
+     *             case the record isn't added
+     */
+    void append(byte operation, StateDeviceMessage msg) {
+        if(!open) throw new IllegalStateException("Error: journal is not open");
+        IOException failed = failure;
+        if(failed != null) throw new UncheckedIOException("Error: journal can't be written", failed);
+        Stripe stripe = stripe(msg.getId());
+        boolean wasEmpty;
+        synchronized(stripe) {
+            wasEmpty = stripe.filling.size() == 0;
+            stripe.filling.write(operation);
+            try {
+                msg.writeDelimitedTo(stripe.filling);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if(wasEmpty) LockSupport.unpark(writer);
+    }
+
+    /**
+     * Starts a new segment, and waits for the writer to move to it. Records
+     * appended after this call go to the new segment. Must be called while
+     * no records are being appended
+     *
+     * @return The number of the new segment
+     * @throws IOException if the journal can't be written
+     */
+    long roll() throws IOException {
+        if(!open) throw new IllegalStateException("Error: journal is not open");
+        // every record appended so far belongs to the old segment
+        if(!sync()) throw new IOException("Error: journal can't be written", failure);
+        synchronized(lock) {
+            long rollTo = ++lastSegment;
+            requestedSegment = rollTo;
+            LockSupport.unpark(writer);
+            boolean interrupted = false;
+            while(currentSegment < rollTo && failure == null && !stopped) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            if(currentSegment < rollTo) throw new IOException("Error: journal can't be written", failure);
+            return rollTo;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the devices, then deletes the segments and
+     * snapshots it replaces. The devices must include every change appended
+     * before the segment was started
+     *
+     * @param segment A segment number returned by <code>roll</code>
+     * @param devices The devices to write
+     * @throws IOException if the snapshot can't be written
+     */
+    void writeSnapshot(long segment, Iterable<? extends StateDevice> devices) throws IOException {
+        Path path = snapshotPath(segment);
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        int count = 0;
+        try(FileChannel file = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16);
+            for(StateDevice device : devices) {
+                out.write(DEVICE_TAG);
+                device.toMessage().writeDelimitedTo(out);
+                count++;
+            }
+            out.flush();
+            file.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        // roll has already moved the writer past the old segments
+        deleteBefore(segment);
+        log.info("Wrote snapshot of " + count + " devices to " + path);
+    }
+
+    /**
+     * Waits until every record appended so far has been written, and forced
+     * if the policy is ALWAYS
+     *
+     * @return False if the journal can't be written, in which case some of
+     *         the records may not have been
+     */
+    boolean sync() {
+        for(Stripe stripe : stripes) {
+            if(!sync(stripe)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every record appended so far for a device has been
+     * written, and forced if the policy is ALWAYS
+     *
+     * @return False if the journal can't be written, in which case some of
+     *         the records may not have been
+     */
+    boolean sync(String id) {
+        return sync(stripe(id));
+    }
+
+    private boolean sync(Stripe stripe) {
+        synchronized(stripe) {
+            long target = stripe.filling.size() == 0 ? stripe.fillingNumber - 1 : stripe.fillingNumber;
+            boolean interrupted = false;
+            while(stripe.writtenNumber < target && failure == null && !stopped) {
+                try {
+                    stripe.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            return stripe.writtenNumber >= target;
+        }
+    }
+
+    /**
+     * @return The journal directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes any pending records, forces the journal to disk and closes it
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(lock) {
+            if(!open) return;
+            open = false;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the writer may have failed while moving to a new segment
+        if(channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private void write() {
+        long lastForce = System.nanoTime();
+        boolean dirty = false;
+        ByteBuffer[] buffers = new ByteBuffer[STRIPES];
+        try {
+            while(true) {
+                boolean closing = !open;
+                int count = 0;
+                for(Stripe stripe : stripes) {
+                    synchronized(stripe) {
+                        if(stripe.filling.size() > 0) {
+                            stripe.taken = stripe.filling;
+                            stripe.filling = stripe.spare;
+                            stripe.takenNumber = stripe.fillingNumber++;
+                            buffers[count++] = stripe.taken.asByteBuffer();
+                        }
+                    }
+                }
+                long rollTo = requestedSegment;
+                if(count == 0 && rollTo == segment) {
+                    if(closing) return;
+                    if(dirty && policy == FsyncPolicy.INTERVAL) {
+                        long wait = intervalNanos - (System.nanoTime() - lastForce);
+                        if(wait > 0) {
+                            LockSupport.parkNanos(this, wait);
+                            continue;
+                        }
+                    } else {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                }
+                try {
+                    if(rollTo != segment) {
+                        // roll waits for every earlier record to be written,
+                        // so these batches belong to the new segment
+                        channel.force(false);
+                        channel.close();
+                        segment = rollTo;
+                        channel = openSegment(segment);
+                        dirty = false;
+                        synchronized(lock) {
+                            currentSegment = segment;
+                            lock.notifyAll();
+                        }
+                    }
+                    writeFully(buffers, count);
+                    dirty |= count > 0;
+                    long now = System.nanoTime();
+                    if(dirty && (policy == FsyncPolicy.ALWAYS
+                            || (policy == FsyncPolicy.INTERVAL && now - lastForce >= intervalNanos))) {
+                        channel.force(false);
+                        lastForce = now;
+                        dirty = false;
+                    }
+                } catch (IOException e) {
+                    log.error("Unable to write journal " + segmentPath(segment)
+                            + ", no more changes will be accepted", e);
+                    failure = e;
+                    return;
+                }
+                for(Stripe stripe : stripes) {
+                    synchronized(stripe) {
+                        if(stripe.taken != null) {
+                            stripe.taken.reset();
+                            stripe.spare = stripe.taken;
+                            stripe.taken = null;
+                            stripe.writtenNumber = stripe.takenNumber;
+                            stripe.notifyAll();
+                        }
+                    }
+                }
+                Arrays.fill(buffers, 0, count, null);
+            }
+        } finally {
+            stopped = true;
+            for(Stripe stripe : stripes) {
+                synchronized(stripe) {
+                    stripe.notifyAll();
+                }
+            }
+            synchronized(lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while(first < count) {
+            channel.write(buffers, first, count - first);
+            while(first < count && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    private Stripe stripe(String id) {
+        int hash = id.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @return The position after the last complete record
+     */
+    private static long replay(Path path, Visitor visitor) throws IOException {
+        long end = 0;
+        try(InputStream in = Files.newInputStream(path)) {
+            // one stream for the whole file is much cheaper than a
+            // parseDelimitedFrom per record. The size counter is reset after
+            // every record, so the file isn't limited to 64MB
+            CodedInputStream input = CodedInputStream.newInstance(in);
+            while(!input.isAtEnd()) {
+                byte operation;
+                StateDeviceMessage msg;
+                try {
+                    operation = input.readRawByte();
+                    msg = input.readMessage(StateDeviceMessage.PARSER, ExtensionRegistryLite.getEmptyRegistry());
+                } catch (InvalidProtocolBufferException e) {
+                    break;
+                }
+                if(operation == PUT) visitor.put(msg);
+                else if(operation == REMOVE) visitor.remove(msg.getId());
+                else break;
+                end += input.getTotalBytesRead();
+                input.resetSizeCounter();
+            }
+        }
+        return end;
+    }
+
+    private static void readSnapshot(Path path, Visitor visitor) throws IOException {
+        int count = 0;
+        try(InputStream in = Files.newInputStream(path)) {
+            CodedInputStream input = CodedInputStream.newInstance(in);
+            int tag;
+            while((tag = input.readTag()) != 0) {
+                if(tag != DEVICE_TAG) throw new IOException("Error: snapshot " + path + " is corrupt");
+                visitor.put(input.readMessage(StateDeviceMessage.PARSER, ExtensionRegistryLite.getEmptyRegistry()));
+                input.resetSizeCounter();
+                count++;
+            }
+        }
+        log.info("Read snapshot of " + count + " devices from " + path);
+    }
+
+    /**
+     * Deletes the segments and snapshots numbered below a segment
+     */
+    private void deleteBefore(long number) throws IOException {
+        for(long old : listNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if(old < number) Files.delete(segmentPath(old));
+        }
+        for(long old : listNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if(old < number) Files.delete(snapshotPath(old));
+        }
+    }
+
+    private List<Long> listNumbers(String prefix, String suffix) throws IOException {
+        List<Long> numbers = new ArrayList<Long>();
+        for(Path file : list(prefix + "*" + suffix)) {
+            String name = file.getFileName().toString();
+            try {
+                numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unexpected file " + file);
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    private List<Path> list(String glob) throws IOException {
+        List<Path> paths = new ArrayList<Path>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob)) {
+            for(Path file : files) {
+                paths.add(file);
+            }
+        }
+        return paths;
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private Path snapshotPath(long number) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Receives the records read back by <code>replay</code>
+     */
+    interface Visitor {
+        void put(StateDeviceMessage msg);
+
+        void remove(String id);
+    }
+
+    /**
+     * The batches of one stripe. Guarded by the stripe's monitor
+     */
+    private static final class Stripe {
+        Batch filling = new Batch();
+        Batch spare = new Batch();
+        // The batch the writer is writing, and its number
+        Batch taken;
+        long takenNumber;
+        long fillingNumber = 1;
+        long writtenNumber = 0;
+    }
+
+    /**
+     * A byte buffer whose contents can be written without copying them
+     */
+    private static final class Batch extends ByteArrayOutputStream {
+
+        Batch() {
+            super(4096);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
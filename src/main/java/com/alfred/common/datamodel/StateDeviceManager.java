@@ -1,13 +1,37 @@
 package com.alfred.common.datamodel;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.alfred.common.datamodel.TimingWheel.Timeout;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.handlers.StateDeviceEventBus;
 import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.messages.StateDeviceProtos.StateListMessage;
 
 /**
  * This class is the backbone of the Alfred API. It manages the list of devices
@@ -27,17 +51,112 @@ import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
  * <code>addDeviceHandler</code> method. When a state device is added, removed,
  * or updated the registered handlers are notified with a reference to the
  * device.
+ * <p>
+ * All methods are safe to call from multiple threads. Devices are kept in a
+ * <code>ConcurrentHashMap</code> and each state change is applied atomically
+ * for its device, so writers updating different devices don't contend with
+ * each other. Handlers are notified after the change has been applied, in the
+ * order the changes to each device were made. The thread that made a change
+ * usually notifies the handlers itself, but if another thread is already
+ * notifying for devices in the same stripe of ids, that thread delivers the
+ * change in turn. So a method that changes a device may return before the
+ * handlers have been notified of the change; code that has to run after the
+ * handlers should run from a handler. A thread that has delivered a long run
+ * of other threads' changes hands the rest to a notifier thread. A handler
+ * that may be slow should be wrapped in an
+ * {@link com.alfred.common.handlers.AsyncStateDeviceHandler} so it doesn't
+ * delay the change for everyone else.
+ * <p>
+ * Devices are stored as {@link ImmutableStateDevice} instances. Handlers are
+ * notified with the stored instance, and <code>getImmutableDevice</code>
+ * returns it without making a copy.
  * 
  * @author Kevin Kanzelmeyer
  *
  */
 public class StateDeviceManager {
     
-    // List of devices to manage
-    private static HashMap<String, StateDevice> deviceList = new HashMap<String, StateDevice>();
+    /**
+     * The number of recent changes kept for <code>getChangesSince</code>
+     */
+    public static final int CHANGE_LOG_SIZE = 8192;
+    
+    // List of devices to manage. Devices are stored immutable so readers can
+    // share the stored reference
+    private static final ConcurrentHashMap<String, ImmutableStateDevice> deviceList = new ConcurrentHashMap<String, ImmutableStateDevice>();
+    
+    // List of handlers to manage, indexed by subscription. Copy-on-write so
+    // notifications can read it without locking while handlers are added or
+    // removed
+    private static final HandlerRegistry deviceHandlers = new HandlerRegistry();
+    
+    // Sequence numbers start from the time the process started, shifted past
+    // the number of changes a process could make in a millisecond, so every
+    // number handed out before a restart is below the first one after it
+    private static final int EPOCH_SHIFT = 20;
+    private static final long FIRST_SEQUENCE = System.currentTimeMillis() << EPOCH_SHIFT;
+    // Sequence number of the last change, and a log of the recent changes
+    private static final AtomicLong sequence = new AtomicLong(FIRST_SEQUENCE);
+    private static final ChangeLog changeLog = new ChangeLog(CHANGE_LOG_SIZE);
     
-    // List of handlers to manage
-    private static ArrayList<StateDeviceHandler> deviceHandlers = new ArrayList<StateDeviceHandler>();
+    // Optional journal that every change is written to
+    private static volatile StateDeviceJournal journal;
+    
+    // Held for reading by changes while a journal is attached, and for
+    // writing while a snapshot starts a new journal segment, so every change
+    // journaled before the new segment is in the map the snapshot reads
+    private static final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private static final Object snapshotLock = new Object();
+    private static ScheduledExecutorService snapshotTimer;
+    private static ScheduledFuture<?> snapshotTask;
+    
+    // Secondary indexes by type and state
+    private static final DeviceIndex index = new DeviceIndex();
+    
+    // Int handles for device ids, and primitive columns indexed by handle
+    private static final DeviceHandles handles = new DeviceHandles();
+    private static final DeviceColumns columns = new DeviceColumns();
+    
+    // Recent state changes of every device, off until a depth is set
+    private static final DeviceHistory history = new DeviceHistory();
+    
+    // When each device was last heard from, and the time to live by type
+    private static final DeviceLiveness liveness = new DeviceLiveness();
+    
+    // Times scheduled state changes, and the scheduled changes of each device
+    private static volatile TimingWheel timers = new TimingWheel(10, TimeUnit.MILLISECONDS, 512, "alfred-timer");
+    private static final ConcurrentHashMap<String, List<ScheduledChange>> scheduled = new ConcurrentHashMap<String, List<ScheduledChange>>();
+    // Makes the scheduled changes once they are due, so the change, the
+    // journal sync and the handlers don't hold up the wheel thread
+    private static final ExecutorService scheduledRunner = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "alfred-scheduled");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // The id of the device a scheduled change is being made to on this
+    // thread, whose other scheduled changes are kept
+    private static final ThreadLocal<String> firingScheduled = new ThreadLocal<String>();
+    
+    // Holds back updates for devices with a coalescing window
+    private static final UpdateCoalescer coalescer = new UpdateCoalescer();
+    
+    // Optional ring buffer that every change is published to
+    private static volatile StateDeviceEventBus eventBus;
+    
+    // Notifications queued while each device is locked, so handlers and the
+    // event bus see the changes to a device in the order they were made
+    private static final ChangeNotifier<Change> notifier = new ChangeNotifier<Change>(64, StateDeviceManager::deliver);
+    // The depth of the change the handlers on this thread are being notified
+    // of, or -1 outside of a notification
+    private static final ThreadLocal<int[]> notifying = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[] { -1 };
+        }
+    };
     
     // Logger
     final private static Logger log = LoggerFactory.getLogger(StateDeviceManager.class);
@@ -53,12 +172,28 @@ public class StateDeviceManager {
      *         returns "null" if the desired object doesn't exist
      */
     public static StateDevice getDevice(String id) {
-        if(deviceList.containsKey(id)) {
-        	StateDevice clone = new StateDevice(deviceList.get(id));
+        StateDevice device = deviceList.get(id);
+        if(device != null) {
+            StateDevice clone = new StateDevice(device);
             return clone;
         } else return null;
     }
     
+    /**
+     * Method to retrieve a device without copying it. This is the preferred
+     * way to read a device that doesn't need to be modified, since the stored
+     * instance is shared and no allocation is made. Returns null if the device
+     * doesn't exist
+     * 
+     * @param id
+     *            The ID of the desired device
+     * @return the stored immutable instance of the device, or "null" if the
+     *         desired object doesn't exist
+     */
+    public static ImmutableStateDevice getImmutableDevice(String id) {
+        return deviceList.get(id);
+    }
+    
     /**
      * Method to see if the device manager contains a specified device
      * 
@@ -73,10 +208,300 @@ public class StateDeviceManager {
     /**
      * Method to retrieve all devices
      * 
-     * @return A Hashmap of all registered devices in the Device Manager
+     * @return A Hashmap snapshot of all registered devices in the Device
+     *         Manager. Changes made to the returned map or its devices are not
+     *         reflected in the Device Manager. Like <code>getDevice</code>,
+     *         every device is a clone; <code>getImmutableDevices</code> reads
+     *         the devices without copying them
      */
     public static HashMap<String, StateDevice> getAllDevices() {
-        return deviceList;
+        HashMap<String, StateDevice> devices = new HashMap<String, StateDevice>(deviceList.size() * 4 / 3 + 1);
+        for(ImmutableStateDevice device : deviceList.values()) {
+            devices.put(device.getId(), new StateDevice(device));
+        }
+        return devices;
+    }
+    
+    /**
+     * Method to go through every device without copying the registry, for
+     * example to send each device to a client
+     * 
+     * @return A read-only view of the stored devices. Its iterator reflects
+     *         changes made while it is used, and never throws
+     *         ConcurrentModificationException
+     */
+    public static Collection<ImmutableStateDevice> getImmutableDevices() {
+        return Collections.unmodifiableCollection(deviceList.values());
+    }
+
+    /**
+     * Method to retrieve the ids of every device of a type
+     * 
+     * @param type The device type
+     * @return A read-only view of the ids. The view reflects later changes
+     */
+    public static Set<String> getDeviceIds(Type type) {
+        return index.getIds(type);
+    }
+    
+    /**
+     * Method to retrieve the ids of every device in a state
+     * 
+     * @param state The device state
+     * @return A read-only view of the ids. The view reflects later changes
+     */
+    public static Set<String> getDeviceIds(State state) {
+        return index.getIds(state);
+    }
+    
+    /**
+     * Method to retrieve every device of a type in a state, for example every
+     * garage door that is open. Only the matching devices are looked at
+     * 
+     * @param type The device type
+     * @param state The device state
+     * @return A list of the matching devices
+     */
+    public static List<ImmutableStateDevice> getDevices(Type type, State state) {
+        Set<String> ids = index.getIds(type, state);
+        List<ImmutableStateDevice> devices = new ArrayList<ImmutableStateDevice>(ids.size());
+        for(String id : ids) {
+            ImmutableStateDevice device = deviceList.get(id);
+            if(device != null && device.getType() == type && device.getState() == state) devices.add(device);
+        }
+        return devices;
+    }
+    
+    /**
+     * @param type The device type
+     * @return The number of devices of the type
+     */
+    public static int countDevices(Type type) {
+        return index.count(type);
+    }
+    
+    /**
+     * @param state The device state
+     * @return The number of devices in the state
+     */
+    public static int countDevices(State state) {
+        return index.count(state);
+    }
+    
+    /**
+     * Method to count the devices of a type in a state, for example how many
+     * lights are on. Takes constant time
+     * 
+     * @param type The device type
+     * @param state The device state
+     * @return The number of matching devices
+     */
+    public static int countDevices(Type type, State state) {
+        return index.count(type, state);
+    }
+
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // Handle based access
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to retrieve the handle of a device. A handle is a small int that
+     * stands for the device id, given out when the device is first added and
+     * kept for the life of the process, even if the device is removed. Code
+     * that reads the same devices over and over can look the handle up once
+     * and use the handle methods, which read primitive arrays instead of the
+     * device map and don't allocate
+     * 
+     * @param id The ID of the device
+     * @return The handle, or -1 if the device has never been added
+     */
+    public static int getHandle(String id) {
+        return handles.get(id);
+    }
+    
+    /**
+     * @param handle A device handle
+     * @return The ID of the device, or null if the handle hasn't been given
+     *         out
+     */
+    public static String getDeviceId(int handle) {
+        return handles.getId(handle);
+    }
+    
+    /**
+     * @param handle A device handle
+     * @return The state of the device, or null if it has been removed
+     */
+    public static State getState(int handle) {
+        return columns.getState(handle);
+    }
+    
+    /**
+     * @param handle A device handle
+     * @return The type of the device, or null if it has been removed
+     */
+    public static Type getType(int handle) {
+        return columns.getType(handle);
+    }
+    
+    /**
+     * @param handle A device handle
+     * @return The version of the device, which is the sequence number of its
+     *         last change, or 0 if it has been removed
+     */
+    public static long getVersion(int handle) {
+        return columns.getVersion(handle);
+    }
+    
+    /**
+     * @param handle A device handle
+     * @return The time of the device's last change in milliseconds since the
+     *         epoch, or 0 if it has never been added
+     */
+    public static long getLastChanged(int handle) {
+        return columns.getLastChanged(handle);
+    }
+    
+    /**
+     * Method to find every device of a type in a state by scanning the state
+     * and type columns
+     * 
+     * @param type The device type
+     * @param state The device state
+     * @return The handles of the matching devices
+     */
+    public static int[] getHandles(Type type, State state) {
+        return columns.getHandles(type, state);
+    }
+    
+    /**
+     * Method to change the state of a device by its handle. Behaves like
+     * <code>updateStateDevice(String, State)</code>
+     * 
+     * @param handle A device handle
+     * @param state The new state
+     */
+    public static void updateStateDevice(int handle, State state) {
+        String id = handles.getId(handle);
+        if(id != null) updateStateDevice(id, state);
+    }
+
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // State history
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to keep the last changes of every device in memory, so questions
+     * like "when was the garage door last opened" can be answered without a
+     * database. Each device gets a ring of the given depth the first time it
+     * changes, and the oldest change is overwritten when the ring is full, so
+     * memory use doesn't depend on how often devices change. A device's
+     * history is dropped when it is removed or goes offline. History isn't
+     * journaled. Changing the depth clears the history
+     * 
+     * @param depth The number of changes to keep per device, or 0 to keep
+     *            none. The default is 0
+     */
+    public static void setHistoryDepth(int depth) {
+        history.setDepth(depth);
+    }
+    
+    /**
+     * Method to retrieve the last changes of a device
+     * 
+     * @param id The ID of the device
+     * @param count The maximum number of changes to return
+     * @return The changes, oldest first
+     */
+    public static StateHistory getHistory(String id, int count) {
+        return history.last(handles.get(id), count);
+    }
+    
+    /**
+     * Method to retrieve the changes of a device in a time range, for example
+     * every doorbell press in the last hour
+     * 
+     * @param id The ID of the device
+     * @param from The start of the range in milliseconds since the epoch,
+     *            inclusive
+     * @param to The end of the range in milliseconds since the epoch,
+     *            exclusive
+     * @return The changes, oldest first
+     */
+    public static StateHistory getHistory(String id, long from, long to) {
+        return history.range(handles.get(id), from, to);
+    }
+    
+    /**
+     * Method to find when a device last changed to a state, for example when
+     * the garage door was last opened
+     * 
+     * @param id The ID of the device
+     * @param state The state
+     * @return The time of the change in milliseconds since the epoch, or -1 if
+     *         the history doesn't hold one
+     */
+    public static long getLastTimeInState(String id, State state) {
+        return history.lastTime(handles.get(id), state);
+    }
+    
+    /**
+     * Method to total the time a device spent in a state during a time range.
+     * Only the time covered by the changes still in the history is counted
+     * 
+     * @param id The ID of the device
+     * @param state The state
+     * @param from The start of the range in milliseconds since the epoch
+     * @param to The end of the range in milliseconds since the epoch. Times
+     *            after now are not counted
+     * @return The time in the state, in milliseconds
+     */
+    public static long getTimeInState(String id, State state, long from, long to) {
+        return history.timeInState(handles.get(id), state, from, Math.min(to, System.currentTimeMillis()));
+    }
+
+    /**
+     * Method to retrieve the sequence number of the last change. Every add,
+     * update and remove made by the Device Manager takes the next number, and
+     * the stored device records it as its version. The numbers start from
+     * the time the process started, so they keep growing across restarts
+     * 
+     * @return The sequence number of the last change, or the number the
+     *         sequence started from if nothing has changed
+     */
+    public static long getSequence() {
+        return sequence.get();
+    }
+    
+    /**
+     * Method to retrieve the devices that changed after a sequence number, so
+     * a client that reconnects only has to pull what it missed. A client
+     * should call <code>getSequence</code> before this method and pass that
+     * value the next time it catches up.
+     * <p>
+     * Only the last {@value #CHANGE_LOG_SIZE} changes are kept. If the
+     * requested changes are older than that, or a device was removed since
+     * the sequence number, the changes can't be expressed as a
+     * StateListMessage and the client needs to reload every device with
+     * <code>getAllDevices</code>. The same goes for a sequence number from
+     * before the process started, whose changes since are unknown, and for a
+     * number past the last change
+     * 
+     * @param since The sequence number the client is up to date with
+     * @return A StateListMessage with the current state of every device that
+     *         changed, or "null" if the client needs a full resync
+     */
+    public static StateListMessage getChangesSince(long since) {
+        long upTo = sequence.get();
+        // a number from before a restart, or one never handed out
+        if(since < FIRST_SEQUENCE || since > upTo) return null;
+        StateListMessage.Builder builder = StateListMessage.newBuilder();
+        if(since == upTo) return builder.build();
+        Set<String> ids = changeLog.getChangedIds(since, upTo);
+        if(ids == null) return null;
+        for(String id : ids) {
+            ImmutableStateDevice device = deviceList.get(id);
+            if(device != null) builder.addDevice(device.toMessage());
+        }
+        return builder.build();
     }
 
     // - - - - - - - - - - - - - - - - - - - - - - - - - - 
@@ -85,28 +510,55 @@ public class StateDeviceManager {
     
     /**
      * This method adds the input device to be managed by the Device Manager. It will
-     * notify all registered StateDeviceHandlers that a new device has been added
+     * notify all registered StateDeviceHandlers that a new device has been added.
+     * The Device Manager keeps an immutable copy of the device, so later changes
+     * to the input device are not reflected in the Device Manager
      * 
      * @param device A StateDevice
      * 
      */
     public static void addStateDevice(StateDevice device) {
-        deviceList.put(device.getId(), device);
-        for(StateDeviceHandler handler : deviceHandlers) {
-            handler.onAddDevice(device);
+        Lock lock = lockForChange();
+        ImmutableStateDevice added;
+        try {
+            added = deviceList.compute(device.getId(), (id, existing) -> {
+                ImmutableStateDevice stored = new ImmutableStateDevice(device, nextSequence(id, false));
+                record(existing, stored);
+                enqueue(Kind.ADD, null, stored, false);
+                return stored;
+            });
+        } finally {
+            unlock(lock);
         }
+        touch(added);
+        syncJournal(added.getId());
+        notifier.deliver(added.getId());
     }
     
     /**
-     * This method removes a device from the device manager
+     * This method removes a device from the device manager. Handlers are
+     * notified with the device as it was stored, so only its id needs to be
+     * set on the input device
      * 
      * @param device A StateDevice
      */
     public static void removeStateDevice(StateDevice device) {
-        deviceList.remove(device.getId());
-        for(StateDeviceHandler handler : deviceHandlers) {
-            handler.onRemoveDevice(device);
+        final Change change = new Change();
+        Lock lock = lockForChange();
+        try {
+            deviceList.computeIfPresent(device.getId(), (id, existing) -> {
+                change.previous = existing;
+                nextSequence(id, true);
+                record(existing, null);
+                enqueue(Kind.REMOVE, existing, null, false);
+                return null;
+            });
+        } finally {
+            unlock(lock);
         }
+        if(change.previous == null) return;
+        syncJournal(change.previous.getId());
+        notifier.deliver(change.previous.getId());
     }
     
     /**
@@ -118,20 +570,12 @@ public class StateDeviceManager {
      *            an instance of the device to update
      */
     public static void updateStateDevice(StateDevice device) {
-        if(deviceList.containsKey(device.getId())) {
-            StateDevice updateDevice = getDevice(device.getId());
-            if(updateDevice.getState() != device.getState()){
-                updateDevice.setState(device.getState());
-                deviceList.put(device.getId(), updateDevice);
-                // notify handlers
-                for(StateDeviceHandler handler : deviceHandlers) {
-                    handler.onUpdateDevice(updateDevice);
-                }
-            } else {
-                log.info("No state change, ignoring update");
-            }
+        Change change = upsert(device, false);
+        if(change != null) {
+            syncJournal(device.getId());
+            notifier.deliver(device.getId());
         } else {
-        	addStateDevice(device);
+            log.debug("No state change, ignoring update");
         }
     }
 
@@ -139,24 +583,439 @@ public class StateDeviceManager {
      * Method to update a given state device. Note that if the device doesn't
      * currently exist it will be added. Also note that the state device will
      * only be updated if the input device state is different
-     * 
+     *
      * @param id The ID of the device to update
      * @param state The new state
      */
     public static void updateStateDevice(String id, State state) {
-    	if(deviceList.containsKey(id)) {
-            StateDevice updateDevice = getDevice(id);
-            if(updateDevice.getState() != state){
-                updateDevice.setState(state);
-                deviceList.put(id, updateDevice);
-             // notify handlers
-                for(StateDeviceHandler handler : deviceHandlers) {
-                    handler.onUpdateDevice(updateDevice);
-                }
+        Change change = changeState(id, state, null);
+        if(change.isChanged()) {
+            syncJournal(id);
+            notifier.deliver(id);
+        } else {
+            log.debug("No state change, ignoring update");
+        }
+    }
+    
+    /**
+     * Method to change the state of a device only if it is in the expected
+     * state, so two clients toggling the same device can't undo each other.
+     * Only the device being changed is locked
+     * 
+     * @param id The ID of the device to update
+     * @param expected The state the device must be in
+     * @param state The new state
+     * @return True if the device was in the expected state. False if it was
+     *         in another state or doesn't exist, in which case nothing changed
+     */
+    public static boolean compareAndSetState(String id, State expected, State state) {
+        return changeStateIf(id, state, (device) -> device.getState() == expected);
+    }
+    
+    /**
+     * Method to change the state of a device only if it hasn't changed since
+     * it was read, which is when its version is still the one read. Only the
+     * device being changed is locked
+     * 
+     * @param id The ID of the device to update
+     * @param expectedVersion The version the device must have, from
+     *            <code>ImmutableStateDevice.getVersion</code>
+     * @param state The new state
+     * @return True if the device had the expected version. False if it has
+     *         changed since or doesn't exist, in which case nothing changed
+     */
+    public static boolean updateIfVersion(String id, long expectedVersion, State state) {
+        return changeStateIf(id, state, (device) -> device.getVersion() == expectedVersion);
+    }
+    
+    /**
+     * Method to update a collection of state devices in one pass. Devices that
+     * don't exist are added, and devices whose state is unchanged are skipped.
+     * Handlers that implement
+     * {@link com.alfred.common.handlers.BatchStateDeviceHandler} are notified
+     * once with every added or updated device, other handlers are notified
+     * once per added or updated device
+     * 
+     * @param devices The devices to update
+     */
+    public static void updateStateDevices(Collection<? extends StateDevice> devices) {
+        List<Change> changes = new ArrayList<Change>(devices.size());
+        for(StateDevice device : devices) {
+            Change change = upsert(device, true);
+            if(change != null) changes.add(change);
+        }
+        syncJournal();
+        notifyBatch(changes);
+    }
+    
+    /**
+     * Method to apply a StateListMessage, for example a snapshot received from
+     * a server, in one pass. Behaves like <code>updateStateDevices</code>
+     * 
+     * @param msg A StateListMessage protobuf
+     */
+    public static void applyStateList(StateListMessage msg) {
+        List<Change> changes = new ArrayList<Change>(msg.getDeviceCount());
+        for(StateDeviceMessage deviceMsg : msg.getDeviceList()) {
+            Change change = upsert(new StateDevice(deviceMsg), true);
+            if(change != null) changes.add(change);
+        }
+        syncJournal();
+        notifyBatch(changes);
+    }
+
+    /**
+     * Adds the device, or changes the state of the existing device, and
+     * queues the notification. Returns null if nothing changed
+     * 
+     * @param batched True if the change is part of a batch
+     */
+    private static Change upsert(final StateDevice device, final boolean batched) {
+        final Change change = new Change();
+        final State state = device.getState();
+        Lock lock = lockForChange();
+        try {
+            change.current = deviceList.compute(device.getId(), (id, existing) -> {
+                change.previous = existing;
+                if(existing != null && existing.getState() == state) return existing;
+                long version = nextSequence(id, false);
+                ImmutableStateDevice updated = existing == null
+                        ? new ImmutableStateDevice(device, version)
+                        : existing.withState(state, version);
+                record(existing, updated);
+                enqueue(existing == null ? Kind.ADD : Kind.UPDATE, existing, updated, batched);
+                return updated;
+            });
+        } finally {
+            unlock(lock);
+        }
+        touch(change.current);
+        return change.current != change.previous ? change : null;
+    }
+
+    private static boolean changeStateIf(String id, State state, Predicate<ImmutableStateDevice> condition) {
+        Change change = changeState(id, state, condition);
+        if(!change.matched) return false;
+        if(change.isChanged()) {
+            syncJournal(id);
+            notifier.deliver(id);
+        }
+        return true;
+    }
+
+    /**
+     * Changes the state of an existing device if it meets a condition, and
+     * queues the notification. The condition is checked while the device is
+     * locked
+     * 
+     * @param condition The condition, or null to always change the state
+     */
+    private static Change changeState(String id, final State state,
+            final Predicate<ImmutableStateDevice> condition) {
+        final Change change = new Change();
+        Lock lock = lockForChange();
+        try {
+            change.current = deviceList.computeIfPresent(id, (key, existing) -> {
+                change.previous = existing;
+                if(condition != null && !condition.test(existing)) return existing;
+                change.matched = true;
+                if(existing.getState() == state) return existing;
+                ImmutableStateDevice updated = existing.withState(state, nextSequence(key, false));
+                record(existing, updated);
+                enqueue(Kind.UPDATE, existing, updated, false);
+                return updated;
+            });
+        } finally {
+            unlock(lock);
+        }
+        if(change.current != null) touch(change.current);
+        return change;
+    }
+
+    /**
+     * Takes the next sequence number for a change to a device and logs the
+     * change. Called while the map holds the lock for the device id
+     */
+    private static long nextSequence(String id, boolean removed) {
+        long next = sequence.incrementAndGet();
+        changeLog.append(next, id, removed);
+        return next;
+    }
+
+    /**
+     * Brings everything kept alongside the device map up to date with a
+     * change. Called while the map holds the lock for the device id, so
+     * changes to one device are recorded in order
+     * 
+     * @param previous The stored device before the change, or null
+     * @param current The stored device after the change, or null
+     * @throws UncheckedIOException if the journal can't be written, before
+     *             anything is changed
+     */
+    private static void record(ImmutableStateDevice previous, ImmutableStateDevice current) {
+        // journaled first, so a change the journal refuses isn't made
+        StateDeviceJournal currentJournal = journal;
+        if(currentJournal != null) {
+            if(current != null) {
+                currentJournal.append(StateDeviceJournal.PUT, current.toMessage());
             } else {
-                log.info("No state change, ignoring update");
+                currentJournal.append(StateDeviceJournal.REMOVE,
+                        StateDeviceMessage.newBuilder().setId(previous.getId()).build());
             }
         }
+        index.update(previous, current);
+        if(previous != null && (current == null || previous.getState() != current.getState())) {
+            cancelOnChange(previous.getId());
+        }
+        long now = System.currentTimeMillis();
+        if(current != null) {
+            int handle = handles.intern(current.getId());
+            columns.put(handle, current, now);
+            if(previous == null || previous.getState() != current.getState()) {
+                history.record(handle, current.getState(), now);
+            }
+        } else {
+            int handle = handles.get(previous.getId());
+            columns.remove(handle, now);
+            history.release(handle);
+        }
+    }
+
+    /**
+     * Takes the checkpoint lock for a change if a journal is attached. Without
+     * a journal there are no snapshots to wait for
+     */
+    private static Lock lockForChange() {
+        if(journal == null) return null;
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlock(Lock lock) {
+        if(lock != null) lock.unlock();
+    }
+
+    /**
+     * Cancels the scheduled changes of a device whose state was changed by
+     * anything other than one of them
+     */
+    private static void cancelOnChange(String id) {
+        if(scheduled.isEmpty() || id.equals(firingScheduled.get())) return;
+        cancelScheduledChanges(id);
+    }
+
+    /**
+     * Waits until the changes made so far are in the journal, so a change is
+     * never reported before it would survive a restart. A journal that has
+     * failed was already reported by its writer, and refuses later changes,
+     * so the failure isn't raised here where it would stop the notifications
+     * of changes that were already made
+     */
+    private static void syncJournal() {
+        StateDeviceJournal currentJournal = journal;
+        if(currentJournal != null) currentJournal.sync();
+    }
+
+    /**
+     * Waits until the changes made so far to a device are in the journal
+     */
+    private static void syncJournal(String id) {
+        StateDeviceJournal currentJournal = journal;
+        if(currentJournal != null) currentJournal.sync(id);
+    }
+
+    /**
+     * Puts a device read back from the journal, without notifying handlers
+     */
+    private static void restore(StateDeviceMessage msg) {
+        final StateDevice device = new StateDevice(msg);
+        deviceList.compute(device.getId(), (id, existing) -> {
+            ImmutableStateDevice stored = new ImmutableStateDevice(device, nextSequence(id, false));
+            record(existing, stored);
+            return stored;
+        });
+    }
+
+    /**
+     * Removes a device read back from the journal, without notifying handlers
+     */
+    private static void restoreRemove(String id) {
+        deviceList.computeIfPresent(id, (key, existing) -> {
+            nextSequence(key, true);
+            record(existing, null);
+            return null;
+        });
+    }
+
+    /**
+     * Queues the notification of a change. Called while the map holds the
+     * lock for the device id
+     */
+    private static void enqueue(Kind kind, ImmutableStateDevice previous, ImmutableStateDevice current,
+            boolean batched) {
+        Change change = new Change();
+        change.kind = kind;
+        change.previous = previous;
+        change.current = current;
+        change.batched = batched;
+        change.depth = notifying.get()[0] + 1;
+        notifier.enqueue(current != null ? current.getId() : previous.getId(), change);
+    }
+
+    /**
+     * Publishes a queued change to the event bus and notifies the handlers.
+     * Updates outside a batch may be held back by the coalescer
+     */
+    private static void deliver(Change change) {
+        // the change may have been made by another thread that hasn't synced
+        syncJournal(change.current != null ? change.current.getId() : change.previous.getId());
+        if(change.kind == Kind.UPDATE && !change.batched && !change.coalesced
+                && coalescer.offer(change.previous, change.current)) return;
+        if(change.kind == Kind.REMOVE || change.kind == Kind.OFFLINE) coalescer.discard(change.previous.getId());
+        StateDevice device = change.current != null ? change.current : change.previous;
+        StateDeviceEventBus bus = eventBus;
+        if(bus != null) bus.publish(change.kind, device, change.previous == null ? null : change.previous.getState());
+        int[] depth = notifying.get();
+        int outer = depth[0];
+        depth[0] = change.depth;
+        try {
+            deviceHandlers.notify(change.kind, device, change.batched);
+        } finally {
+            depth[0] = outer;
+        }
+    }
+
+    /**
+     * Method to retrieve how many changes led to the change a handler is
+     * being notified of, through handlers changing devices when notified. A
+     * change made outside of any handler has depth 0, a change a handler
+     * makes when notified of it has depth 1, and so on, whichever thread the
+     * later changes are delivered on
+     * 
+     * @return The depth of the change being delivered on this thread, or 0
+     *         outside of a notification
+     */
+    public static int getChangeDepth() {
+        return Math.max(notifying.get()[0], 0);
+    }
+
+    /**
+     * Delivers the queued notifications of a batch, then calls the batch
+     * handlers once
+     */
+    private static void notifyBatch(List<Change> changes) {
+        if(changes.isEmpty()) return;
+        List<StateDevice> devices = new ArrayList<StateDevice>(changes.size());
+        for(Change change : changes) {
+            devices.add(change.current);
+            notifier.deliver(change.current.getId());
+        }
+        // the changes of a batch are made on one thread, at one depth
+        int[] depth = notifying.get();
+        int outer = depth[0];
+        depth[0] = changes.get(0).depth;
+        try {
+            deviceHandlers.notifyBatch(Collections.unmodifiableList(devices));
+        } finally {
+            depth[0] = outer;
+        }
+    }
+
+    /**
+     * Notifies the updates held back by a coalescing window that has closed,
+     * in order with the device's other changes, unless the device is back in
+     * the state it had when the window opened
+     */
+    static void notifyCoalesced(final ImmutableStateDevice reported) {
+        String id = reported.getId();
+        deviceList.computeIfPresent(id, (key, current) -> {
+            if(current.getState() != reported.getState()) {
+                Change change = new Change();
+                change.kind = Kind.UPDATE;
+                change.previous = reported;
+                change.current = current;
+                change.coalesced = true;
+                notifier.enqueue(key, change);
+            }
+            return current;
+        });
+        notifier.deliver(id);
+    }
+
+    /**
+     * Records that a device was heard from, and arms its liveness check if
+     * its type has a time to live. Takes constant time
+     */
+    private static void touch(ImmutableStateDevice device) {
+        long ttl = liveness.getTtl(device.getType());
+        if(ttl == 0) return;
+        int handle = handles.get(device.getId());
+        if(liveness.touch(handle, timers.now())) scheduleLivenessCheck(handle, ttl);
+    }
+
+    private static void scheduleLivenessCheck(final int handle, long delay) {
+        final TimingWheel wheel = timers;
+        wheel.schedule(() -> checkLiveness(wheel, handle), delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the timing wheel when a device may have expired. Hands the
+     * device to the scheduled change thread to be removed if it hasn't been
+     * heard from within its time to live, otherwise checks again when it
+     * would expire
+     */
+    private static void checkLiveness(TimingWheel wheel, final int handle) {
+        String id = handles.getId(handle);
+        ImmutableStateDevice device = deviceList.get(id);
+        final long ttl = device == null ? 0 : liveness.getTtl(device.getType());
+        if(ttl == 0) {
+            liveness.disarm(handle);
+            return;
+        }
+        long idle = liveness.getIdle(handle, timers.now());
+        if(idle < ttl) {
+            scheduleLivenessCheck(handle, ttl - idle);
+            return;
+        }
+        runOffWheel(wheel, () -> expire(handle, ttl));
+    }
+
+    /**
+     * Removes a device that hasn't been heard from within its time to live,
+     * unless it reported after its check ran
+     */
+    private static void expire(final int handle, final long ttl) {
+        String id = handles.getId(handle);
+        final Change change = new Change();
+        Lock lock = lockForChange();
+        try {
+            deviceList.computeIfPresent(id, (key, existing) -> {
+                // a report may have arrived since the check started
+                if(liveness.getIdle(handle, timers.now()) < ttl) return existing;
+                liveness.disarm(handle);
+                change.previous = existing;
+                nextSequence(key, true);
+                record(existing, null);
+                enqueue(Kind.OFFLINE, existing, null, false);
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.error("Couldn't take " + id + " offline", e);
+            scheduleLivenessCheck(handle, ttl);
+            return;
+        } finally {
+            unlock(lock);
+        }
+        if(change.previous == null) {
+            // still alive, or removed by someone else
+            if(deviceList.containsKey(id)) scheduleLivenessCheck(handle, ttl);
+            else liveness.disarm(handle);
+            return;
+        }
+        log.info("Device " + id + " went offline");
+        syncJournal(id);
+        notifier.deliver(id);
     }
 
     
@@ -169,9 +1028,20 @@ public class StateDeviceManager {
      * @param handler An instance of the handler
      */
     public static void addDeviceHandler(StateDeviceHandler handler) {
-        if(!deviceHandlers.contains(handler)) {
-            deviceHandlers.add(handler);
-        }
+        deviceHandlers.add(handler, null);
+    }
+    
+    /**
+     * Method to add a StateDeviceHandler that is only notified about devices
+     * matching a subscription. Handlers that aren't interested in a device
+     * are never called for it. If the handler is already registered its
+     * subscription is replaced
+     * 
+     * @param handler An instance of the handler
+     * @param subscription The devices the handler wants to be notified about
+     */
+    public static void addDeviceHandler(StateDeviceHandler handler, Subscription subscription) {
+        deviceHandlers.add(handler, subscription);
     }
     
     /**
@@ -180,8 +1050,374 @@ public class StateDeviceManager {
      * @param handler An instance of the handler
      */
     public static void removeDeviceHandler(StateDeviceHandler handler) {
-        if(deviceHandlers.contains(handler)) {
-            deviceHandlers.remove(handler);
+        deviceHandlers.remove(handler);
+    }
+    
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // Notification settings
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to set a coalescing window for every device of a type. The first
+     * update to a device opens the window, and the handlers are notified once
+     * with the latest state when it closes. If the device is back in the state
+     * it had when the window opened no notification is sent, so a flapping
+     * sensor doesn't flood the handlers. The device manager itself is always
+     * updated immediately. Adds, removes and batch updates are not coalesced,
+     * and a device that is removed or goes offline drops its open window.
+     * Windows are timed by the device manager's timing wheel
+     * 
+     * @param type The device type
+     * @param window The length of the window, or 0 to disable coalescing
+     * @param unit The unit of the window
+     */
+    public static void setCoalescingWindow(Type type, long window, TimeUnit unit) {
+        coalescer.setWindow(type, window, unit);
+    }
+    
+    /**
+     * Method to set a coalescing window for a single device. Overrides the
+     * window set for the device's type
+     * 
+     * @param id The ID of the device
+     * @param window The length of the window, or 0 to use the type's window
+     * @param unit The unit of the window
+     */
+    public static void setCoalescingWindow(String id, long window, TimeUnit unit) {
+        coalescer.setWindow(id, window, unit);
+    }
+    
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // Scheduled changes
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to change the state of a device after a delay, for example to
+     * turn a light off in 10 minutes. The change is cancelled if the device
+     * changes state or is removed in the meantime by anything other than
+     * another of its scheduled changes, so a light that was turned on again
+     * by hand stays on. Scheduled changes are timed by the device manager's
+     * timing wheel and made one at a time on a thread of their own
+     * 
+     * @param id The ID of the device
+     * @param state The state to change to
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @return The timeout, which can be used to cancel the change
+     */
+    public static Timeout scheduleStateChange(final String id, final State state, long delay, TimeUnit unit) {
+        final ScheduledChange change = new ScheduledChange(id, state);
+        // listed before it can run, since only a listed change is made
+        scheduled.compute(id, (key, changes) -> {
+            if(changes == null) changes = new ArrayList<ScheduledChange>(2);
+            changes.add(change);
+            return changes;
+        });
+        change.timeout = scheduleOffWheel(() -> runScheduled(change), delay, unit);
+        return change.timeout;
+    }
+    
+    /**
+     * Times a task on the timing wheel, and runs it off the wheel thread
+     * once it is due
+     */
+    static Timeout scheduleOffWheel(Runnable task, long delay, TimeUnit unit) {
+        final TimingWheel wheel = timers;
+        return wheel.schedule(() -> runOffWheel(wheel, task), delay, unit);
+    }
+    
+    /**
+     * Runs a task that is due on the scheduled change thread when called from
+     * the wheel thread, and on the calling thread when the wheel has no
+     * thread of its own
+     */
+    private static void runOffWheel(TimingWheel wheel, Runnable task) {
+        if(wheel.isWheelThread()) scheduledRunner.execute(task);
+        else task.run();
+    }
+    
+    /**
+     * Method to cancel every scheduled change of a device
+     * 
+     * @param id The ID of the device
+     * @return The number of changes cancelled
+     */
+    public static int cancelScheduledChanges(String id) {
+        List<ScheduledChange> changes = scheduled.remove(id);
+        if(changes == null) return 0;
+        for(ScheduledChange change : changes) {
+            // a change that is due but not yet made is stopped by no longer
+            // being listed
+            Timeout timeout = change.timeout;
+            if(timeout != null) timeout.cancel();
+        }
+        return changes.size();
+    }
+    
+    /**
+     * Makes a scheduled change that is due, unless it was cancelled after
+     * the wheel ran it
+     */
+    private static void runScheduled(final ScheduledChange change) {
+        final boolean[] listed = new boolean[1];
+        scheduled.computeIfPresent(change.id, (key, changes) -> {
+            listed[0] = changes.remove(change);
+            return changes.isEmpty() ? null : changes;
+        });
+        if(!listed[0]) return;
+        firingScheduled.set(change.id);
+        try {
+            updateStateDevice(change.id, change.state);
+        } catch (RuntimeException e) {
+            log.error("Scheduled change of " + change.id + " to " + change.state + " failed", e);
+        } finally {
+            firingScheduled.remove();
+        }
+    }
+    
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // Liveness
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to set how long a device of a type may go without reporting
+     * before it is considered offline and removed. Any add or update of a
+     * device counts as a report, as does <code>heartbeat</code>. Handlers that
+     * implement {@link com.alfred.common.handlers.OfflineStateDeviceHandler}
+     * are told through <code>onDeviceOffline</code>, other handlers see a
+     * removal. Devices of the type that already exist count as reporting
+     * when the time to live is set
+     * 
+     * @param type The device type
+     * @param ttl The time to live, or 0 for devices that never expire. The
+     *            default is 0
+     * @param unit The unit of the time to live
+     */
+    public static void setDeviceTtl(Type type, long ttl, TimeUnit unit) {
+        liveness.setTtl(type, ttl, unit);
+        if(ttl <= 0) return;
+        for(String id : index.getIds(type)) {
+            ImmutableStateDevice device = deviceList.get(id);
+            if(device != null) touch(device);
+        }
+    }
+    
+    /**
+     * Method to record that a device is alive without changing it, for
+     * devices that send keep-alive messages
+     * 
+     * @param id The ID of the device
+     * @return False if the device doesn't exist
+     */
+    public static boolean heartbeat(String id) {
+        ImmutableStateDevice device = deviceList.get(id);
+        if(device == null) return false;
+        touch(device);
+        return true;
+    }
+    
+    /**
+     * @param id The ID of the device
+     * @param unit The unit of the result
+     * @return The time since the device last reported, or -1 if it isn't
+     *         tracked because its type has no time to live
+     */
+    public static long getTimeSinceSeen(String id, TimeUnit unit) {
+        long idle = liveness.getIdle(handles.get(id), timers.now());
+        return idle < 0 ? -1 : unit.convert(idle, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Method to retrieve the device manager's timing wheel, so plugins can
+     * schedule their own short tasks without starting a timer thread
+     * 
+     * @return The timing wheel
+     */
+    public static TimingWheel getTimingWheel() {
+        return timers;
+    }
+    
+    /**
+     * Method to replace the device manager's timing wheel, for example with
+     * one driven by a test clock. Scheduled changes, liveness checks and
+     * coalescing windows already on the old wheel stay there, and the old
+     * wheel is not shut down. The time since a device was last seen is
+     * measured by the wheel's clock
+     * 
+     * @param wheel The new timing wheel
+     */
+    public static void setTimingWheel(TimingWheel wheel) {
+        if(wheel == null) throw new IllegalArgumentException("Error: timing wheel must not be null");
+        timers = wheel;
+    }
+    
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    // Persistence
+    // - - - - - - - - - - - - - - - - - - - - - - - - - - 
+    /**
+     * Method to attach a journal to the device manager. The devices recorded
+     * in the journal are restored first, without notifying the handlers, and
+     * every later add, update and remove is written to the journal before the
+     * handlers are notified of it. This should be called once at startup,
+     * before any devices are added. Restored devices whose type has a time to
+     * live are tracked from when they are restored, so the times to live
+     * should be set first.
+     * <p>
+     * If the journal can no longer be written, every later add, update and
+     * remove throws UncheckedIOException without changing the device, until
+     * the journal is replaced
+     * 
+     * @param journal A journal opened with <code>StateDeviceJournal.open</code>
+     * @throws IOException if the journal can't be read
+     */
+    public static void setJournal(StateDeviceJournal journal) throws IOException {
+        journal.replay(new StateDeviceJournal.Visitor() {
+            @Override
+            public void put(StateDeviceMessage msg) {
+                restore(msg);
+            }
+
+            @Override
+            public void remove(String id) {
+                restoreRemove(id);
+            }
+        });
+        StateDeviceManager.journal = journal;
+        for(ImmutableStateDevice device : deviceList.values()) {
+            touch(device);
+        }
+        log.info("Restored " + deviceList.size() + " devices from " + journal.getDirectory());
+    }
+    
+    /**
+     * Method to detach the journal from the device manager. The journal is
+     * not closed
+     */
+    public static void clearJournal() {
+        setSnapshotInterval(0, TimeUnit.SECONDS);
+        journal = null;
+    }
+    
+    /**
+     * Method to write a snapshot of every device to the journal directory and
+     * delete the journal segments it replaces, so a restart only has to read
+     * the snapshot and the changes made after it. Devices can keep changing
+     * while the snapshot is written
+     * 
+     * @throws IOException if the snapshot can't be written
+     */
+    public static void snapshot() throws IOException {
+        StateDeviceJournal current = journal;
+        if(current == null) throw new IllegalStateException("Error: no journal attached");
+        synchronized(snapshotLock) {
+            long segment;
+            checkpointLock.writeLock().lock();
+            try {
+                segment = current.roll();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            current.writeSnapshot(segment, deviceList.values());
+        }
+    }
+    
+    /**
+     * Method to write a snapshot periodically from a background thread
+     * 
+     * @param period The time between snapshots, or 0 to stop taking them
+     * @param unit The unit of the period
+     */
+    public static void setSnapshotInterval(long period, TimeUnit unit) {
+        synchronized(snapshotLock) {
+            if(snapshotTask != null) {
+                snapshotTask.cancel(false);
+                snapshotTask = null;
+            }
+            if(period <= 0) return;
+            if(snapshotTimer == null) {
+                snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "alfred-snapshot");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            snapshotTask = snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if(journal != null) snapshot();
+                    } catch (Exception e) {
+                        log.error("Unable to write snapshot", e);
+                    }
+                }
+            }, period, period, unit);
+        }
+    }
+    
+    /**
+     * @return The attached journal, or null if there isn't one
+     */
+    public static StateDeviceJournal getJournal() {
+        return journal;
+    }
+    
+    /**
+     * Method to attach an event bus to the device manager. Every add, update
+     * and remove is published to the bus in addition to being passed to the
+     * registered handlers
+     * 
+     * @param bus The event bus, or null to detach the current bus
+     */
+    public static void setEventBus(StateDeviceEventBus bus) {
+        eventBus = bus;
+    }
+    
+    /**
+     * @return The attached event bus, or null if there isn't one
+     */
+    public static StateDeviceEventBus getEventBus() {
+        return eventBus;
+    }
+    
+    /**
+     * A state change waiting on the timing wheel
+     */
+    private static final class ScheduledChange {
+        final String id;
+        final State state;
+        volatile Timeout timeout;
+        
+        ScheduledChange(String id, State state) {
+            this.id = id;
+            this.state = state;
+        }
+    }
+    
+    /**
+     * The stored device before and after a change. previous is null for an
+     * added device, and current is null for a removed one
+     */
+    private static final class Change {
+        Kind kind;
+        ImmutableStateDevice previous;
+        ImmutableStateDevice current;
+        // Whether a conditional change's condition held
+        boolean matched;
+        // Whether the change is part of a batch
+        boolean batched;
+        // Whether the change closes a coalescing window, so it isn't held
+        // back again
+        boolean coalesced;
+        // How many changes made by handlers led to this one
+        int depth;
+        
+        boolean isChanged() {
+            return current != previous;
+        }
+        
+        @Override
+        public String toString() {
+            return kind + " " + (current != null ? current : previous);
         }
     }
 }
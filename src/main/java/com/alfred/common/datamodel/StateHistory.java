@@ -0,0 +1,55 @@
+package com.alfred.common.datamodel;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+
+/**
+ *
+ * A copy of part of a device's state history, as returned by the
+ * StateDeviceManager history methods. Entries are ordered from oldest to
+ * newest.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class StateHistory {
+
+    private final long[] _times;
+    private final State[] _states;
+
+    StateHistory(long[] times, State[] states) {
+        _times = times;
+        _states = states;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return _times.length;
+    }
+
+    /**
+     * @param index The entry, 0 being the oldest
+     * @return The time of the change in milliseconds since the epoch
+     */
+    public long getTime(int index) {
+        return _times[index];
+    }
+
+    /**
+     * @param index The entry, 0 being the oldest
+     * @return The state the device changed to, or null if it had none
+     */
+    public State getState(int index) {
+        return _states[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < _times.length; i++) {
+            builder.append("\n").append(_times[i]).append(" ").append(_states[i]);
+        }
+        return builder.toString();
+    }
+}
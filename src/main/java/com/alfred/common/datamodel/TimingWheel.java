@@ -0,0 +1,329 @@
+package com.alfred.common.datamodel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * A hashed timing wheel, used by the StateDeviceManager to run delayed work
+ * such as "turn the light off in 10 minutes" without a timer thread per
+ * plugin.
+ * <p>
+ * The wheel is an array of buckets, each a linked list of timeouts, and one
+ * thread that moves to the next bucket every tick and runs the timeouts in it
+ * that are due. A timeout more than one turn of the wheel away waits in its
+ * bucket for the remaining turns. Scheduling and cancelling only add the
+ * timeout to a queue the wheel thread drains, so both take constant time from
+ * any thread, and the wheel thread only ever touches the buckets.
+ * <p>
+ * Timeouts run on the wheel thread, up to one tick late, and should be short.
+ * The thread is started with the first timeout. A wheel made with a clock of
+ * its own has no thread, and runs its timeouts on whichever thread calls
+ * <code>advance</code>, so tests can move time on without sleeping.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class TimingWheel {
+
+    // Timeouts moved from the queue to the wheel per tick, so a flood of new
+    // timeouts can't stall the wheel
+    private static final int MAX_TRANSFER = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final String threadName;
+    private final LongSupplier clock;
+    private final long startTime;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile Thread worker;
+    private volatile boolean stopped;
+    // The next tick to run. Only used by the wheel thread, or under the
+    // wheel's lock by advance
+    private long tick;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * @param tick How far apart the ticks are, which is how late a timeout
+     *            may run
+     * @param unit The unit of the tick
+     * @param buckets The number of buckets. Must be a power of two
+     * @param threadName The name of the wheel thread
+     */
+    public TimingWheel(long tick, TimeUnit unit, int buckets, String threadName) {
+        this(tick, unit, buckets, threadName, System::nanoTime);
+    }
+
+    /**
+     * Makes a wheel without a thread, whose timeouts run when
+     * <code>advance</code> is called
+     *
+     * @param tick How far apart the ticks are
+     * @param unit The unit of the tick
+     * @param buckets The number of buckets. Must be a power of two
+     * @param clock The current time in nanoseconds
+     */
+    public TimingWheel(long tick, TimeUnit unit, int buckets, LongSupplier clock) {
+        this(tick, unit, buckets, null, clock);
+    }
+
+    private TimingWheel(long tick, TimeUnit unit, int buckets, String threadName, LongSupplier clock) {
+        if(buckets < 1 || Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException("Error: buckets must be a power of two");
+        }
+        if(tick <= 0) throw new IllegalArgumentException("Error: tick must be positive");
+        this.tickNanos = unit.toNanos(tick);
+        this.wheel = new Bucket[buckets];
+        for(int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = buckets - 1;
+        this.threadName = threadName;
+        this.clock = clock;
+        this.startTime = clock.getAsLong();
+    }
+
+    /**
+     * Runs a task after a delay
+     *
+     * @param task The task, which runs on the wheel thread
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @return The timeout, which can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if(stopped) throw new IllegalStateException("Error: timing wheel has been shut down");
+        long deadline = elapsed() + Math.max(unit.toNanos(delay), 0);
+        Timeout timeout = new Timeout(this, task, deadline);
+        pending.incrementAndGet();
+        added.add(timeout);
+        if(worker == null && threadName != null) start();
+        return timeout;
+    }
+
+    /**
+     * Runs the ticks that are due by the wheel's clock on the calling thread.
+     * Only for a wheel made with a clock of its own
+     */
+    public synchronized void advance() {
+        if(threadName != null) throw new IllegalStateException("Error: timing wheel runs on its own thread");
+        while(!stopped && tickNanos * (tick + 1) <= elapsed()) {
+            expireTick();
+        }
+    }
+
+    /**
+     * @return The current time in nanoseconds by the wheel's clock
+     */
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    /**
+     * @return The number of timeouts that haven't run or been cancelled
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return True if called from the wheel thread, which is where the
+     *         timeouts run
+     */
+    public boolean isWheelThread() {
+        return Thread.currentThread() == worker;
+    }
+
+    /**
+     * Stops the wheel thread. Timeouts that haven't run never will
+     */
+    public void shutdown() {
+        stopped = true;
+        Thread current = worker;
+        if(current != null) LockSupport.unpark(current);
+    }
+
+    private synchronized void start() {
+        if(worker != null) return;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    private void turn() {
+        while(!stopped) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep;
+            while((sleep = deadline - elapsed()) > 0 && !stopped) {
+                LockSupport.parkNanos(sleep);
+            }
+            if(stopped) break;
+            expireTick();
+        }
+    }
+
+    private long elapsed() {
+        return clock.getAsLong() - startTime;
+    }
+
+    private void expireTick() {
+        removeCancelled();
+        transferAdded();
+        wheel[(int) (tick & mask)].expire(tickNanos * (tick + 1));
+        tick++;
+    }
+
+    private void transferAdded() {
+        for(int i = 0; i < MAX_TRANSFER; i++) {
+            Timeout timeout = added.poll();
+            if(timeout == null) return;
+            if(timeout.state != Timeout.WAITING) continue;
+            long due = timeout.deadline / tickNanos;
+            timeout.rounds = (due - tick) / wheel.length;
+            // a timeout that is already due goes in the current bucket
+            wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null) {
+            if(timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * A task waiting in the wheel
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel timingWheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = WAITING;
+
+        // Only used by the wheel thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout previous;
+
+        private Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the task if it hasn't run yet
+         *
+         * @return True if the task was cancelled, false if it has already run
+         *         or been cancelled
+         */
+        public boolean cancel() {
+            if(!STATE.compareAndSet(this, WAITING, CANCELLED)) return false;
+            timingWheel.pending.decrementAndGet();
+            timingWheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if(!STATE.compareAndSet(this, WAITING, EXPIRED)) return;
+            timingWheel.pending.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.error("Timeout task failed", t);
+            }
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts, only used by the wheel thread
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if(timeout.previous != null) timeout.previous.next = next;
+            if(next != null) next.previous = timeout.previous;
+            if(timeout == head) head = next;
+            if(timeout == tail) tail = timeout.previous;
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        /**
+         * Runs the timeouts that are due by the deadline, and counts down the
+         * turns of the others
+         */
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.rounds <= 0) {
+                    remove(timeout);
+                    if(timeout.deadline <= deadline) {
+                        timeout.expire();
+                    } else {
+                        log.warn("Timeout placed in the wrong bucket, deadline " + timeout.deadline);
+                    }
+                } else if(timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
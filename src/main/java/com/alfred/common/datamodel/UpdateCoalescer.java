@@ -0,0 +1,101 @@
+package com.alfred.common.datamodel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.alfred.common.datamodel.TimingWheel.Timeout;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * Holds back update notifications for devices that have a coalescing window.
+ * The first update for a device opens a window. Updates inside the window are
+ * applied to the device manager straight away but not reported, and when the
+ * window closes the handlers are notified once with the device's current
+ * state. If the device is back in the state it had when the window opened the
+ * notification is dropped, and a window is dropped when its device is removed
+ * or goes offline.
+ * <p>
+ * Windows are timed by the device manager's timing wheel, and the closing
+ * notification is queued behind the device's other changes like any other.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class UpdateCoalescer {
+
+    // Window per device id and per type, in nanoseconds
+    private final ConcurrentHashMap<String, Long> idWindows = new ConcurrentHashMap<String, Long>();
+    private volatile long[] typeWindows = new long[Type.values().length];
+
+    // The open window of every device that has one
+    private final ConcurrentHashMap<String, Window> pending = new ConcurrentHashMap<String, Window>();
+
+    void setWindow(String id, long window, TimeUnit unit) {
+        if(window > 0) idWindows.put(id, unit.toNanos(window));
+        else idWindows.remove(id);
+    }
+
+    synchronized void setWindow(Type type, long window, TimeUnit unit) {
+        long[] updated = typeWindows.clone();
+        updated[type.ordinal()] = Math.max(0, unit.toNanos(window));
+        typeWindows = updated;
+    }
+
+    /**
+     * Offers an update for coalescing
+     *
+     * @return true if the notification is held back, false if it should be
+     *         delivered now
+     */
+    boolean offer(ImmutableStateDevice previous, ImmutableStateDevice current) {
+        long window = getWindow(current);
+        if(window <= 0) return false;
+        final String id = current.getId();
+        final Window opened = new Window(previous);
+        if(pending.putIfAbsent(id, opened) == null) {
+            opened.timeout = StateDeviceManager.scheduleOffWheel(new Runnable() {
+                @Override
+                public void run() {
+                    flush(id, opened);
+                }
+            }, window, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the open window of a device that was removed or went offline
+     */
+    void discard(String id) {
+        Window window = pending.remove(id);
+        if(window == null) return;
+        // a window that is closing finds itself gone
+        Timeout timeout = window.timeout;
+        if(timeout != null) timeout.cancel();
+    }
+
+    private void flush(String id, Window window) {
+        if(pending.remove(id, window)) StateDeviceManager.notifyCoalesced(window.reported);
+    }
+
+    private long getWindow(ImmutableStateDevice device) {
+        if(!idWindows.isEmpty()) {
+            Long window = idWindows.get(device.getId());
+            if(window != null) return window;
+        }
+        Type type = device.getType();
+        return type == null ? 0 : typeWindows[type.ordinal()];
+    }
+
+    /**
+     * An open window, and the device as last reported before it opened
+     */
+    private static final class Window {
+        final ImmutableStateDevice reported;
+        volatile Timeout timeout;
+
+        Window(ImmutableStateDevice reported) {
+            this.reported = reported;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.alfred.common.handlers;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+
+/**
+ *
+ * A StateDeviceHandler that hands notifications off to another handler on a
+ * separate thread. Each instance has its own bounded queue, so a slow handler
+ * (for example one that sends a doorbell notification over the network) only
+ * delays its own notifications instead of every state change in the system.
+ * <p>
+ * Notifications are delivered to the wrapped handler one at a time, in the
+ * order they were made to this handler, so the wrapped handler sees the
+ * changes to each device in the order the StateDeviceManager reported them.
+ * A batch is queued as one notification, and is passed on as a batch if the
+ * wrapped handler is a {@link BatchStateDeviceHandler}.
+ * <p>
+ * The queue is drained by a task submitted to an <code>Executor</code>. At
+ * most one drain task runs at a time, so any executor can be used - a shared
+ * thread pool, a dedicated thread or, on Java 21 and newer, a virtual thread
+ * per task executor. If no executor is supplied the handler creates a single
+ * daemon thread of its own, which is stopped by <code>shutdown</code>.
+ * <p>
+ * For example
+ *
+ * <pre>
+ * StateDeviceManager.addDeviceHandler(
+ *         new AsyncStateDeviceHandler(doorbellHandler, 256, OverflowPolicy.DROP_OLDEST));
+ * </pre>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class AsyncStateDeviceHandler implements OfflineStateDeviceHandler, BatchStateDeviceHandler {
+
+    /**
+     * What to do with a notification when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Block the notifying thread until there is room in the queue. A
+         * notification made on the dispatch thread itself, for example for a
+         * change the wrapped handler made, is discarded instead, since nothing
+         * would ever make room for it
+         */
+        BLOCK,
+        /** Discard the new notification */
+        DROP_NEWEST,
+        /** Discard the oldest queued notification to make room */
+        DROP_OLDEST
+    }
+
+    private final StateDeviceHandler handler;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final BlockingQueue<Runnable> queue;
+    private final OverflowPolicy policy;
+
+    // True while a drain task is submitted or running
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // The thread running the drain task, if one is
+    private volatile Thread draining;
+
+    private volatile boolean stopped;
+    private final AtomicBoolean warnedStopped = new AtomicBoolean();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(AsyncStateDeviceHandler.class);
+
+    /**
+     * Creates an asynchronous handler with its own dispatch thread
+     *
+     * @param handler The handler to notify
+     * @param capacity The maximum number of queued notifications
+     * @param policy What to do when the queue is full
+     */
+    public AsyncStateDeviceHandler(final StateDeviceHandler handler, int capacity, OverflowPolicy policy) {
+        this(handler, capacity, policy, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "alfred-handler-" + handler.getClass().getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * Creates an asynchronous handler that dispatches on the given executor.
+     * The executor is not shut down by this handler
+     *
+     * @param handler The handler to notify
+     * @param capacity The maximum number of queued notifications
+     * @param policy What to do when the queue is full
+     * @param executor The executor used to run the handler
+     */
+    public AsyncStateDeviceHandler(StateDeviceHandler handler, int capacity, OverflowPolicy policy, Executor executor) {
+        this(handler, capacity, policy, executor, false);
+    }
+
+    private AsyncStateDeviceHandler(StateDeviceHandler handler, int capacity, OverflowPolicy policy,
+            Executor executor, boolean owned) {
+        if(handler == null || policy == null || executor == null) throw new NullPointerException();
+        if(capacity < 1) throw new IllegalArgumentException("Error: capacity must be positive");
+        this.handler = handler;
+        this.policy = policy;
+        this.executor = executor;
+        this.ownExecutor = owned ? (ExecutorService) executor : null;
+        this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+    }
+
+    @Override
+    public void onAddDevice(final StateDevice device) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                handler.onAddDevice(device);
+            }
+        });
+    }
+
+    @Override
+    public void onUpdateDevice(final StateDevice device) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                handler.onUpdateDevice(device);
+            }
+        });
+    }
+
+    @Override
+    public void onRemoveDevice(final StateDevice device) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                handler.onRemoveDevice(device);
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceOffline(final StateDevice device) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                if(handler instanceof OfflineStateDeviceHandler) {
+                    ((OfflineStateDeviceHandler) handler).onDeviceOffline(device);
+                } else {
+                    handler.onRemoveDevice(device);
+                }
+            }
+        });
+    }
+
+    /**
+     * The StateDeviceManager only calls this if the wrapped handler is a
+     * batch handler. Otherwise each device is passed on as an update
+     */
+    @Override
+    public void onBatchUpdate(final List<StateDevice> devices) {
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                if(handler instanceof BatchStateDeviceHandler) {
+                    ((BatchStateDeviceHandler) handler).onBatchUpdate(devices);
+                } else {
+                    for(StateDevice device : devices) {
+                        handler.onUpdateDevice(device);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The wrapped handler
+     */
+    public StateDeviceHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return The number of notifications discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return The number of notifications waiting to be delivered
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Stops the dispatch thread if this handler created its own. Queued
+     * notifications that haven't been delivered are discarded, and later
+     * notifications are ignored, so the handler should also be removed from
+     * the StateDeviceManager
+     */
+    public void shutdown() {
+        stopped = true;
+        queue.clear();
+        if(ownExecutor != null) ownExecutor.shutdown();
+    }
+
+    private void enqueue(Runnable notification) {
+        if(stopped) {
+            if(warnedStopped.compareAndSet(false, true)) {
+                log.warn("Handler " + handler + " has been shut down, ignoring its notifications");
+            }
+            return;
+        }
+        switch(policy) {
+        case BLOCK:
+            if(Thread.currentThread() == draining) {
+                if(!queue.offer(notification)) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                break;
+            }
+            try {
+                queue.put(notification);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return;
+            }
+            break;
+        case DROP_NEWEST:
+            if(!queue.offer(notification)) {
+                dropped.incrementAndGet();
+                return;
+            }
+            break;
+        case DROP_OLDEST:
+            while(!queue.offer(notification)) {
+                if(queue.poll() != null) dropped.incrementAndGet();
+            }
+            break;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drain);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+                log.error("Handler executor rejected dispatch, " + queue.size() + " notifications queued", e);
+            }
+        }
+    }
+
+    private void drain() {
+        draining = Thread.currentThread();
+        while(true) {
+            Runnable notification;
+            try {
+                while((notification = queue.poll()) != null) {
+                    try {
+                        notification.run();
+                    } catch (RuntimeException e) {
+                        log.error("Handler " + handler + " failed", e);
+                    }
+                }
+            } finally {
+                draining = null;
+            }
+            scheduled.set(false);
+            // a notification may have been queued after the last poll but
+            // before the flag was cleared
+            if(queue.isEmpty() || !scheduled.compareAndSet(false, true)) return;
+            draining = Thread.currentThread();
+        }
+    }
+}
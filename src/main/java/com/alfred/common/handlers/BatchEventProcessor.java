@@ -0,0 +1,102 @@
+package com.alfred.common.handlers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * Runs a {@link StateDeviceEventListener} against a
+ * {@link StateDeviceEventBus}. The processor waits for the next event to be
+ * published, then delivers every event that is available in one batch before
+ * reporting its progress back to the bus.
+ * <p>
+ * Processors are created and started by
+ * <code>StateDeviceEventBus.addListener</code>.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class BatchEventProcessor implements Runnable {
+
+    // Busy-spin this many times before yielding, then parking
+    private static final int SPIN_TRIES  = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 1000L;
+
+    private final StateDeviceEventBus bus;
+    private final StateDeviceEventListener listener;
+
+    // Sequence of the last processed event
+    private final AtomicLong sequence;
+
+    private volatile boolean running = true;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(BatchEventProcessor.class);
+
+    BatchEventProcessor(StateDeviceEventBus bus, StateDeviceEventListener listener, long start) {
+        this.bus = bus;
+        this.listener = listener;
+        this.sequence = new AtomicLong(start);
+    }
+
+    @Override
+    public void run() {
+        long next = sequence.get() + 1;
+        int idle = 0;
+        while(running) {
+            StateDeviceEvent event = bus.get(next);
+            if(event.getSequence() != next) {
+                idle = backOff(idle);
+                continue;
+            }
+            idle = 0;
+            while(true) {
+                StateDeviceEvent following = bus.get(next + 1);
+                boolean endOfBatch = following.getSequence() != next + 1;
+                try {
+                    listener.onEvent(event, endOfBatch);
+                } catch (RuntimeException e) {
+                    log.error("Listener " + listener + " failed on " + event, e);
+                }
+                next++;
+                if(endOfBatch) break;
+                event = following;
+            }
+            sequence.lazySet(next - 1);
+        }
+    }
+
+    /**
+     * Stops the processor after the current batch
+     */
+    public void halt() {
+        running = false;
+    }
+
+    /**
+     * @return The sequence of the last processed event
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    public StateDeviceEventListener getListener() {
+        return listener;
+    }
+
+    private static int backOff(int idle) {
+        if(idle < SPIN_TRIES) {
+            // spin
+        } else if(idle < YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+            return idle;
+        }
+        return idle + 1;
+    }
+}
@@ -0,0 +1,33 @@
+package com.alfred.common.handlers;
+
+import java.util.List;
+
+import com.alfred.common.datamodel.StateDevice;
+
+/**
+ *
+ * This interface should be implemented by a StateDeviceHandler that wants to
+ * receive a batch of changes in a single call instead of one call per device.
+ * <p>
+ * When a batch is applied with <code>StateDeviceManager.updateStateDevices</code>
+ * or <code>StateDeviceManager.applyStateList</code>, a batch handler receives
+ * one <code>onBatchUpdate</code> call with every device that was added or
+ * changed, and no <code>onAddDevice</code> or <code>onUpdateDevice</code>
+ * calls for them. Other handlers receive the usual per-device calls. Single
+ * device changes are still delivered through the StateDeviceHandler methods.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface BatchStateDeviceHandler extends StateDeviceHandler {
+
+    /**
+     * Called once when a batch of changes is applied to the
+     * StateDeviceManager. Devices whose state didn't change are not included
+     *
+     * @param devices
+     *            A read-only list of the added and updated devices, in the
+     *            order they were applied. Never empty
+     */
+    public void onBatchUpdate(List<StateDevice> devices);
+}
@@ -0,0 +1,30 @@
+package com.alfred.common.handlers;
+
+import com.alfred.common.datamodel.StateDevice;
+
+/**
+ *
+ * This interface should be implemented by a StateDeviceHandler that wants to
+ * tell a device that stopped reporting apart from a device that was removed.
+ * <p>
+ * When a device type has a time to live set with
+ * <code>StateDeviceManager.setDeviceTtl</code>, a device that doesn't report
+ * within it is removed from the StateDeviceManager. An offline handler
+ * receives <code>onDeviceOffline</code> for it instead of
+ * <code>onRemoveDevice</code>. Other handlers receive the usual
+ * <code>onRemoveDevice</code> call.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface OfflineStateDeviceHandler extends StateDeviceHandler {
+
+    /**
+     * Called when a device is removed from the StateDeviceManager because it
+     * stopped reporting
+     *
+     * @param device A reference to the removed state device, with the last
+     *            state it reported
+     */
+    public void onDeviceOffline(StateDevice device);
+}
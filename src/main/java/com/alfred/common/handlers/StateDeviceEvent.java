@@ -0,0 +1,97 @@
+package com.alfred.common.handlers;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ *
+ * A device event published on a {@link StateDeviceEventBus}. Events are
+ * preallocated slots in the bus's ring buffer and are reused once every
+ * listener has processed them, so a listener must copy any field it needs
+ * after <code>onEvent</code> returns.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class StateDeviceEvent {
+
+    /**
+     * The kind of change an event describes
+     */
+    public enum Kind {
+        ADD,
+        UPDATE,
+        REMOVE,
+        /** The device was removed because it stopped reporting */
+        OFFLINE
+    }
+
+    private Kind        kind;
+    private String      id;
+    private Type        type;
+    private State       oldState;
+    private State       newState;
+    private StateDevice device;
+
+    // Written last by the publisher, read first by the processors
+    private volatile long sequence = -1;
+
+    StateDeviceEvent() {
+    }
+
+    void set(Kind kind, StateDevice device, State oldState) {
+        this.kind     = kind;
+        this.id       = device.getId();
+        this.type     = device.getType();
+        this.oldState = oldState;
+        this.newState = device.getState();
+        this.device   = device;
+    }
+
+    void publish(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The state before the change, or null for an added device
+     */
+    public State getOldState() {
+        return oldState;
+    }
+
+    public State getNewState() {
+        return newState;
+    }
+
+    /**
+     * @return The device the event was published for
+     */
+    public StateDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * @return The position of the event in the bus, starting at zero
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + id + " (" + type + ") " + oldState + " -> " + newState + " #" + sequence;
+    }
+}
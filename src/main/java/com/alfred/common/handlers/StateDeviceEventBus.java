@@ -0,0 +1,200 @@
+package com.alfred.common.handlers;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+
+/**
+ *
+ * A preallocated ring buffer of {@link StateDeviceEvent}s. Publishers claim
+ * the next slot, fill it in and mark it published. Each listener is run by its
+ * own {@link BatchEventProcessor}, which follows the publishers around the
+ * ring and delivers events in batches. Publishing never allocates, since the
+ * event slots are reused.
+ * <p>
+ * Publishers never overwrite an event that a listener hasn't processed yet.
+ * When the slowest listener falls a full ring behind, publishers wait for it
+ * to catch up, so the capacity should be large enough to absorb bursts.
+ * <p>
+ * The bus is attached to the StateDeviceManager with
+ * <code>StateDeviceManager.setEventBus</code>. It is usually fed by a single
+ * thread, but publishing is safe from any number of threads.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class StateDeviceEventBus {
+
+    private static final BatchEventProcessor[] NO_PROCESSORS = new BatchEventProcessor[0];
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final StateDeviceEvent[] ring;
+    private final int mask;
+
+    // Sequence of the last claimed slot
+    private final AtomicLong cursor = new AtomicLong(-1);
+
+    // Lowest processed sequence seen by a publisher, so publishers only scan
+    // the processors when they get close to wrapping
+    private volatile long cachedGatingSequence = -1;
+
+    private volatile BatchEventProcessor[] processors = NO_PROCESSORS;
+
+    /**
+     * @param capacity
+     *            The number of event slots. Must be a power of two, and at
+     *            least 2
+     */
+    public StateDeviceEventBus(int capacity) {
+        if(capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Error: capacity must be a power of two");
+        }
+        ring = new StateDeviceEvent[capacity];
+        for(int i = 0; i < capacity; i++) {
+            ring[i] = new StateDeviceEvent();
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Publishes an event
+     *
+     * @param kind The kind of change
+     * @param device The device after the change
+     * @param oldState The state before the change, or null
+     * @return The sequence of the published event
+     */
+    public long publish(Kind kind, StateDevice device, State oldState) {
+        long sequence = cursor.incrementAndGet();
+        long wrapPoint = sequence - ring.length;
+        if(wrapPoint > cachedGatingSequence) {
+            long gating;
+            while(wrapPoint > (gating = getMinimumSequence())) {
+                LockSupport.parkNanos(1L);
+            }
+            cachedGatingSequence = gating;
+        }
+        StateDeviceEvent event = ring[(int) sequence & mask];
+        event.set(kind, device, oldState);
+        event.publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Adds a listener and starts a daemon thread to run its processor. The
+     * listener receives events published after this call
+     *
+     * @param listener The listener to add
+     * @return The processor running the listener
+     */
+    public synchronized BatchEventProcessor addListener(StateDeviceEventListener listener) {
+        BatchEventProcessor processor = new BatchEventProcessor(this, listener, cursor.get());
+        BatchEventProcessor[] updated = Arrays.copyOf(processors, processors.length + 1);
+        updated[updated.length - 1] = processor;
+        processors = updated;
+        cachedGatingSequence = -1;
+        Thread thread = new Thread(processor, "alfred-event-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+        return processor;
+    }
+
+    /**
+     * Adds a StateDeviceHandler as a listener. The handler is called on the
+     * processor's thread
+     *
+     * @param handler The handler to add
+     * @return The processor running the handler
+     */
+    public BatchEventProcessor addHandler(final StateDeviceHandler handler) {
+        return addListener(new StateDeviceEventListener() {
+            @Override
+            public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+                switch(event.getKind()) {
+                case ADD:
+                    handler.onAddDevice(event.getDevice());
+                    break;
+                case UPDATE:
+                    handler.onUpdateDevice(event.getDevice());
+                    break;
+                case REMOVE:
+                    handler.onRemoveDevice(event.getDevice());
+                    break;
+                case OFFLINE:
+                    if(handler instanceof OfflineStateDeviceHandler) {
+                        ((OfflineStateDeviceHandler) handler).onDeviceOffline(event.getDevice());
+                    } else {
+                        handler.onRemoveDevice(event.getDevice());
+                    }
+                    break;
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops a processor and removes it from the bus
+     *
+     * @param processor The processor to remove
+     */
+    public synchronized void removeListener(BatchEventProcessor processor) {
+        processor.halt();
+        BatchEventProcessor[] current = processors;
+        for(int i = 0; i < current.length; i++) {
+            if(current[i] == processor) {
+                BatchEventProcessor[] updated = new BatchEventProcessor[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                processors = updated;
+                cachedGatingSequence = -1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops every processor
+     */
+    public synchronized void shutdown() {
+        for(BatchEventProcessor processor : processors) {
+            processor.halt();
+        }
+        processors = NO_PROCESSORS;
+    }
+
+    /**
+     * @return The sequence of the last claimed event, or -1 if nothing has
+     *         been published
+     */
+    public long getCursor() {
+        return cursor.get();
+    }
+
+    /**
+     * @return The number of event slots
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    StateDeviceEvent get(long sequence) {
+        return ring[(int) sequence & mask];
+    }
+
+    // With no processors nothing has to be waited for, but only up to the
+    // cursor, so a listener added later is still gated on
+    private long getMinimumSequence() {
+        BatchEventProcessor[] current = processors;
+        long minimum = cursor.get();
+        for(BatchEventProcessor processor : current) {
+            minimum = Math.min(minimum, processor.getSequence());
+        }
+        return minimum;
+    }
+}
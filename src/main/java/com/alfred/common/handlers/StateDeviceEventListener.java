@@ -0,0 +1,25 @@
+package com.alfred.common.handlers;
+
+/**
+ *
+ * This interface should be implemented by a class that consumes events from a
+ * {@link StateDeviceEventBus}. Events are delivered in batches: every event
+ * that is available when the listener catches up is delivered back to back,
+ * and the last one is flagged with <code>endOfBatch</code>, which is a good
+ * point to flush any buffered work.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public interface StateDeviceEventListener {
+
+    /**
+     * Called for each published event, in sequence order
+     *
+     * @param event
+     *            The event. The instance is reused after this method returns
+     * @param endOfBatch
+     *            True if no further events are currently available
+     */
+    public void onEvent(StateDeviceEvent event, boolean endOfBatch);
+}
@@ -0,0 +1,169 @@
+package com.alfred.common.handlers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ *
+ * Describes which devices a StateDeviceHandler wants to be notified about. A
+ * handler registered with a subscription is only called for devices that
+ * match it, and the StateDeviceManager indexes subscriptions by device id and
+ * type so handlers that don't match are never looked at.
+ * <p>
+ * A device matches when each part of the subscription that has been set
+ * matches:
+ * <ul>
+ * <li>its id is one of the ids, or starts with one of the id prefixes</li>
+ * <li>its type is one of the types</li>
+ * <li>its state is one of the states</li>
+ * </ul>
+ * For example, a garage door plugin that only cares about doors opening
+ * could subscribe with
+ *
+ * <pre>
+ * new Subscription.Builder()
+ *         .addType(Type.GARAGEDOOR)
+ *         .addState(State.OPEN)
+ *         .build();
+ * </pre>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class Subscription {
+
+    private final Set<String>    ids;
+    private final List<String>   idPrefixes;
+    private final EnumSet<Type>  types;
+    private final EnumSet<State> states;
+
+    /**
+     * Builder constructor
+     *
+     * @param builder The builder constructor
+     */
+    public Subscription(Builder builder) {
+        ids        = Collections.unmodifiableSet(new HashSet<String>(builder.ids));
+        idPrefixes = Collections.unmodifiableList(new ArrayList<String>(builder.idPrefixes));
+        types      = EnumSet.copyOf(builder.types);
+        states     = EnumSet.copyOf(builder.states);
+    }
+
+    /**
+     * @param device A StateDevice
+     * @return True if the device matches this subscription
+     */
+    public boolean matches(StateDevice device) {
+        if(!ids.isEmpty() || !idPrefixes.isEmpty()) {
+            if(!matchesId(device.getId())) return false;
+        }
+        if(!types.isEmpty() && (device.getType() == null || !types.contains(device.getType()))) return false;
+        if(!states.isEmpty() && (device.getState() == null || !states.contains(device.getState()))) return false;
+        return true;
+    }
+
+    /**
+     * @param msg A StateDeviceMessage
+     * @return True if the device in the message matches this subscription.
+     *         A message without a type or state doesn't match a subscription
+     *         on types or states
+     */
+    public boolean matches(StateDeviceMessage msg) {
+        if(!ids.isEmpty() || !idPrefixes.isEmpty()) {
+            if(!matchesId(msg.getId())) return false;
+        }
+        if(!types.isEmpty() && (!msg.hasType() || !types.contains(msg.getType()))) return false;
+        if(!states.isEmpty() && (!msg.hasState() || !states.contains(msg.getState()))) return false;
+        return true;
+    }
+
+    private boolean matchesId(String id) {
+        if(ids.contains(id)) return true;
+        for(String prefix : idPrefixes) {
+            if(id.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The device ids, empty if not restricted by id
+     */
+    public Set<String> getIds() {
+        return ids;
+    }
+
+    /**
+     * @return The device id prefixes, empty if not restricted by prefix
+     */
+    public List<String> getIdPrefixes() {
+        return idPrefixes;
+    }
+
+    /**
+     * @return The device types, empty if not restricted by type
+     */
+    public Set<Type> getTypes() {
+        return Collections.unmodifiableSet(types);
+    }
+
+    /**
+     * @return The device states, empty if not restricted by state
+     */
+    public Set<State> getStates() {
+        return Collections.unmodifiableSet(states);
+    }
+
+    @Override
+    public String toString() {
+        return "Subscription ids=" + ids + " prefixes=" + idPrefixes + " types=" + types + " states=" + states;
+    }
+
+
+    /**
+     * Builder for a Subscription. Parts that are never added don't restrict
+     * the subscription
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    public static class Builder {
+
+        private Set<String> ids = new HashSet<String>();
+        private List<String> idPrefixes = new ArrayList<String>();
+        private EnumSet<Type> types = EnumSet.noneOf(Type.class);
+        private EnumSet<State> states = EnumSet.noneOf(State.class);
+
+        public Builder addId(String id) {
+            ids.add(id);
+            return this;
+        }
+
+        public Builder addIdPrefix(String prefix) {
+            idPrefixes.add(prefix);
+            return this;
+        }
+
+        public Builder addType(Type type) {
+            types.add(type);
+            return this;
+        }
+
+        public Builder addState(State state) {
+            states.add(state);
+            return this;
+        }
+
+        public Subscription build() {
+            return new Subscription(this);
+        }
+    }
+}
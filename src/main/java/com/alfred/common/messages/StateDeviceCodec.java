@@ -0,0 +1,250 @@
+package com.alfred.common.messages;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ *
+ * Reads and writes the <code>StateDeviceMessage</code> wire format directly
+ * between ByteBuffers and the data model, without the generated message
+ * classes. The bytes are the same as the generated code reads and writes, so
+ * either side of a connection can use either one.
+ * <p>
+ * Decoding fills a reusable {@link StateDeviceFlyweight} and allocates
+ * nothing. Encoding writes the fields of a StateDevice straight into a
+ * buffer, where the generated path first builds a message and then encodes
+ * it.
+ * <p>
+ * For example, a loop reading delimited messages from a socket buffer
+ *
+ * <pre>
+ * StateDeviceFlyweight device = new StateDeviceFlyweight();
+ * while(StateDeviceCodec.decodeDelimited(buffer, device)) {
+ *     if(device.idEquals("porch") &amp;&amp; device.getState() == State.ON) ...
+ * }
+ * buffer.compact();
+ * </pre>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class StateDeviceCodec {
+
+    private static final int ID_TAG = 0x0A;
+    private static final int NAME_TAG = 0x12;
+    private static final int TYPE_TAG = 0x18;
+    private static final int STATE_TAG = 0x20;
+
+    private StateDeviceCodec() {
+    }
+
+    /**
+     * Decodes the message between the buffer's position and limit, and moves
+     * the position to the limit
+     */
+    public static void decode(ByteBuffer buffer, StateDeviceFlyweight device) throws InvalidProtocolBufferException {
+        device.wrap(buffer, buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+    }
+
+    /**
+     * Decodes a message prefixed with its length as a varint, as written by
+     * <code>writeDelimitedTo</code>, and moves the position past it
+     *
+     * @return False if the buffer doesn't hold the whole message yet, in which
+     *         case the position isn't moved
+     */
+    public static boolean decodeDelimited(ByteBuffer buffer, StateDeviceFlyweight device)
+            throws InvalidProtocolBufferException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        int length = 0;
+        for(int shift = 0;; shift += 7) {
+            if(position >= limit) return false;
+            if(shift > 28) throw new InvalidProtocolBufferException("CodedInputStream encountered a malformed varint.");
+            byte b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            if(b >= 0) break;
+        }
+        if(length < 0) throw new InvalidProtocolBufferException("CodedInputStream encountered an embedded string "
+                + "or message which claimed to have negative size.");
+        if(limit - position < length) return false;
+        device.wrap(buffer, position, length);
+        buffer.position(position + length);
+        return true;
+    }
+
+    /**
+     * @return The number of bytes <code>encode</code> writes for the device
+     */
+    public static int getSerializedSize(StateDevice device) {
+        int idLength = utf8Length(device.getId());
+        int size = 1 + varintSize(idLength) + idLength;
+        if(device.getName() != null) {
+            int nameLength = utf8Length(device.getName());
+            size += 1 + varintSize(nameLength) + nameLength;
+        }
+        if(device.getType() != null) size += 1 + varintSize(device.getType().getNumber());
+        if(device.getState() != null) size += 1 + varintSize(device.getState().getNumber());
+        return size;
+    }
+
+    /**
+     * Writes the device as a <code>StateDeviceMessage</code> at the buffer's
+     * position, the same bytes as <code>device.toMessage().toByteArray()</code>
+     *
+     * @throws BufferOverflowException If the buffer doesn't have room, in
+     *             which case the position isn't moved
+     */
+    public static void encode(StateDevice device, ByteBuffer buffer) {
+        if(buffer.remaining() < getSerializedSize(device)) throw new BufferOverflowException();
+        write(device, buffer);
+    }
+
+    /**
+     * Writes the device prefixed with its length, the same bytes as
+     * <code>device.toMessage().writeDelimitedTo(out)</code>
+     *
+     * @throws BufferOverflowException If the buffer doesn't have room, in
+     *             which case the position isn't moved
+     */
+    public static void encodeDelimited(StateDevice device, ByteBuffer buffer) {
+        int size = getSerializedSize(device);
+        if(buffer.remaining() < varintSize(size) + size) throw new BufferOverflowException();
+        writeVarint(size, buffer);
+        write(device, buffer);
+    }
+
+    // Fields are written in field number order, as the generated code does
+    private static void write(StateDevice device, ByteBuffer buffer) {
+        writeString(ID_TAG, device.getId(), buffer);
+        if(device.getName() != null) writeString(NAME_TAG, device.getName(), buffer);
+        if(device.getType() != null) {
+            buffer.put((byte) TYPE_TAG);
+            writeVarint(device.getType().getNumber(), buffer);
+        }
+        if(device.getState() != null) {
+            buffer.put((byte) STATE_TAG);
+            writeVarint(device.getState().getNumber(), buffer);
+        }
+    }
+
+    private static void writeString(int tag, String value, ByteBuffer buffer) {
+        buffer.put((byte) tag);
+        writeVarint(utf8Length(value), buffer);
+        int length = value.length();
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                buffer.put((byte) c);
+            } else if(c < 0x800) {
+                buffer.put((byte) (0xC0 | c >>> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if(isPair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | codePoint >>> 18));
+                buffer.put((byte) (0x80 | codePoint >>> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >>> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if(Character.isSurrogate(c)) {
+                // an unpaired surrogate is written as '?', as String.getBytes does
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >>> 12));
+                buffer.put((byte) (0x80 | c >>> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    private static void writeVarint(int value, ByteBuffer buffer) {
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int varintSize(int value) {
+        if(value < 0) return 10;
+        int size = 1;
+        while((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for(int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                bytes += 1;
+            } else if(c < 0x800) {
+                bytes += 2;
+            } else if(isPair(value, i)) {
+                bytes += 4;
+                i++;
+            } else if(Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return True if the UTF-8 bytes in a range of a buffer are the encoding
+     *         of the string
+     */
+    static boolean utf8Equals(String value, ByteBuffer buffer, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        int count = value.length();
+        for(int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                if(position >= end || buffer.get(position++) != (byte) c) return false;
+                continue;
+            }
+            int codePoint;
+            int size;
+            if(c < 0x800) {
+                codePoint = c;
+                size = 2;
+            } else if(isPair(value, i)) {
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+                size = 4;
+            } else if(Character.isSurrogate(c)) {
+                codePoint = '?';
+                size = 1;
+            } else {
+                codePoint = c;
+                size = 3;
+            }
+            if(end - position < size) return false;
+            if(size == 1) {
+                if(buffer.get(position++) != (byte) codePoint) return false;
+                continue;
+            }
+            // the lead byte holds the bits the continuation bytes don't
+            int lead = size == 2 ? 0xC0 : size == 3 ? 0xE0 : 0xF0;
+            if(buffer.get(position++) != (byte) (lead | codePoint >>> 6 * (size - 1))) return false;
+            for(int shift = 6 * (size - 2); shift >= 0; shift -= 6) {
+                if(buffer.get(position++) != (byte) (0x80 | codePoint >>> shift & 0x3F)) return false;
+            }
+        }
+        return position == end;
+    }
+
+    private static boolean isPair(String value, int index) {
+        return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+}
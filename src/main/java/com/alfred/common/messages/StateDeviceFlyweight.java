@@ -0,0 +1,281 @@
+package com.alfred.common.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ *
+ * A reusable view of a serialized <code>StateDeviceMessage</code>, filled in
+ * by {@link StateDeviceCodec#decode}. Decoding only records where each field
+ * is in the buffer, so it allocates nothing, and one flyweight can be used
+ * for every message read on a connection.
+ * <p>
+ * The id, name and data stay in the buffer and are read through their offset
+ * and length, or compared in place with <code>idEquals</code>. The flyweight
+ * is only valid until the buffer is changed or the flyweight is decoded into
+ * again, and must not be shared between threads. Use
+ * <code>toStateDevice</code> to keep a copy.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class StateDeviceFlyweight {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ByteBuffer buffer;
+    private int idOffset;
+    private int idLength;
+    private int nameOffset;
+    private int nameLength;
+    private int dataOffset;
+    private int dataLength;
+    private Type type;
+    private State state;
+    private boolean hasValue;
+    private int value;
+
+    // Position of the next byte while decoding
+    private int cursor;
+
+    /**
+     * Reads the fields of the message in a range of a buffer. The buffer's
+     * position and limit are not changed
+     */
+    void wrap(ByteBuffer buffer, int offset, int length) throws InvalidProtocolBufferException {
+        this.buffer = buffer;
+        idOffset = -1;
+        idLength = 0;
+        nameOffset = -1;
+        nameLength = 0;
+        dataOffset = -1;
+        dataLength = 0;
+        type = null;
+        state = null;
+        hasValue = false;
+        value = 0;
+        cursor = offset;
+        int limit = offset + length;
+        while(cursor < limit) {
+            int tag = (int) readVarint(limit);
+            switch(tag) {
+            case 0x0A:
+                idLength = readLength(limit);
+                idOffset = cursor;
+                cursor += idLength;
+                break;
+            case 0x12:
+                nameLength = readLength(limit);
+                nameOffset = cursor;
+                cursor += nameLength;
+                break;
+            case 0x18:
+                // an unknown number is skipped, like the generated parser does
+                Type t = Type.valueOf((int) readVarint(limit));
+                if(t != null) type = t;
+                break;
+            case 0x20:
+                State s = State.valueOf((int) readVarint(limit));
+                if(s != null) state = s;
+                break;
+            case 0x28:
+                value = (int) readVarint(limit);
+                hasValue = true;
+                break;
+            case 0x32:
+                dataLength = readLength(limit);
+                dataOffset = cursor;
+                cursor += dataLength;
+                break;
+            default:
+                skip(tag, limit);
+            }
+        }
+        if(idOffset < 0) throw new InvalidProtocolBufferException("Message missing required fields: id");
+    }
+
+    private void skip(int tag, int limit) throws InvalidProtocolBufferException {
+        switch(tag & 7) {
+        case 0:
+            readVarint(limit);
+            break;
+        case 1:
+            advance(8, limit);
+            break;
+        case 2:
+            int length = readLength(limit);
+            cursor += length;
+            break;
+        case 5:
+            advance(4, limit);
+            break;
+        default:
+            throw new InvalidProtocolBufferException("Protocol message tag had invalid wire type.");
+        }
+        if(tag >>> 3 == 0) throw new InvalidProtocolBufferException("Protocol message contained an invalid tag (zero).");
+    }
+
+    private void advance(int count, int limit) throws InvalidProtocolBufferException {
+        if(limit - cursor < count) throw truncated();
+        cursor += count;
+    }
+
+    private int readLength(int limit) throws InvalidProtocolBufferException {
+        long length = readVarint(limit);
+        if(length < 0 || length > limit - cursor) throw truncated();
+        return (int) length;
+    }
+
+    private long readVarint(int limit) throws InvalidProtocolBufferException {
+        long result = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            if(cursor >= limit) throw truncated();
+            byte b = buffer.get(cursor++);
+            result |= (long) (b & 0x7F) << shift;
+            if(b >= 0) return result;
+        }
+        throw new InvalidProtocolBufferException("CodedInputStream encountered a malformed varint.");
+    }
+
+    private static InvalidProtocolBufferException truncated() {
+        return new InvalidProtocolBufferException("While parsing a protocol message, the input ended unexpectedly "
+                + "in the middle of a field.");
+    }
+
+    /**
+     * @return The buffer the message is in
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The index in the buffer of the UTF-8 bytes of the id
+     */
+    public int getIdOffset() {
+        return idOffset;
+    }
+
+    /**
+     * @return The number of UTF-8 bytes in the id
+     */
+    public int getIdLength() {
+        return idLength;
+    }
+
+    /**
+     * @return True if the id is the given string, compared without decoding
+     *         the id
+     */
+    public boolean idEquals(String id) {
+        return StateDeviceCodec.utf8Equals(id, buffer, idOffset, idLength);
+    }
+
+    /**
+     * @return The id. Allocates a String
+     */
+    public String getId() {
+        return string(idOffset, idLength);
+    }
+
+    public boolean hasName() {
+        return nameOffset >= 0;
+    }
+
+    /**
+     * @return The name, or null if the message has none. Allocates a String
+     */
+    public String getName() {
+        return hasName() ? string(nameOffset, nameLength) : null;
+    }
+
+    public boolean hasType() {
+        return type != null;
+    }
+
+    /**
+     * @return The type, or null if the message has none
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The ordinal of the type, or -1 if the message has none
+     */
+    public int getTypeOrdinal() {
+        return type == null ? -1 : type.ordinal();
+    }
+
+    public boolean hasState() {
+        return state != null;
+    }
+
+    /**
+     * @return The state, or null if the message has none
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The ordinal of the state, or -1 if the message has none
+     */
+    public int getStateOrdinal() {
+        return state == null ? -1 : state.ordinal();
+    }
+
+    public boolean hasValue() {
+        return hasValue;
+    }
+
+    /**
+     * @return The value, or 0 if the message has none
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public boolean hasData() {
+        return dataOffset >= 0;
+    }
+
+    /**
+     * @return The index in the buffer of the data, or -1 if the message has
+     *         none
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return The same StateDevice as <code>new StateDevice(msg)</code> gives
+     *         for the message
+     */
+    public StateDevice toStateDevice() {
+        return new StateDevice.Builder()
+                .setId(getId())
+                .setName(getName())
+                .setType(type)
+                // a message without a state reads as the default state
+                .setState(state == null ? State.ON : state)
+                .build();
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,234 @@
+package com.alfred.common.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ *
+ * A client connection to a {@link BlockingStateDeviceServer}, served by a
+ * thread of its own. The thread calls the handlers' <code>onConnect</code>,
+ * then reads length-delimited <code>StateDeviceMessage</code>s until the
+ * client disconnects, stays silent for longer than the read timeout, or the
+ * server shuts down.
+ * <p>
+ * Sending only queues the message, so it never blocks. A second thread of the
+ * connection writes the queue out once <code>onConnect</code> has returned,
+ * blocking on the socket as long as the client takes to read, so a slow
+ * client only ever holds up its own writer. The queue works as the
+ * {@link NioConnection}'s does: a newer message for a device replaces one
+ * still waiting, and the queue is kept under the server's limit according to
+ * its {@link SlowConsumerPolicy}.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class BlockingConnection {
+
+    // Most frames written before a flush
+    private static final int MAX_DRAIN = 64;
+
+    // Most bytes of frames written before a flush
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final BlockingStateDeviceServer server;
+    private final Socket socket;
+    private final SocketAddress remoteAddress;
+    private final OutputStream out;
+    private final OutboundQueue outbound;
+    // Wakes the writer when a frame is queued or the connection closes
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Thread thread;
+    private volatile Thread writer;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(BlockingConnection.class);
+
+    BlockingConnection(BlockingStateDeviceServer server, Socket socket) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.remoteAddress = socket.getRemoteSocketAddress();
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.outbound = new OutboundQueue(server.getOutboundLimit(), server.getSlowConsumerPolicy());
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * @return The bytes of the messages waiting to be written
+     */
+    public int getQueuedBytes() {
+        return outbound.getBytes();
+    }
+
+    /**
+     * @return The number of messages dropped because the client was too slow
+     */
+    public long getDroppedCount() {
+        return outbound.getDropped();
+    }
+
+    /**
+     * Queues a message to the client
+     */
+    public void send(StateDeviceMessage msg) {
+        send(MessageFrame.of(msg));
+    }
+
+    /**
+     * Queues a frame to the client. The frame can be sent to other
+     * connections too, it is never changed
+     */
+    public void send(MessageFrame frame) {
+        if(closed.get()) return;
+        if(outbound.offer(frame) == OutboundQueue.OVERFLOW) {
+            log.info("Disconnecting slow client " + remoteAddress);
+            close();
+            return;
+        }
+        wake();
+    }
+
+    /**
+     * Closes the connection, which ends its threads. Queued messages that
+     * haven't been written are dropped
+     */
+    public void close() {
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        outbound.clear();
+        wake();
+        server.disconnected(this);
+    }
+
+    private void wake() {
+        lock.lock();
+        try {
+            queued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    void setThread(Thread thread) {
+        this.thread = thread;
+    }
+
+    Thread getWriter() {
+        return writer;
+    }
+
+    /**
+     * Sets the thread that writes the queue, started once the handlers'
+     * <code>onConnect</code> have returned
+     */
+    void setWriter(Thread writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Serves the connection until it closes. Called on its thread
+     */
+    void serve() {
+        if(!isOpen()) return;
+        try {
+            server.connected(this);
+            writer.start();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] frame = new byte[256];
+            while(isOpen()) {
+                int first = in.read();
+                if(first < 0) break;
+                int length = CodedInputStream.readRawVarint32(first, in);
+                if(length < 0 || length > NioStateDeviceServer.MAX_FRAME_SIZE) {
+                    throw new IOException("Frame of " + (length & 0xFFFFFFFFL) + " bytes is too large");
+                }
+                if(length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+                in.readFully(frame, 0, length);
+                server.received(this, StateDeviceMessage.parseFrom(CodedInputStream.newInstance(frame, 0, length)));
+            }
+        } catch (SocketTimeoutException e) {
+            log.debug("Closing idle connection to " + remoteAddress);
+        } catch (IOException e) {
+            if(isOpen()) log.debug("Closing connection to " + remoteAddress + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Closing connection to " + remoteAddress, e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Writes the queue out until the connection closes. Called on the writer
+     * thread
+     */
+    void write() {
+        List<MessageFrame> drained = new ArrayList<MessageFrame>();
+        try {
+            while(isOpen()) {
+                lock.lock();
+                try {
+                    while(isOpen() && outbound.isIdle()) {
+                        queued.await();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                outbound.drainTo(drained, MAX_DRAIN, MAX_DRAIN_BYTES);
+                if(drained.isEmpty() && outbound.takeResync()) {
+                    log.info("Resyncing slow client " + remoteAddress);
+                    outbound.drainTo(drained, MAX_DRAIN, MAX_DRAIN_BYTES);
+                }
+                for(MessageFrame frame : drained) {
+                    frame.writeTo(out);
+                }
+                drained.clear();
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if(isOpen()) log.debug("Closing connection to " + remoteAddress + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Closing connection to " + remoteAddress, e);
+        } finally {
+            close();
+        }
+    }
+}
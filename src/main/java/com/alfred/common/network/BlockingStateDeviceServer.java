@@ -0,0 +1,316 @@
+package com.alfred.common.network;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+
+/**
+ *
+ * A server for Alfred clients that serves each connection on a thread of its
+ * own, for {@link NetworkHandler}s that use the blocking streams of the socket
+ * they are given in <code>onConnect</code>. Messages use the same
+ * length-delimited framing as the {@link NioStateDeviceServer}.
+ * <p>
+ * On Java 21 and newer each connection gets a virtual thread to read and one
+ * to write, so thousands of connections cost little more memory than their
+ * sockets. On older versions each gets daemon platform threads with a small
+ * stack.
+ * <p>
+ * Messages sent to a connection are queued and written by its own writer
+ * thread, so a broadcast never waits on a client that reads slowly. The
+ * queue of each client is kept under a limit, see
+ * {@link #setOutboundLimit}.
+ * <p>
+ * A connection that sends nothing for longer than the read timeout is closed.
+ * <code>shutdown</code> stops accepting, closes every connection and waits
+ * for their threads to end, so no handler is still running once it returns.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class BlockingStateDeviceServer {
+
+    // Stack size of platform connection threads
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private final InetSocketAddress address;
+    private final int readTimeout;
+    private final ThreadFactory threadFactory;
+    private final NetworkMessageRouter router = new NetworkMessageRouter();
+    private final Set<BlockingConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<BlockingConnection, Boolean>());
+    private volatile int outboundLimit = NioStateDeviceServer.DEFAULT_OUTBOUND_LIMIT;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.RESYNC;
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(BlockingStateDeviceServer.class);
+
+    /**
+     * @param address The address to listen on. Port 0 picks a free port
+     * @param readTimeout How long a connection may go without sending a
+     *            message before it is closed, or 0 for no limit
+     * @param unit The unit of the read timeout
+     */
+    public BlockingStateDeviceServer(InetSocketAddress address, long readTimeout, TimeUnit unit) {
+        this.address = address;
+        this.readTimeout = (int) Math.min(unit.toMillis(readTimeout), Integer.MAX_VALUE);
+        this.threadFactory = VIRTUAL_THREADS != null ? VIRTUAL_THREADS : new PlatformThreadFactory();
+    }
+
+    /**
+     * @return True if connections are served by virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    /**
+     * Adds a handler for every message
+     */
+    public void addNetworkHandler(NetworkHandler handler) {
+        router.addHandler(handler);
+    }
+
+    /**
+     * Adds a handler for the messages that match a subscription. See
+     * {@link NetworkMessageRouter}
+     */
+    public void addNetworkHandler(NetworkHandler handler, Subscription subscription) {
+        router.addHandler(handler, subscription);
+    }
+
+    public void removeNetworkHandler(NetworkHandler handler) {
+        router.removeHandler(handler);
+    }
+
+    /**
+     * Sets how many bytes of messages may wait to be written to one client,
+     * and what to do with a client that reaches the limit. Applies to
+     * connections made after the call. The default is
+     * {@value NioStateDeviceServer#DEFAULT_OUTBOUND_LIMIT} bytes and
+     * {@link SlowConsumerPolicy#RESYNC}
+     */
+    public void setOutboundLimit(int bytes, SlowConsumerPolicy policy) {
+        if(bytes <= 0) throw new IllegalArgumentException("Error: outbound limit must be positive");
+        outboundLimit = bytes;
+        slowConsumerPolicy = policy;
+    }
+
+    int getOutboundLimit() {
+        return outboundLimit;
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Binds the server and starts accepting connections
+     */
+    public synchronized void start() throws IOException {
+        if(running) throw new IllegalStateException("Error: server already started");
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address, 1024);
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "alfred-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Listening on " + serverSocket.getLocalSocketAddress()
+                + (VIRTUAL_THREADS != null ? " with virtual threads" : " with platform threads"));
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return A read-only view of the open connections
+     */
+    public Set<BlockingConnection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Queues a message to every connected client. The message is serialized
+     * once
+     */
+    public void broadcast(StateDeviceMessage msg) {
+        broadcast(MessageFrame.of(msg));
+    }
+
+    /**
+     * Queues a device to every connected client. The device is serialized
+     * once
+     */
+    public void broadcast(StateDevice device) {
+        broadcast(MessageFrame.of(device));
+    }
+
+    /**
+     * Queues a frame to every connected client. Never blocks on a client
+     */
+    public void broadcast(MessageFrame frame) {
+        for(BlockingConnection connection : connections) {
+            connection.send(frame);
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and waits for their
+     * threads to end
+     *
+     * @param timeout The longest time to wait for all of the threads together
+     * @param unit The unit of the timeout
+     * @return True if every thread ended in time
+     */
+    public synchronized boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        if(!running) return true;
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.warn("Couldn't close server socket", e);
+        }
+        boolean ended = join(acceptor, deadline);
+        if(!ended) log.warn("Acceptor thread didn't end");
+        List<BlockingConnection> open = new ArrayList<BlockingConnection>(connections);
+        for(BlockingConnection connection : open) {
+            connection.close();
+        }
+        for(BlockingConnection connection : open) {
+            for(Thread thread : new Thread[] { connection.getThread(), connection.getWriter() }) {
+                if(!join(thread, deadline)) {
+                    log.warn("Connection thread for " + connection.getRemoteAddress() + " didn't end");
+                    return false;
+                }
+            }
+        }
+        if(ended) log.info("Server stopped");
+        return ended;
+    }
+
+    /**
+     * Waits for a thread to end, up to a deadline
+     *
+     * @return True if the thread has ended, or there is none
+     */
+    private static boolean join(Thread thread, long deadline) throws InterruptedException {
+        if(thread == null) return true;
+        long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        // join(0) would wait forever
+        if(wait > 0) thread.join(wait);
+        return !thread.isAlive();
+    }
+
+    private void accept() {
+        while(running) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    socket.setSoTimeout(readTimeout);
+                    socket.setTcpNoDelay(true);
+                    final BlockingConnection connection = new BlockingConnection(this, socket);
+                    connections.add(connection);
+                    Thread thread = threadFactory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            connection.serve();
+                        }
+                    });
+                    connection.setThread(thread);
+                    connection.setWriter(threadFactory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            connection.write();
+                        }
+                    }));
+                    thread.start();
+                } catch (IOException | RuntimeException e) {
+                    log.error("Couldn't start connection", e);
+                    socket.close();
+                }
+            } catch (SocketException e) {
+                if(!running) return;
+                log.error("Couldn't accept connection", e);
+            } catch (IOException e) {
+                log.error("Couldn't accept connection", e);
+            }
+        }
+    }
+
+    void connected(BlockingConnection connection) {
+        router.onConnect(connection.getSocket());
+    }
+
+    void disconnected(BlockingConnection connection) {
+        connections.remove(connection);
+    }
+
+    void received(BlockingConnection connection, StateDeviceMessage msg) {
+        router.onMessageReceived(msg);
+    }
+
+    /**
+     * @return A factory of virtual threads, or null before Java 21. Found
+     *         with reflection since the library is built for Java 8
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "alfred-conn-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static final class PlatformThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(null, task, "alfred-conn-" + count.getAndIncrement(), STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.alfred.common.network;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ *
+ * A <code>StateDeviceMessage</code> serialized once, with its length prefix,
+ * so it can be written to any number of connections without serializing it
+ * again.
+ * <p>
+ * The servers write a frame by handing each connection its own view of the
+ * same read-only bytes. The NIO server writes most frames straight from the
+ * heap, which the socket copies through the JDK's cached temporary direct
+ * buffers. A large frame broadcast to several connections gets one direct
+ * copy that every connection writes from, so it isn't copied once per
+ * connection.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class MessageFrame {
+
+    // Frames at least this large get a direct copy when broadcast
+    static final int DIRECT_THRESHOLD = 8 * 1024;
+
+    private final StateDeviceMessage message;
+    private final byte[] bytes;
+    private volatile ByteBuffer direct;
+
+    private MessageFrame(StateDeviceMessage message, byte[] bytes) {
+        this.message = message;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Serializes a message into a frame
+     */
+    public static MessageFrame of(StateDeviceMessage msg) {
+        int size = msg.getSerializedSize();
+        byte[] bytes = new byte[CodedOutputStream.computeRawVarint32Size(size) + size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            out.writeRawVarint32(size);
+            msg.writeTo(out);
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // writing to an array of the right size can't fail
+            throw new IllegalStateException("Error: couldn't serialize message", e);
+        }
+        return new MessageFrame(msg, bytes);
+    }
+
+    /**
+     * Serializes a device into a frame. Immutable devices, such as those
+     * handed out by the StateDeviceManager, build their message only once
+     */
+    public static MessageFrame of(StateDevice device) {
+        return of(device.toMessage());
+    }
+
+    public StateDeviceMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The size of the frame in bytes, including the length prefix
+     */
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return A new read-only view of the frame, with its own position. The
+     *         bytes themselves are shared, not copied
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer buffer = direct;
+        if(buffer == null) return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        return buffer.duplicate();
+    }
+
+    /**
+     * Makes the direct copy of a large frame that is about to be written to
+     * several connections. Small frames stay on the heap
+     */
+    void shareDirect() {
+        if(bytes.length < DIRECT_THRESHOLD || direct != null) return;
+        // two threads may both make a copy, either is fine to keep
+        ByteBuffer copy = ByteBuffer.allocateDirect(bytes.length);
+        copy.put(bytes);
+        copy.flip();
+        direct = copy.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the frame to a stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,183 @@
+package com.alfred.common.network;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ *
+ * Passes each received message only to the NetworkHandlers that want it,
+ * instead of to every handler. A handler is registered with a
+ * {@link Subscription}, which the router indexes by device id and type the
+ * same way the StateDeviceManager indexes StateDeviceHandlers, so the cost of
+ * a message depends on how many handlers want it rather than on how many are
+ * registered. A handler registered without a subscription gets every message.
+ * <p>
+ * The router is itself a NetworkHandler, and the servers in this package use
+ * one for their handlers. Every handler is called for every new connection.
+ * <p>
+ * For example, a doorbell plugin could register with
+ *
+ * <pre>
+ * router.addHandler(doorbellHandler, new Subscription.Builder()
+ *         .addType(Type.DOORBELL)
+ *         .build());
+ * </pre>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class NetworkMessageRouter implements NetworkHandler {
+
+    private static final Entry[] NONE = new Entry[0];
+
+    private final LinkedHashMap<NetworkHandler, Subscription> registrations = new LinkedHashMap<NetworkHandler, Subscription>();
+
+    private volatile Index index = new Index();
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(NetworkMessageRouter.class);
+
+    /**
+     * Registers a handler for every message
+     */
+    public void addHandler(NetworkHandler handler) {
+        addHandler(handler, null);
+    }
+
+    /**
+     * Registers a handler, replacing the subscription if the handler is
+     * already registered
+     *
+     * @param subscription The subscription, or null for every message
+     */
+    public synchronized void addHandler(NetworkHandler handler, Subscription subscription) {
+        registrations.put(handler, subscription);
+        rebuild();
+    }
+
+    public synchronized void removeHandler(NetworkHandler handler) {
+        if(!registrations.containsKey(handler)) return;
+        registrations.remove(handler);
+        rebuild();
+    }
+
+    /**
+     * @return The registered handlers in registration order
+     */
+    public List<NetworkHandler> getHandlers() {
+        return index.handlers;
+    }
+
+    @Override
+    public void onConnect(Socket connection) {
+        for(NetworkHandler handler : index.handlers) {
+            try {
+                handler.onConnect(connection);
+            } catch (RuntimeException e) {
+                log.error("Network handler failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void onMessageReceived(StateDeviceMessage msg) {
+        Index current = index;
+        deliver(current.wildcard, msg);
+        if(msg.hasType()) {
+            Entry[] entries = current.byType.get(msg.getType());
+            if(entries != null) deliver(entries, msg);
+        }
+        if(!current.byId.isEmpty()) {
+            Entry[] entries = current.byId.get(msg.getId());
+            if(entries != null) deliver(entries, msg);
+        }
+        deliver(current.byPrefix, msg);
+    }
+
+    private static void deliver(Entry[] entries, StateDeviceMessage msg) {
+        for(Entry entry : entries) {
+            if(entry.subscription != null && !entry.subscription.matches(msg)) continue;
+            try {
+                entry.handler.onMessageReceived(msg);
+            } catch (RuntimeException e) {
+                log.error("Network handler failed", e);
+            }
+        }
+    }
+
+    // Each registration is indexed under exactly one kind of key, so a
+    // handler is never found twice for the same message
+    private void rebuild() {
+        List<NetworkHandler> handlers = new ArrayList<NetworkHandler>();
+        List<Entry> wildcard = new ArrayList<Entry>();
+        List<Entry> byPrefix = new ArrayList<Entry>();
+        EnumMap<Type, List<Entry>> byType = new EnumMap<Type, List<Entry>>(Type.class);
+        HashMap<String, List<Entry>> byId = new HashMap<String, List<Entry>>();
+        for(Map.Entry<NetworkHandler, Subscription> registration : registrations.entrySet()) {
+            Entry entry = new Entry(registration.getKey(), registration.getValue());
+            Subscription subscription = entry.subscription;
+            handlers.add(entry.handler);
+            if(subscription == null) {
+                wildcard.add(entry);
+            } else if(!subscription.getIds().isEmpty() && subscription.getIdPrefixes().isEmpty()) {
+                for(String id : subscription.getIds()) {
+                    List<Entry> entries = byId.get(id);
+                    if(entries == null) byId.put(id, entries = new ArrayList<Entry>());
+                    entries.add(entry);
+                }
+            } else if(!subscription.getIdPrefixes().isEmpty()) {
+                byPrefix.add(entry);
+            } else if(!subscription.getTypes().isEmpty()) {
+                for(Type type : subscription.getTypes()) {
+                    List<Entry> entries = byType.get(type);
+                    if(entries == null) byType.put(type, entries = new ArrayList<Entry>());
+                    entries.add(entry);
+                }
+            } else {
+                wildcard.add(entry);
+            }
+        }
+        Index updated = new Index();
+        updated.handlers = Collections.unmodifiableList(handlers);
+        updated.wildcard = wildcard.toArray(NONE);
+        updated.byPrefix = byPrefix.toArray(NONE);
+        for(Map.Entry<Type, List<Entry>> entries : byType.entrySet()) {
+            updated.byType.put(entries.getKey(), entries.getValue().toArray(NONE));
+        }
+        for(Map.Entry<String, List<Entry>> entries : byId.entrySet()) {
+            updated.byId.put(entries.getKey(), entries.getValue().toArray(NONE));
+        }
+        index = updated;
+    }
+
+    private static final class Entry {
+        final NetworkHandler handler;
+        final Subscription subscription;
+
+        Entry(NetworkHandler handler, Subscription subscription) {
+            this.handler = handler;
+            this.subscription = subscription;
+        }
+    }
+
+    private static final class Index {
+        List<NetworkHandler> handlers = Collections.emptyList();
+        Entry[] wildcard = NONE;
+        Entry[] byPrefix = NONE;
+        final EnumMap<Type, Entry[]> byType = new EnumMap<Type, Entry[]>(Type.class);
+        final HashMap<String, Entry[]> byId = new HashMap<String, Entry[]>();
+    }
+}
@@ -0,0 +1,344 @@
+package com.alfred.common.network;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.google.protobuf.CodedInputStream;
+
+/**
+ *
+ * A client connection to a {@link NioStateDeviceServer}. Messages are
+ * length-delimited <code>StateDeviceMessage</code>s in both directions, the
+ * same framing as <code>writeDelimitedTo</code> and
+ * <code>parseDelimitedFrom</code>.
+ * <p>
+ * Sending only queues the message, so it never blocks and can be done from
+ * any thread. The connection's event loop writes the queue out as the client
+ * reads it. While a message for a device is waiting, a newer one for the same
+ * device replaces it, and the queue is kept under a limit set by the server,
+ * so a client that reads slowly only ever falls behind by one state per
+ * device and never holds more than its share of memory. See
+ * {@link SlowConsumerPolicy}.
+ * <p>
+ * When the server has batching turned on, every frame written to the client
+ * is a length-delimited <code>StateListMessage</code> holding the messages
+ * that were waiting, so a burst of changes goes out in a few writes instead
+ * of one per change. A connection that hasn't written for the length of the
+ * batch window writes at once; one that has waits until the window has
+ * passed or a full batch is waiting. The batch is written straight from the
+ * frames of its messages, which are never copied.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class NioConnection {
+
+    // Most buffers written in one gathering write
+    private static final int MAX_GATHER = 16;
+
+    // Most bytes of messages in one batch
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    // The field tag of each message in a StateListMessage
+    private static final ByteBuffer LIST_TAG =
+            ((ByteBuffer) ByteBuffer.allocateDirect(1).put((byte) 0x0A).flip()).asReadOnlyBuffer();
+
+    private final NioStateDeviceServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+
+    private final OutboundQueue outbound;
+    // Nanoseconds a batch may wait, or 0 if batching is off
+    private final long batchWindow;
+    private final int maxBatch;
+    // True while the loop has been asked to write the queue
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Set when the queue overflows under the disconnect policy. The loop
+    // closes the connection, since the channel is only used there
+    private volatile boolean overflowed;
+
+    // Only used on the event loop
+    private SelectionKey key;
+    private ByteBuffer partial;
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+    private final List<MessageFrame> drained = new ArrayList<MessageFrame>();
+    private final ByteBuffer[] gather;
+    private final ByteBuffer batchPrefix;
+    private long nextBatch;
+    private long flushTime;
+    private boolean delayed;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(NioConnection.class);
+
+    NioConnection(NioStateDeviceServer server, NioEventLoop loop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = channel.getRemoteAddress();
+        this.outbound = new OutboundQueue(server.getOutboundLimit(), server.getSlowConsumerPolicy());
+        this.batchWindow = server.getBatchWindow();
+        this.maxBatch = server.getMaxBatch();
+        if(batchWindow > 0) {
+            // a length prefix, then a tag and a frame per message
+            gather = new ByteBuffer[2 * maxBatch + 1];
+            batchPrefix = ByteBuffer.allocateDirect(5);
+            nextBatch = System.nanoTime();
+        } else {
+            gather = new ByteBuffer[MAX_GATHER];
+            batchPrefix = null;
+        }
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * @return The socket of the connection. It is in non-blocking mode, so
+     *         its streams can't be used
+     */
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * @return The bytes of the messages waiting to be written
+     */
+    public int getQueuedBytes() {
+        return outbound.getBytes();
+    }
+
+    /**
+     * @return The number of messages dropped because the client was too slow
+     */
+    public long getDroppedCount() {
+        return outbound.getDropped();
+    }
+
+    /**
+     * Queues a message to the client
+     */
+    public void send(StateDeviceMessage msg) {
+        send(MessageFrame.of(msg));
+    }
+
+    /**
+     * Queues a frame to the client. The frame can be sent to other
+     * connections too, it is never changed
+     */
+    public void send(MessageFrame frame) {
+        if(closed.get() || overflowed) return;
+        if(outbound.offer(frame) == OutboundQueue.OVERFLOW) overflowed = true;
+        if(flushScheduled.compareAndSet(false, true)) loop.flush(this);
+    }
+
+    /**
+     * Closes the connection. Queued messages that haven't been written are
+     * discarded
+     */
+    public void close() {
+        if(!closed.compareAndSet(false, true)) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        outbound.clear();
+        server.disconnected(this);
+    }
+
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        server.connected(this);
+    }
+
+    /**
+     * Reads what the client has sent and passes on every complete message.
+     * Called on the event loop with its shared buffer
+     */
+    void read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        if(read < 0) {
+            close();
+            return;
+        }
+        if(read == 0) return;
+        buffer.flip();
+        if(partial == null) {
+            decode(buffer);
+            if(buffer.hasRemaining() && isOpen()) {
+                // keep the start of a frame until the rest arrives
+                partial = ByteBuffer.allocate(Math.max(buffer.remaining(), 256));
+                partial.put(buffer);
+            }
+        } else {
+            if(partial.remaining() < buffer.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.capacity() * 2,
+                        partial.position() + buffer.remaining()));
+                partial.flip();
+                grown.put(partial);
+                partial = grown;
+            }
+            partial.put(buffer);
+            partial.flip();
+            decode(partial);
+            if(partial.hasRemaining()) partial.compact();
+            else partial = null;
+        }
+    }
+
+    private void decode(ByteBuffer in) throws IOException {
+        while(in.hasRemaining() && isOpen()) {
+            int start = in.position();
+            int length = readLength(in);
+            if(length < 0 || in.remaining() < length) {
+                in.position(start);
+                return;
+            }
+            ByteBuffer frame = in.duplicate();
+            frame.limit(in.position() + length);
+            in.position(in.position() + length);
+            server.received(this, StateDeviceMessage.parseFrom(CodedInputStream.newInstance(frame)));
+        }
+    }
+
+    /**
+     * @return The varint length at the buffer's position, or -1 if it hasn't
+     *         all arrived
+     */
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            if(!in.hasRemaining()) return -1;
+            byte b = in.get();
+            length |= (b & 0x7F) << shift;
+            if(b >= 0) {
+                if(length < 0 || length > NioStateDeviceServer.MAX_FRAME_SIZE) {
+                    throw new IOException("Frame of " + (length & 0xFFFFFFFFL) + " bytes is too large");
+                }
+                return length;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    /**
+     * Writes as much of the queue as the socket takes, and waits for the
+     * socket to be writable if some is left. Called on the event loop
+     */
+    void write() throws IOException {
+        flushScheduled.set(false);
+        if(key == null || !isOpen()) return;
+        if(overflowed) {
+            log.info("Disconnecting slow client " + remoteAddress);
+            close();
+            return;
+        }
+        while(true) {
+            if(writing.isEmpty() && !fill()) {
+                // closed by another thread since the check above
+                if(key.isValid()) key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            int count = 0;
+            for(ByteBuffer buffer : writing) {
+                gather[count++] = buffer;
+            }
+            channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            while(!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                writing.poll();
+            }
+            if(!writing.isEmpty()) {
+                if(key.isValid()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the next frames to write from the queue, or a batch of them if
+     * batching is on
+     *
+     * @return False if there is nothing to write yet
+     */
+    private boolean fill() {
+        if(outbound.isIdle()) return false;
+        int max = MAX_GATHER;
+        int maxBytes = Integer.MAX_VALUE;
+        if(batchWindow > 0) {
+            long now = System.nanoTime();
+            if(now - nextBatch < 0 && outbound.size() < maxBatch && !outbound.isSnapshotting()) {
+                // wrote a batch recently, so wait for more to arrive
+                if(!delayed) {
+                    delayed = true;
+                    flushTime = nextBatch;
+                    loop.delay(this);
+                }
+                return false;
+            }
+            nextBatch = now + batchWindow;
+            max = maxBatch;
+            maxBytes = MAX_BATCH_BYTES;
+        }
+        outbound.drainTo(drained, max, maxBytes);
+        if(drained.isEmpty() && outbound.takeResync()) {
+            log.info("Resyncing slow client " + remoteAddress);
+            outbound.drainTo(drained, max, maxBytes);
+        }
+        if(drained.isEmpty()) return false;
+        if(batchWindow > 0) {
+            int size = 0;
+            for(MessageFrame frame : drained) {
+                size += 1 + frame.size();
+            }
+            batchPrefix.clear();
+            while((size & ~0x7F) != 0) {
+                batchPrefix.put((byte) ((size & 0x7F) | 0x80));
+                size >>>= 7;
+            }
+            batchPrefix.put((byte) size);
+            batchPrefix.flip();
+            writing.add(batchPrefix);
+        }
+        for(MessageFrame frame : drained) {
+            if(batchWindow > 0) writing.add(LIST_TAG.duplicate());
+            writing.add(frame.getBuffer());
+        }
+        drained.clear();
+        return true;
+    }
+
+    /**
+     * @return When the loop should write the waiting batch
+     */
+    long getFlushTime() {
+        return flushTime;
+    }
+
+    void undelay() {
+        delayed = false;
+    }
+}
@@ -0,0 +1,192 @@
+package com.alfred.common.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One thread of a {@link NioStateDeviceServer}, running a selector over its
+ * share of the connections. Every read on the loop goes through one direct
+ * buffer, so a connection only holds a buffer of its own while a frame it is
+ * receiving is split across reads.
+ * <p>
+ * Other threads hand work to the loop through queues and wake the selector,
+ * so a connection's channel and selection key are only used on its loop. A
+ * connection that batches its output can also ask the loop to write again at
+ * a later time, which the loop waits for in its select.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class NioEventLoop implements Runnable {
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<NioConnection> registering = new ConcurrentLinkedQueue<NioConnection>();
+    private final Queue<NioConnection> flushing = new ConcurrentLinkedQueue<NioConnection>();
+    // Connections waiting to write a batch, soonest first. Only used on the
+    // loop
+    private final PriorityQueue<NioConnection> delayed = new PriorityQueue<NioConnection>(16,
+            new Comparator<NioConnection>() {
+                @Override
+                public int compare(NioConnection a, NioConnection b) {
+                    return Long.signum(a.getFlushTime() - b.getFlushTime());
+                }
+            });
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Adds a newly accepted connection to the loop
+     */
+    void register(NioConnection connection) {
+        registering.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write a connection's queued output
+     */
+    void flush(NioConnection connection) {
+        flushing.add(connection);
+        if(!inLoop()) selector.wakeup();
+    }
+
+    /**
+     * Asks the loop to write a connection's queued output at its flush time.
+     * Called on the loop
+     */
+    void delay(NioConnection connection) {
+        delayed.add(connection);
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while(running) {
+                NioConnection next = delayed.peek();
+                if(next == null) {
+                    selector.select();
+                } else {
+                    long wait = next.getFlushTime() - System.nanoTime();
+                    if(wait > 0) selector.select(Math.max(TimeUnit.NANOSECONDS.toMillis(wait), 1));
+                    else selector.selectNow();
+                }
+                registerPending();
+                flushPending();
+                flushDelayed();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    process(key);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            log.error("Event loop failed", e);
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Couldn't close selector", e);
+            }
+        }
+    }
+
+    private void process(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if(key.isValid() && key.isReadable()) connection.read(readBuffer);
+            if(key.isValid() && key.isWritable()) connection.write();
+        } catch (IOException e) {
+            log.debug("Closing connection to " + connection.getRemoteAddress() + ": " + e.getMessage());
+            connection.close();
+        } catch (RuntimeException e) {
+            log.error("Closing connection to " + connection.getRemoteAddress(), e);
+            connection.close();
+        }
+    }
+
+    private void registerPending() {
+        NioConnection connection;
+        while((connection = registering.poll()) != null) {
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                log.warn("Couldn't register connection to " + connection.getRemoteAddress(), e);
+                connection.close();
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioConnection connection;
+        while((connection = flushing.poll()) != null) {
+            write(connection);
+        }
+    }
+
+    private void flushDelayed() {
+        long now = System.nanoTime();
+        NioConnection connection;
+        while((connection = delayed.peek()) != null && connection.getFlushTime() - now <= 0) {
+            delayed.poll();
+            connection.undelay();
+            write(connection);
+        }
+    }
+
+    private void write(NioConnection connection) {
+        try {
+            connection.write();
+        } catch (IOException e) {
+            log.debug("Closing connection to " + connection.getRemoteAddress() + ": " + e.getMessage());
+            connection.close();
+        } catch (RuntimeException e) {
+            log.error("Closing connection to " + connection.getRemoteAddress(), e);
+            connection.close();
+        }
+    }
+}
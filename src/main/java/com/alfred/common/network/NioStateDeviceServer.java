@@ -0,0 +1,296 @@
+package com.alfred.common.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+
+/**
+ *
+ * A server for Alfred clients that doesn't need a thread per connection. One
+ * thread accepts connections and hands them to a small pool of event loops,
+ * each running a selector over its share of the connections, so thousands of
+ * clients can be served by a handful of threads on a Raspberry Pi.
+ * <p>
+ * Clients send and receive length-delimited <code>StateDeviceMessage</code>s.
+ * Each {@link NetworkHandler} added to the server is called with
+ * <code>onConnect</code> for every new connection and with
+ * <code>onMessageReceived</code> for every message it subscribed to, on the
+ * connection's event loop. Handlers must return quickly, and must not use the streams of the
+ * socket they are given since the socket is in non-blocking mode. Replies are
+ * sent through {@link NioConnection#send} or {@link #broadcast}, which
+ * serializes each message once however many clients it goes to.
+ * <p>
+ * For example
+ *
+ * <pre>
+ * NioStateDeviceServer server = new NioStateDeviceServer(56);
+ * server.addNetworkHandler(handler);
+ * server.start();
+ * </pre>
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class NioStateDeviceServer {
+
+    /**
+     * The largest message a client may send, in bytes
+     */
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    /**
+     * The default limit of the bytes queued for one client
+     */
+    public static final int DEFAULT_OUTBOUND_LIMIT = 256 * 1024;
+
+    private static final int BACKLOG = 1024;
+
+    private final InetSocketAddress address;
+    private final int eventLoops;
+    private final NetworkMessageRouter router = new NetworkMessageRouter();
+    private final Set<NioConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<NioConnection, Boolean>());
+
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] loops;
+    private Thread acceptor;
+    private volatile boolean running;
+    private volatile int outboundLimit = DEFAULT_OUTBOUND_LIMIT;
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.RESYNC;
+    private volatile long batchWindow;
+    private volatile int maxBatch;
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(NioStateDeviceServer.class);
+
+    /**
+     * Creates a server on a port with an event loop per processor
+     */
+    public NioStateDeviceServer(int port) {
+        this(new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param address The address to listen on. Port 0 picks a free port
+     * @param eventLoops The number of event loop threads
+     */
+    public NioStateDeviceServer(InetSocketAddress address, int eventLoops) {
+        if(eventLoops < 1) throw new IllegalArgumentException("Error: at least one event loop is needed");
+        this.address = address;
+        this.eventLoops = eventLoops;
+    }
+
+    /**
+     * Adds a handler for every message
+     */
+    public void addNetworkHandler(NetworkHandler handler) {
+        router.addHandler(handler);
+    }
+
+    /**
+     * Adds a handler for the messages that match a subscription. See
+     * {@link NetworkMessageRouter}
+     */
+    public void addNetworkHandler(NetworkHandler handler, Subscription subscription) {
+        router.addHandler(handler, subscription);
+    }
+
+    public void removeNetworkHandler(NetworkHandler handler) {
+        router.removeHandler(handler);
+    }
+
+    /**
+     * Sets how many bytes of messages may wait to be written to one client,
+     * and what to do with a client that reaches the limit. Applies to
+     * connections made after the call. The default is
+     * {@value #DEFAULT_OUTBOUND_LIMIT} bytes and {@link SlowConsumerPolicy#RESYNC}
+     */
+    public void setOutboundLimit(int bytes, SlowConsumerPolicy policy) {
+        if(bytes <= 0) throw new IllegalArgumentException("Error: outbound limit must be positive");
+        outboundLimit = bytes;
+        slowConsumerPolicy = policy;
+    }
+
+    /**
+     * Turns on batching of the messages to each client. Every frame written
+     * is then a length-delimited <code>StateListMessage</code> instead of a
+     * <code>StateDeviceMessage</code>, so only clients that expect lists
+     * should connect to a batching server. Applies to connections made after
+     * the call.
+     * <p>
+     * A client that hasn't been written to for the length of the window gets
+     * a message at once. After that, messages wait until the window has
+     * passed or a full batch is waiting, so batching only adds delay while
+     * messages are arriving faster than one per window.
+     *
+     * @param window The longest a message waits for others to join its batch,
+     *            or 0 to turn batching off
+     * @param unit The unit of the window
+     * @param maxMessages The most messages in one batch
+     */
+    public void setBatching(long window, TimeUnit unit, int maxMessages) {
+        if(window > 0 && maxMessages < 1) throw new IllegalArgumentException("Error: a batch needs at least one message");
+        batchWindow = unit.toNanos(window);
+        maxBatch = maxMessages;
+    }
+
+    int getOutboundLimit() {
+        return outboundLimit;
+    }
+
+    SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    long getBatchWindow() {
+        return batchWindow;
+    }
+
+    int getMaxBatch() {
+        return maxBatch;
+    }
+
+    /**
+     * Binds the server and starts its threads
+     */
+    public synchronized void start() throws IOException {
+        if(running) throw new IllegalStateException("Error: server already started");
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, BACKLOG);
+        loops = new NioEventLoop[eventLoops];
+        for(int i = 0; i < eventLoops; i++) {
+            loops[i] = new NioEventLoop("alfred-nio-" + i);
+            loops[i].start();
+        }
+        running = true;
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "alfred-nio-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Listening on " + serverChannel.getLocalAddress() + " with " + eventLoops + " event loops");
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * @return A read-only view of the open connections
+     */
+    public Set<NioConnection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    /**
+     * Sends a message to every connected client. The message is serialized
+     * once and the same bytes are written to every connection
+     */
+    public void broadcast(StateDeviceMessage msg) {
+        broadcast(MessageFrame.of(msg));
+    }
+
+    /**
+     * Sends a device to every connected client. The device is serialized
+     * once and the same bytes are written to every connection
+     */
+    public void broadcast(StateDevice device) {
+        broadcast(MessageFrame.of(device));
+    }
+
+    /**
+     * Sends a frame to every connected client
+     */
+    public void broadcast(MessageFrame frame) {
+        if(connections.size() > 1) frame.shareDirect();
+        for(NioConnection connection : connections) {
+            connection.send(frame);
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes the open ones and stops the event
+     * loops
+     */
+    public synchronized void shutdown() {
+        if(!running) return;
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.warn("Couldn't close server socket", e);
+        }
+        for(NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        try {
+            acceptor.join(1000);
+            for(NioEventLoop loop : loops) {
+                loop.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Server stopped");
+    }
+
+    private void accept() {
+        int next = 0;
+        while(running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioEventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(new NioConnection(this, loop, channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // for example out of file descriptors, which may pass
+                log.error("Couldn't accept connection", e);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    void connected(NioConnection connection) {
+        connections.add(connection);
+        router.onConnect(connection.getSocket());
+    }
+
+    void disconnected(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    void received(NioConnection connection, StateDeviceMessage msg) {
+        router.onMessageReceived(msg);
+    }
+}
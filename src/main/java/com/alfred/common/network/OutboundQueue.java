@@ -0,0 +1,188 @@
+package com.alfred.common.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.alfred.common.datamodel.ImmutableStateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+
+/**
+ * The frames waiting to be written to one connection. Only the newest frame
+ * for each device id is kept, in the place of the first one queued, so a
+ * device that changes many times while the client is slow takes up one entry.
+ * <p>
+ * The bytes of the queued frames are kept under a limit. What happens to a
+ * frame that would go over it depends on the connection's
+ * {@link SlowConsumerPolicy}.
+ * <p>
+ * A resync sends the current state of every device. The states are read from
+ * the device manager a few at a time as the client takes them, so a resync
+ * of a registry of any size holds no more than one drain's worth of frames.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+class OutboundQueue {
+
+    /** The frame was queued, or replaced an older frame for its device */
+    static final int QUEUED = 0;
+    /** The frame was dropped */
+    static final int DROPPED = 1;
+    /** The limit was reached and the connection should be closed */
+    static final int OVERFLOW = 2;
+
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+    private final LinkedHashMap<String, MessageFrame> pending = new LinkedHashMap<String, MessageFrame>();
+    private int bytes;
+    private boolean resyncing;
+    // The devices still to send in a resync, or null
+    private Iterator<ImmutableStateDevice> snapshot;
+    // A frame read from the snapshot that didn't fit in the last drain
+    private MessageFrame snapshotNext;
+    // Set when an update is dropped during a resync, which then runs again
+    private boolean missed;
+    private boolean holding;
+    private long dropped;
+
+    OutboundQueue(int limit, SlowConsumerPolicy policy) {
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    synchronized int offer(MessageFrame frame) {
+        if(resyncing) {
+            dropped++;
+            return DROPPED;
+        }
+        String id = frame.getMessage().getId();
+        MessageFrame previous = pending.get(id);
+        if(previous != null) {
+            // replacing a value keeps its place in the map
+            pending.put(id, frame);
+            bytes += frame.size() - previous.size();
+            return QUEUED;
+        }
+        if(holding && bytes > limit / 2) {
+            dropped++;
+            return DROPPED;
+        }
+        holding = false;
+        if(bytes + frame.size() > limit) {
+            if(snapshot != null) {
+                // the resync under way may already have sent the device, so
+                // it is sent again by another resync rather than starting
+                // over
+                missed = true;
+                dropped++;
+                return DROPPED;
+            }
+            switch(policy) {
+            case DISCONNECT:
+                return OVERFLOW;
+            case RESYNC:
+                pending.clear();
+                bytes = 0;
+                resyncing = true;
+                dropped++;
+                return DROPPED;
+            default:
+                holding = true;
+                dropped++;
+                return DROPPED;
+            }
+        }
+        pending.put(id, frame);
+        bytes += frame.size();
+        return QUEUED;
+    }
+
+    /**
+     * Moves frames from the head of the queue to a list, up to a number of
+     * frames and a number of bytes, then the next devices of a resync under
+     * way. At least one frame is moved if the queue isn't empty
+     */
+    synchronized void drainTo(List<MessageFrame> frames, int max, int maxBytes) {
+        Iterator<MessageFrame> iterator = pending.values().iterator();
+        int taken = 0;
+        while(iterator.hasNext() && frames.size() < max) {
+            MessageFrame frame = iterator.next();
+            if(taken > 0 && taken + frame.size() > maxBytes) return;
+            taken += frame.size();
+            iterator.remove();
+            bytes -= frame.size();
+            frames.add(frame);
+        }
+        // a device updated since the resync began may be sent twice, the
+        // snapshot is read later so it is never older than the update
+        while(snapshot != null && frames.size() < max) {
+            if(snapshotNext == null) {
+                if(!snapshot.hasNext()) {
+                    endSnapshot();
+                    return;
+                }
+                snapshotNext = MessageFrame.of(snapshot.next());
+            }
+            if(taken > 0 && taken + snapshotNext.size() > maxBytes) return;
+            taken += snapshotNext.size();
+            frames.add(snapshotNext);
+            snapshotNext = null;
+        }
+    }
+
+    private void endSnapshot() {
+        snapshot = null;
+        if(missed) {
+            missed = false;
+            resyncing = true;
+        }
+    }
+
+    /**
+     * Starts sending the current state of every device if the queue is
+     * waiting for a resync and is empty. Updates are queued again from then
+     * on
+     *
+     * @return True if the resync was started
+     */
+    synchronized boolean takeResync() {
+        if(!resyncing || !pending.isEmpty()) return false;
+        resyncing = false;
+        snapshot = StateDeviceManager.getImmutableDevices().iterator();
+        return true;
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return True if a resync is being sent
+     */
+    synchronized boolean isSnapshotting() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return True if nothing is queued and no resync is waiting or under way
+     */
+    synchronized boolean isIdle() {
+        return pending.isEmpty() && !resyncing && snapshot == null;
+    }
+
+    synchronized void clear() {
+        pending.clear();
+        bytes = 0;
+        snapshot = null;
+        snapshotNext = null;
+    }
+
+    synchronized int getBytes() {
+        return bytes;
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
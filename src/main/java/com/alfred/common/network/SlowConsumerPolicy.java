@@ -0,0 +1,26 @@
+package com.alfred.common.network;
+
+/**
+ *
+ * What a {@link NioStateDeviceServer} or {@link BlockingStateDeviceServer}
+ * does with a client whose queue of unsent messages grows past its limit
+ * because the client reads too slowly.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public enum SlowConsumerPolicy {
+    /** Close the connection. The client gets the current states when it reconnects */
+    DISCONNECT,
+    /**
+     * Discard the queue and every update until the client has read what was
+     * already written, then send it the current state of every device
+     */
+    RESYNC,
+    /**
+     * Keep the client connected, and drop updates for devices that don't
+     * already have one queued until the queue has drained to half its limit.
+     * The client may be left with stale states for the dropped devices
+     */
+    HOLD
+}
@@ -0,0 +1,238 @@
+package com.alfred.common.rules;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.alfred.common.datamodel.ImmutableStateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ *
+ * An automation run by a {@link RuleEngine}: when every condition holds, set
+ * some devices to some states. For example
+ *
+ * <pre>
+ * Rule rule = new Rule.Builder("porch light on doorbell")
+ *         .when("doorbell1", State.ACTIVE)
+ *         .between(LocalTime.of(18, 0), LocalTime.of(6, 0))
+ *         .then("porch1", State.ON)
+ *         .build();
+ * </pre>
+ * <p>
+ * A condition is either a device in a state, or any device of a type in a
+ * state. A rule runs when a device change makes one of its conditions true
+ * and the others already hold, so it runs once per change rather than for as
+ * long as the conditions hold. An optional time of day window limits when the
+ * rule may run.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public final class Rule {
+
+    private final String _name;
+    private final List<Condition> _conditions;
+    private final List<Action> _actions;
+    private final LocalTime _from;
+    private final LocalTime _to;
+
+    private Rule(Builder builder) {
+        _name = builder.name;
+        _conditions = Collections.unmodifiableList(new ArrayList<Condition>(builder.conditions));
+        _actions = Collections.unmodifiableList(new ArrayList<Action>(builder.actions));
+        _from = builder.from;
+        _to = builder.to;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public List<Condition> getConditions() {
+        return _conditions;
+    }
+
+    public List<Action> getActions() {
+        return _actions;
+    }
+
+    /**
+     * @return True if the rule may run at the time of day
+     */
+    boolean isActiveAt(LocalTime time) {
+        if(_from == null) return true;
+        // a window such as 18:00 to 06:00 wraps past midnight
+        if(_from.isBefore(_to)) return !time.isBefore(_from) && time.isBefore(_to);
+        return !time.isBefore(_from) || time.isBefore(_to);
+    }
+
+    /**
+     * @return True if every condition holds in the StateDeviceManager
+     */
+    boolean conditionsHold() {
+        for(Condition condition : _conditions) {
+            if(!condition.holds()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+    /**
+     * A device, or any device of a type, in a state
+     */
+    public static final class Condition {
+        private final String _id;
+        private final Type _type;
+        private final State _state;
+
+        Condition(String id, Type type, State state) {
+            _id = id;
+            _type = type;
+            _state = state;
+        }
+
+        /**
+         * @return The device id, or null if the condition is on a type
+         */
+        public String getId() {
+            return _id;
+        }
+
+        /**
+         * @return The device type, or null if the condition is on a device
+         */
+        public Type getType() {
+            return _type;
+        }
+
+        public State getState() {
+            return _state;
+        }
+
+        boolean holds() {
+            if(_id == null) return StateDeviceManager.countDevices(_type, _state) > 0;
+            ImmutableStateDevice device = StateDeviceManager.getImmutableDevice(_id);
+            return device != null && device.getState() == _state;
+        }
+
+        @Override
+        public String toString() {
+            return (_id != null ? _id : "any " + _type) + " is " + _state;
+        }
+    }
+
+    /**
+     * Sets a device to a state
+     */
+    public static final class Action {
+        private final String _id;
+        private final State _state;
+
+        Action(String id, State state) {
+            _id = id;
+            _state = state;
+        }
+
+        public String getId() {
+            return _id;
+        }
+
+        public State getState() {
+            return _state;
+        }
+
+        void run() {
+            StateDeviceManager.updateStateDevice(_id, _state);
+        }
+
+        @Override
+        public String toString() {
+            return "set " + _id + " to " + _state;
+        }
+    }
+
+    /**
+     * Builder for a Rule
+     *
+     * @author Kevin Kanzelmeyer
+     *
+     */
+    public static class Builder {
+
+        private final String name;
+        private final List<Condition> conditions = new ArrayList<Condition>();
+        private final List<Action> actions = new ArrayList<Action>();
+        private LocalTime from;
+        private LocalTime to;
+
+        /**
+         * @param name A name for the rule, used in log messages and to remove
+         *            it
+         */
+        public Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Adds a condition that a device is in a state
+         */
+        public Builder when(String id, State state) {
+            conditions.add(new Condition(id, null, state));
+            return this;
+        }
+
+        /**
+         * Adds a condition that any device of a type is in a state
+         */
+        public Builder when(Type type, State state) {
+            conditions.add(new Condition(null, type, state));
+            return this;
+        }
+
+        /**
+         * Limits the rule to a time of day window. The window may wrap past
+         * midnight
+         *
+         * @param from The start of the window, inclusive
+         * @param to The end of the window, exclusive
+         */
+        public Builder between(LocalTime from, LocalTime to) {
+            this.from = from;
+            this.to = to;
+            return this;
+        }
+
+        /**
+         * Adds an action that sets a device to a state
+         */
+        public Builder then(String id, State state) {
+            actions.add(new Action(id, state));
+            return this;
+        }
+
+        public Rule build() {
+            if(name == null) throw new IllegalArgumentException("Error: missing rule name");
+            if(conditions.isEmpty()) throw new IllegalArgumentException("Error: rule " + name + " has no conditions");
+            if(actions.isEmpty()) throw new IllegalArgumentException("Error: rule " + name + " has no actions");
+            for(Condition condition : conditions) {
+                if((condition.getId() == null && condition.getType() == null) || condition.getState() == null) {
+                    throw new IllegalArgumentException("Error: rule " + name + " has an incomplete condition");
+                }
+            }
+            for(Action action : actions) {
+                if(action.getId() == null || action.getState() == null) {
+                    throw new IllegalArgumentException("Error: rule " + name + " has an incomplete action");
+                }
+            }
+            return new Rule(this);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.alfred.common.rules;
+
+import java.time.Clock;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.alfred.common.datamodel.ImmutableStateDevice;
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.BatchStateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.rules.Rule.Action;
+import com.alfred.common.rules.Rule.Condition;
+
+/**
+ *
+ * Runs {@link Rule}s as devices change. The engine is a StateDeviceHandler, so
+ * it is started by adding it to the StateDeviceManager
+ *
+ * <pre>
+ * RuleEngine engine = new RuleEngine();
+ * engine.addRule(rule);
+ * StateDeviceManager.addDeviceHandler(engine);
+ * </pre>
+ * <p>
+ * Rules are indexed by the facts their conditions test, a device id and state
+ * or a device type and state, much like the first layer of a Rete network. A
+ * change looks up the rules with a condition on the device's new state in two
+ * array lookups, and only those rules test their other conditions. A change
+ * no rule depends on costs no more than the lookups, however many rules there
+ * are.
+ * <p>
+ * Adding a rule that could trigger itself through the actions of other rules
+ * fails with an <code>IllegalArgumentException</code>. A rule doesn't say the
+ * type of the devices its actions set, so the check takes the type of each
+ * device from the StateDeviceManager when the rule is added, and takes an
+ * action on a device that isn't there yet to trigger every rule with a
+ * condition on a type in the action's state. Whether a set of rules is
+ * refused can therefore depend on the devices present when they are added,
+ * and the check isn't repeated when devices come and go. As a last guard, a
+ * chain of changes made by rules in response to each other is stopped after
+ * {@value #MAX_DEPTH} changes, however the changes are delivered. The depth
+ * is taken from the StateDeviceManager, so it isn't seen by an engine wrapped
+ * in an {@link com.alfred.common.handlers.AsyncStateDeviceHandler}.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+public class RuleEngine implements BatchStateDeviceHandler {
+
+    /**
+     * The longest chain of changes made by handlers in response to each
+     * other that rules still run for
+     */
+    public static final int MAX_DEPTH = 16;
+
+    private static final Rule[] NONE = new Rule[0];
+
+    private final Clock clock;
+
+    // Guarded by this
+    private final Map<String, Rule> rules = new LinkedHashMap<String, Rule>();
+
+    // Rebuilt, never changed in place, when rules are added or removed
+    private volatile Index index = new Index(Collections.<Rule> emptyList());
+
+    private final AtomicLong fired = new AtomicLong();
+
+    // Logger
+    final private static Logger log = LoggerFactory.getLogger(RuleEngine.class);
+
+    public RuleEngine() {
+        this(Clock.systemDefaultZone());
+    }
+
+    /**
+     * @param clock The clock used for the time of day windows of rules
+     */
+    public RuleEngine(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Adds a rule
+     *
+     * @throws IllegalArgumentException
+     *             If a rule with the same name exists, or the rule forms a
+     *             cycle with the existing rules given the devices in the
+     *             StateDeviceManager
+     */
+    public void addRule(Rule rule) {
+        addRules(Collections.singletonList(rule));
+    }
+
+    /**
+     * Adds several rules at once, which is faster than adding them one at a
+     * time. Either every rule is added or none are
+     *
+     * @throws IllegalArgumentException
+     *             If a rule with the same name exists, or the rules form a
+     *             cycle
+     */
+    public synchronized void addRules(Collection<Rule> added) {
+        Map<String, Rule> updated = new LinkedHashMap<String, Rule>(rules);
+        for(Rule rule : added) {
+            if(updated.put(rule.getName(), rule) != null) {
+                throw new IllegalArgumentException("Error: duplicate rule " + rule.getName());
+            }
+        }
+        Index candidate = new Index(updated.values());
+        List<Rule> cycle = candidate.findCycle(added);
+        if(cycle != null) {
+            throw new IllegalArgumentException("Error: rules form a cycle " + cycle);
+        }
+        rules.putAll(updated);
+        index = candidate;
+        log.info("Added " + added.size() + " rules, " + rules.size() + " in total");
+    }
+
+    /**
+     * @return True if the rule was found and removed
+     */
+    public synchronized boolean removeRule(String name) {
+        if(rules.remove(name) == null) return false;
+        index = new Index(rules.values());
+        return true;
+    }
+
+    public synchronized List<Rule> getRules() {
+        return new ArrayList<Rule>(rules.values());
+    }
+
+    /**
+     * @return The number of times a rule has run its actions
+     */
+    public long getFiredCount() {
+        return fired.get();
+    }
+
+    @Override
+    public void onAddDevice(StateDevice device) {
+        evaluate(device.getId(), device.getType(), device.getState());
+    }
+
+    @Override
+    public void onUpdateDevice(StateDevice device) {
+        evaluate(device.getId(), device.getType(), device.getState());
+    }
+
+    @Override
+    public void onRemoveDevice(StateDevice device) {
+    }
+
+    @Override
+    public void onBatchUpdate(List<StateDevice> devices) {
+        for(StateDevice device : devices) {
+            evaluate(device.getId(), device.getType(), device.getState());
+        }
+    }
+
+    /**
+     * Runs the rules a device entering a state may trigger
+     */
+    private void evaluate(String id, Type type, State state) {
+        if(state == null) return;
+        Index current = index;
+        Rule[] byDevice = current.forDevice(id, state);
+        Rule[] byType = current.forType(type, state);
+        if(byDevice.length == 0 && byType.length == 0) return;
+
+        if(StateDeviceManager.getChangeDepth() >= MAX_DEPTH) {
+            log.error("Rule chain longer than " + MAX_DEPTH + " stopped at " + id + " " + state);
+            return;
+        }
+        LocalTime time = LocalTime.now(clock);
+        for(Rule rule : byDevice) {
+            run(rule, time);
+        }
+        for(Rule rule : byType) {
+            // a rule on both the device and its type runs once
+            if(!contains(byDevice, rule)) run(rule, time);
+        }
+    }
+
+    private void run(Rule rule, LocalTime time) {
+        if(!rule.isActiveAt(time) || !rule.conditionsHold()) return;
+        fired.incrementAndGet();
+        log.debug("Running rule " + rule.getName());
+        for(Action action : rule.getActions()) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                log.error("Rule " + rule.getName() + " failed to " + action, e);
+            }
+        }
+    }
+
+    private static boolean contains(Rule[] rules, Rule rule) {
+        for(Rule candidate : rules) {
+            if(candidate == rule) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The rules by the facts they test
+     */
+    private static final class Index {
+        private static final int STATES = State.values().length;
+
+        // Rules by device id, then by state ordinal
+        private final Map<String, Rule[][]> byDevice = new HashMap<String, Rule[][]>();
+        // Rules by type ordinal, then by state ordinal
+        private final Rule[][][] byType = new Rule[Type.values().length][][];
+
+        Index(Collection<Rule> rules) {
+            Map<String, List<List<Rule>>> devices = new HashMap<String, List<List<Rule>>>();
+            Map<Type, List<List<Rule>>> types = new HashMap<Type, List<List<Rule>>>();
+            for(Rule rule : rules) {
+                for(Condition condition : rule.getConditions()) {
+                    List<List<Rule>> byState = condition.getId() != null
+                            ? slots(devices, condition.getId())
+                            : slots(types, condition.getType());
+                    List<Rule> slot = byState.get(condition.getState().ordinal());
+                    // two conditions on the same fact index the rule once
+                    if(slot.isEmpty() || slot.get(slot.size() - 1) != rule) slot.add(rule);
+                }
+            }
+            for(Map.Entry<String, List<List<Rule>>> entry : devices.entrySet()) {
+                byDevice.put(entry.getKey(), toArrays(entry.getValue()));
+            }
+            for(Map.Entry<Type, List<List<Rule>>> entry : types.entrySet()) {
+                byType[entry.getKey().ordinal()] = toArrays(entry.getValue());
+            }
+        }
+
+        Rule[] forDevice(String id, State state) {
+            Rule[][] byState = byDevice.get(id);
+            return byState == null ? NONE : byState[state.ordinal()];
+        }
+
+        Rule[] forType(Type type, State state) {
+            if(type == null) return NONE;
+            Rule[][] byState = byType[type.ordinal()];
+            return byState == null ? NONE : byState[state.ordinal()];
+        }
+
+        /**
+         * @return The rules an action may trigger
+         */
+        Set<Rule> triggeredBy(Action action) {
+            Set<Rule> triggered = new HashSet<Rule>();
+            Collections.addAll(triggered, forDevice(action.getId(), action.getState()));
+            ImmutableStateDevice device = StateDeviceManager.getImmutableDevice(action.getId());
+            if(device != null) {
+                Collections.addAll(triggered, forType(device.getType(), action.getState()));
+            } else {
+                for(Type type : Type.values()) {
+                    Collections.addAll(triggered, forType(type, action.getState()));
+                }
+            }
+            return triggered;
+        }
+
+        /**
+         * Looks for a cycle through any of the given rules, following each
+         * rule to the rules its actions may trigger
+         *
+         * @return The rules in the cycle, starting and ending with the same
+         *         rule, or null if there is none
+         */
+        List<Rule> findCycle(Collection<Rule> from) {
+            // rules fully explored without finding a cycle
+            Set<Rule> done = new HashSet<Rule>();
+            for(Rule start : from) {
+                List<Rule> cycle = findCycle(start, done);
+                if(cycle != null) return cycle;
+            }
+            return null;
+        }
+
+        private List<Rule> findCycle(Rule start, Set<Rule> done) {
+            if(done.contains(start)) return null;
+            // depth first, with an explicit stack so long chains can't
+            // overflow the thread stack
+            List<Rule> path = new ArrayList<Rule>();
+            Set<Rule> onPath = new HashSet<Rule>();
+            Deque<Successors> stack = new ArrayDeque<Successors>();
+            path.add(start);
+            onPath.add(start);
+            stack.push(new Successors(successors(start)));
+            while(!stack.isEmpty()) {
+                Successors top = stack.peek();
+                if(top.hasNext()) {
+                    Rule next = top.next();
+                    if(onPath.contains(next)) {
+                        List<Rule> cycle = new ArrayList<Rule>(path.subList(path.indexOf(next), path.size()));
+                        cycle.add(next);
+                        return cycle;
+                    }
+                    if(done.contains(next)) continue;
+                    path.add(next);
+                    onPath.add(next);
+                    stack.push(new Successors(successors(next)));
+                } else {
+                    stack.pop();
+                    Rule finished = path.remove(path.size() - 1);
+                    onPath.remove(finished);
+                    done.add(finished);
+                }
+            }
+            return null;
+        }
+
+        private List<Rule> successors(Rule rule) {
+            Set<Rule> triggered = new HashSet<Rule>();
+            for(Action action : rule.getActions()) {
+                triggered.addAll(triggeredBy(action));
+            }
+            return new ArrayList<Rule>(triggered);
+        }
+
+        private static <K> List<List<Rule>> slots(Map<K, List<List<Rule>>> map, K key) {
+            List<List<Rule>> byState = map.get(key);
+            if(byState == null) {
+                byState = new ArrayList<List<Rule>>(STATES);
+                for(int i = 0; i < STATES; i++) {
+                    byState.add(new ArrayList<Rule>(1));
+                }
+                map.put(key, byState);
+            }
+            return byState;
+        }
+
+        private static Rule[][] toArrays(List<List<Rule>> byState) {
+            Rule[][] arrays = new Rule[STATES][];
+            for(int i = 0; i < STATES; i++) {
+                List<Rule> slot = byState.get(i);
+                arrays[i] = slot.isEmpty() ? NONE : slot.toArray(new Rule[slot.size()]);
+            }
+            return arrays;
+        }
+    }
+
+    /**
+     * The successors of a rule still to be explored
+     */
+    private static final class Successors {
+        private final List<Rule> rules;
+        private int next;
+
+        Successors(List<Rule> rules) {
+            this.rules = rules;
+        }
+
+        boolean hasNext() {
+            return next < rules.size();
+        }
+
+        Rule next() {
+            return rules.get(next++);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.alfred.common.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceCodec;
+import com.alfred.common.messages.StateDeviceFlyweight;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Compares the generated protobuf code with {@link StateDeviceCodec} for
+ * reading a message from a direct buffer into the data model, and for
+ * writing a device into a buffer. Run the main method and compare the
+ * <code>gc.alloc.rate.norm</code> column, which is the number of bytes
+ * allocated per message.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    private static final String ID = "benchmark0001";
+
+    private StateDevice device;
+    private ByteBuffer input;
+    private byte[] scratch;
+    private ByteBuffer output;
+    private final StateDeviceFlyweight flyweight = new StateDeviceFlyweight();
+
+    @Setup
+    public void setup() {
+        device = new StateDevice.Builder()
+                .setId(ID)
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(StateDeviceMessage.State.ON)
+                .build();
+        byte[] bytes = device.toMessage().toByteArray();
+        input = ByteBuffer.allocateDirect(bytes.length);
+        input.put(bytes).flip();
+        scratch = new byte[bytes.length];
+        output = ByteBuffer.allocateDirect(256);
+    }
+
+    /**
+     * The generated code needs a heap array, so the message is copied out of
+     * the buffer first, as a connection reading into a direct buffer must
+     */
+    @Benchmark
+    public void decodeGenerated(Blackhole bh) throws InvalidProtocolBufferException {
+        input.get(scratch).rewind();
+        bh.consume(new StateDevice(StateDeviceMessage.parseFrom(scratch)));
+    }
+
+    @Benchmark
+    public void decodeFlyweight(Blackhole bh) throws InvalidProtocolBufferException {
+        StateDeviceCodec.decode(input, flyweight);
+        input.rewind();
+        bh.consume(flyweight.idEquals(ID));
+        bh.consume(flyweight.getStateOrdinal());
+    }
+
+    @Benchmark
+    public void encodeGenerated(Blackhole bh) throws Exception {
+        output.clear();
+        byte[] bytes = new byte[128];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        device.toMessage().writeTo(out);
+        output.put(bytes, 0, bytes.length - out.spaceLeft());
+        bh.consume(output.position());
+    }
+
+    @Benchmark
+    public void encodeCodec(Blackhole bh) {
+        output.clear();
+        StateDeviceCodec.encode(device, output);
+        bh.consume(output.position());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,82 @@
+package com.alfred.common.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * Compares the cloning read path (<code>getDevice</code>) with the shared
+ * immutable read path (<code>getImmutableDevice</code>) and the handle read
+ * path (<code>getState(int)</code>). Run the main method
+ * and compare the <code>gc.alloc.rate.norm</code> column, which is the number
+ * of bytes allocated per read.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceReadBenchmark {
+
+    private static final String ID = "benchmark0001";
+
+    private int handle;
+
+    @Setup
+    public void setup() {
+        StateDeviceManager.addStateDevice(new StateDevice.Builder()
+                .setId(ID)
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(StateDeviceMessage.State.ON)
+                .build());
+        handle = StateDeviceManager.getHandle(ID);
+    }
+
+    @Benchmark
+    public void getDevice(Blackhole bh) {
+        bh.consume(StateDeviceManager.getDevice(ID));
+    }
+
+    @Benchmark
+    public void getImmutableDevice(Blackhole bh) {
+        bh.consume(StateDeviceManager.getImmutableDevice(ID));
+    }
+
+    @Benchmark
+    public void getStateByHandle(Blackhole bh) {
+        bh.consume(StateDeviceManager.getState(handle));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DeviceReadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
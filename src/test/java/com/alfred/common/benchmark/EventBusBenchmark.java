@@ -0,0 +1,83 @@
+package com.alfred.common.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.handlers.StateDeviceEvent;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.handlers.StateDeviceEventBus;
+import com.alfred.common.handlers.StateDeviceEventListener;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+/**
+ * Measures the cost of publishing an event to a StateDeviceEventBus with two
+ * listeners attached, from a single publishing thread.
+ *
+ * @author Kevin Kanzelmeyer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBusBenchmark {
+
+    private StateDeviceEventBus bus;
+    private StateDevice device;
+
+    @Setup
+    public void setup() {
+        bus = new StateDeviceEventBus(1 << 16);
+        StateDeviceEventListener listener = new StateDeviceEventListener() {
+            @Override
+            public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+            }
+        };
+        bus.addListener(listener);
+        bus.addListener(listener);
+        device = new StateDevice.Builder()
+                .setId("benchmark0001")
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(StateDeviceMessage.State.ON)
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        bus.shutdown();
+    }
+
+    @Benchmark
+    public long publish() {
+        return bus.publish(Kind.UPDATE, device, StateDeviceMessage.State.OFF);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(EventBusBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,210 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.AsyncStateDeviceHandler;
+import com.alfred.common.handlers.AsyncStateDeviceHandler.OverflowPolicy;
+import com.alfred.common.handlers.BatchStateDeviceHandler;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class AsyncHandlerTest {
+
+    /**
+     * A blocked handler must not stall updates, and once released it sees
+     * every update in order
+     */
+    @Test
+    public void testSlowHandlerDoesNotBlockUpdates() throws Exception {
+        final String id = "async0001";
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<State> seen = Collections.synchronizedList(new ArrayList<State>());
+        StateDeviceHandler slow = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                if(!device.getId().equals(id)) return;
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                seen.add(device.getState());
+                if(seen.size() == 100) done.countDown();
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        AsyncStateDeviceHandler async = new AsyncStateDeviceHandler(slow, 1000, OverflowPolicy.BLOCK);
+        StateDeviceManager.addDeviceHandler(async);
+        StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                .setId(id)
+                .setName("Doorbell")
+                .setType(Type.DOORBELL)
+                .setState(State.INACTIVE)
+                .build());
+
+        for(int i = 0; i < 100; i++) {
+            StateDeviceManager.updateStateDevice(id, i % 2 == 0 ? State.ACTIVE : State.INACTIVE);
+        }
+        // all updates were applied while the handler is still blocked
+        assertEquals(State.INACTIVE, StateDeviceManager.getDevice(id).getState());
+
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? State.ACTIVE : State.INACTIVE, seen.get(i));
+        }
+        StateDeviceManager.removeDeviceHandler(async);
+        async.shutdown();
+    }
+
+    /**
+     * Notifications beyond the queue capacity are dropped and counted
+     */
+    @Test
+    public void testDropNewest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        StateDeviceHandler blocked = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        AsyncStateDeviceHandler async = new AsyncStateDeviceHandler(blocked, 4, OverflowPolicy.DROP_NEWEST);
+        StateDevice device = new StateDevice.Builder()
+                .setId("async0002")
+                .setName("Light")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build();
+        // the first notification is taken by the dispatch thread and blocks
+        async.onAddDevice(device);
+        while(async.getQueueSize() > 0) {
+            Thread.sleep(1);
+        }
+        for(int i = 0; i < 10; i++) {
+            async.onAddDevice(device);
+        }
+        assertEquals(6, async.getDroppedCount());
+        release.countDown();
+        async.shutdown();
+    }
+
+    /**
+     * A wrapped batch handler still gets a batch as one call
+     */
+    @Test
+    public void testBatchIsForwarded() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> single = Collections.synchronizedList(new ArrayList<String>());
+        BatchStateDeviceHandler batchHandler = new BatchStateDeviceHandler() {
+            @Override
+            public void onBatchUpdate(List<StateDevice> devices) {
+                batches.add(devices.size());
+                done.countDown();
+            }
+
+            @Override
+            public void onAddDevice(StateDevice device) {
+                if(device.getId().startsWith("async0003")) single.add(device.getId());
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                if(device.getId().startsWith("async0003")) single.add(device.getId());
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        AsyncStateDeviceHandler async = new AsyncStateDeviceHandler(batchHandler, 16, OverflowPolicy.BLOCK);
+        StateDeviceManager.addDeviceHandler(async);
+        try {
+            StateDeviceManager.updateStateDevices(Arrays.asList(
+                    new StateDevice.Builder().setId("async0003a").setType(Type.LIGHT).setState(State.ON).build(),
+                    new StateDevice.Builder().setId("async0003b").setType(Type.LIGHT).setState(State.ON).build()));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(2), batches);
+            assertTrue(single.isEmpty());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(async);
+            async.shutdown();
+        }
+    }
+
+    /**
+     * A blocking handler whose own dispatch thread notifies it while its
+     * queue is full drops the notification instead of waiting forever, and
+     * a handler that has been shut down ignores notifications
+     */
+    @Test
+    public void testBlockFromDispatchThread() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AsyncStateDeviceHandler[] async = new AsyncStateDeviceHandler[1];
+        StateDeviceHandler cascading = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+                // the first fills the queue, the second would block
+                async[0].onUpdateDevice(device);
+                async[0].onUpdateDevice(device);
+                done.countDown();
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        async[0] = new AsyncStateDeviceHandler(cascading, 1, OverflowPolicy.BLOCK);
+        StateDevice device = new StateDevice.Builder()
+                .setId("async0004")
+                .setName("Light")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build();
+        async[0].onAddDevice(device);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, async[0].getDroppedCount());
+
+        async[0].shutdown();
+        async[0].onAddDevice(device);
+        assertEquals(0, async[0].getQueueSize());
+    }
+}
@@ -0,0 +1,104 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.datamodel.TimingWheel;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class CoalescingTest {
+
+    // A wheel driven by the test's clock, so windows close when the test
+    // moves the clock on
+    private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+    private final TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 512, clock::get);
+
+    /**
+     * Updates inside a window are reported once with the latest state, and a
+     * flap back to the original state isn't reported at all. A window is
+     * dropped when its device is removed
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        final String id = "coalesce0001";
+        final List<State> seen = Collections.synchronizedList(new ArrayList<State>());
+        StateDeviceHandler handler = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                if(device.getId().equals(id)) seen.add(device.getState());
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        TimingWheel original = StateDeviceManager.getTimingWheel();
+        StateDeviceManager.setTimingWheel(wheel);
+        StateDeviceManager.addDeviceHandler(handler);
+        StateDeviceManager.setCoalescingWindow(id, 100, TimeUnit.MILLISECONDS);
+        try {
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                    .setId(id)
+                    .setName("Garage")
+                    .setType(Type.GARAGEDOOR)
+                    .setState(State.CLOSED)
+                    .build());
+
+            // flap and settle back where it started
+            StateDeviceManager.updateStateDevice(id, State.OPEN);
+            StateDeviceManager.updateStateDevice(id, State.CLOSED);
+            StateDeviceManager.updateStateDevice(id, State.OPEN);
+            StateDeviceManager.updateStateDevice(id, State.CLOSED);
+            assertEquals(State.CLOSED, StateDeviceManager.getDevice(id).getState());
+            advance(200);
+            assertEquals(0, seen.size());
+
+            // flap and settle somewhere new
+            StateDeviceManager.updateStateDevice(id, State.OPEN);
+            StateDeviceManager.updateStateDevice(id, State.CLOSED);
+            StateDeviceManager.updateStateDevice(id, State.OPEN);
+            assertEquals(State.OPEN, StateDeviceManager.getDevice(id).getState());
+            advance(50);
+            assertEquals(0, seen.size());
+            advance(150);
+            assertEquals(1, seen.size());
+            assertEquals(State.OPEN, seen.get(0));
+
+            // removed while its window is open
+            StateDeviceManager.updateStateDevice(id, State.CLOSED);
+            StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice(id));
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                    .setId(id)
+                    .setName("Garage")
+                    .setType(Type.GARAGEDOOR)
+                    .setState(State.CLOSED)
+                    .build());
+            advance(200);
+            assertEquals(1, seen.size());
+        } finally {
+            StateDeviceManager.setCoalescingWindow(id, 0, TimeUnit.MILLISECONDS);
+            StateDeviceManager.removeDeviceHandler(handler);
+            StateDeviceManager.setTimingWheel(original);
+        }
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        wheel.advance();
+    }
+}
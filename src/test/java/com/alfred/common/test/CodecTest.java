@@ -0,0 +1,193 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceCodec;
+import com.alfred.common.messages.StateDeviceFlyweight;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+public class CodecTest {
+
+    /**
+     * Test that the codec writes the same bytes as the generated code
+     */
+    @Test
+    public void testEncode() throws IOException {
+        StateDevice[] devices = new StateDevice[] {
+                device("codec0001", "Porch Light", Type.LIGHT, State.ON),
+                device("codec0002", null, Type.GARAGEDOOR, State.CLOSED),
+                device("codec0003", null, null, null),
+                device("codecé中💡", "Lumière 💡", Type.OUTLET, State.OFF),
+                device("codec0005", longString(300), Type.DOORBELL, State.ACTIVE)
+        };
+        for(StateDevice device : devices) {
+            byte[] expected = device.toMessage().toByteArray();
+            assertEquals(expected.length, StateDeviceCodec.getSerializedSize(device));
+            ByteBuffer buffer = ByteBuffer.allocate(expected.length);
+            StateDeviceCodec.encode(device, buffer);
+            assertArrayEquals(expected, buffer.array());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            device.toMessage().writeDelimitedTo(out);
+            buffer = ByteBuffer.allocateDirect(out.size());
+            StateDeviceCodec.encodeDelimited(device, buffer);
+            assertEquals(0, buffer.remaining());
+            buffer.flip();
+            byte[] delimited = new byte[buffer.remaining()];
+            buffer.get(delimited);
+            assertArrayEquals(out.toByteArray(), delimited);
+        }
+    }
+
+    /**
+     * Test that a buffer without room is left as it was
+     */
+    @Test
+    public void testEncodeOverflow() {
+        StateDevice device = device("codec0010", "Porch Light", Type.LIGHT, State.ON);
+        ByteBuffer buffer = ByteBuffer.allocate(StateDeviceCodec.getSerializedSize(device) - 1);
+        try {
+            StateDeviceCodec.encode(device, buffer);
+            fail("Expected an overflow");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    /**
+     * Test that the flyweight reads what the generated code writes
+     */
+    @Test
+    public void testDecode() throws IOException {
+        StateDeviceMessage msg = StateDeviceMessage.newBuilder()
+                .setId("codecé💡")
+                .setName("Kitchen Fan")
+                .setType(Type.CEILINGFAN)
+                .setState(State.ACTIVE)
+                .setValue(-42)
+                .setData(ByteString.copyFrom(new byte[] { 1, 2, 3 }))
+                .build();
+        StateDeviceFlyweight device = new StateDeviceFlyweight();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.put(msg.toByteArray()).flip();
+        StateDeviceCodec.decode(buffer, device);
+        assertEquals(0, buffer.remaining());
+
+        assertTrue(device.idEquals(msg.getId()));
+        assertFalse(device.idEquals("codecé"));
+        assertFalse(device.idEquals(msg.getId() + "x"));
+        assertEquals(msg.getId(), device.getId());
+        assertEquals(msg.getId().getBytes("UTF-8").length, device.getIdLength());
+        assertEquals("Kitchen Fan", device.getName());
+        assertEquals(Type.CEILINGFAN, device.getType());
+        assertEquals(Type.CEILINGFAN.ordinal(), device.getTypeOrdinal());
+        assertEquals(State.ACTIVE, device.getState());
+        assertEquals(State.ACTIVE.ordinal(), device.getStateOrdinal());
+        assertTrue(device.hasValue());
+        assertEquals(-42, device.getValue());
+        assertEquals(3, device.getDataLength());
+        assertEquals(3, device.getBuffer().get(device.getDataOffset() + 2));
+
+        // the flyweight is reset by each decode
+        buffer.clear();
+        buffer.put(StateDeviceMessage.newBuilder().setId("codec0020").build().toByteArray()).flip();
+        StateDeviceCodec.decode(buffer, device);
+        assertTrue(device.idEquals("codec0020"));
+        assertFalse(device.hasName());
+        assertNull(device.getName());
+        assertFalse(device.hasType());
+        assertEquals(-1, device.getTypeOrdinal());
+        assertFalse(device.hasState());
+        assertFalse(device.hasValue());
+        assertFalse(device.hasData());
+
+        StateDevice copy = device.toStateDevice();
+        StateDevice expected = new StateDevice(StateDeviceMessage.newBuilder().setId("codec0020").build());
+        assertEquals(expected.getId(), copy.getId());
+        assertEquals(expected.getState(), copy.getState());
+    }
+
+    /**
+     * Test reading delimited frames that arrive in pieces
+     */
+    @Test
+    public void testDecodeDelimited() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < 3; i++) {
+            device("codec003" + i, longString(200), Type.LIGHT, State.ON).toMessage().writeDelimitedTo(out);
+        }
+        byte[] bytes = out.toByteArray();
+        StateDeviceFlyweight device = new StateDeviceFlyweight();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        int decoded = 0;
+        for(byte b : bytes) {
+            buffer.put(b).flip();
+            while(StateDeviceCodec.decodeDelimited(buffer, device)) {
+                assertTrue(device.idEquals("codec003" + decoded));
+                decoded++;
+            }
+            buffer.compact();
+        }
+        assertEquals(3, decoded);
+        assertEquals(0, buffer.position());
+    }
+
+    /**
+     * Test that unknown fields are skipped and bad input is rejected
+     */
+    @Test
+    public void testDecodeErrors() throws IOException {
+        StateDeviceFlyweight device = new StateDeviceFlyweight();
+
+        // field 9 as a varint, a fixed32 and a fixed64, and field 10 as bytes
+        byte[] known = StateDeviceMessage.newBuilder().setId("codec0040").setState(State.OPEN).build().toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[] { 0x48, (byte) 0x96, 0x01, 0x4D, 1, 2, 3, 4, 0x49, 1, 2, 3, 4, 5, 6, 7, 8, 0x52, 2, 9, 9 });
+        buffer.put(known).flip();
+        StateDeviceCodec.decode(buffer, device);
+        assertTrue(device.idEquals("codec0040"));
+        assertEquals(State.OPEN, device.getState());
+
+        assertInvalid(StateDeviceMessage.newBuilder().setId("codec0041").setName("Light").build().toByteArray(), 3);
+        assertInvalid(new byte[] { 0x20, 0x01 }, 0);
+        assertInvalid(new byte[] { 0x0A, 0x01, 0x61, 0x0F }, 0);
+    }
+
+    private static void assertInvalid(byte[] bytes, int cut) {
+        try {
+            StateDeviceCodec.decode(ByteBuffer.wrap(bytes, 0, bytes.length - cut), new StateDeviceFlyweight());
+            fail("Expected an invalid message");
+        } catch (InvalidProtocolBufferException e) {
+            // expected
+        }
+    }
+
+    private static StateDevice device(String id, String name, Type type, State state) {
+        return new StateDevice.Builder().setId(id).setName(name).setType(type).setState(state).build();
+    }
+
+    private static String longString(int length) {
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+}
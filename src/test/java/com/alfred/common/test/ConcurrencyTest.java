@@ -0,0 +1,284 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.ImmutableStateDevice;
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.StateDeviceEvent;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.handlers.StateDeviceEventBus;
+import com.alfred.common.handlers.StateDeviceEventListener;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class ConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int TOGGLES = 2000;
+
+    /**
+     * Each thread toggles its own device while handlers are added and removed
+     * concurrently. No update may be lost and no handler iteration may fail
+     */
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final AtomicInteger updates = new AtomicInteger();
+        StateDeviceHandler counter = new CountingHandler(updates);
+        StateDeviceManager.addDeviceHandler(counter);
+
+        final List<String> ids = new ArrayList<String>();
+        for(int i = 0; i < THREADS; i++) {
+            String id = "concurrent" + i;
+            ids.add(id);
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                    .setId(id)
+                    .setName("Light " + i)
+                    .setType(Type.LIGHT)
+                    .setState(State.OFF)
+                    .build());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for(final String id : ids) {
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for(int i = 0; i < TOGGLES; i++) {
+                        StateDeviceManager.updateStateDevice(id, i % 2 == 0 ? State.ON : State.OFF);
+                    }
+                }
+            }));
+        }
+        results.add(pool.submit(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                for(int i = 0; i < TOGGLES; i++) {
+                    StateDeviceHandler extra = new CountingHandler(new AtomicInteger());
+                    StateDeviceManager.addDeviceHandler(extra);
+                    StateDeviceManager.removeDeviceHandler(extra);
+                }
+            }
+        }));
+        start.countDown();
+        for(Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        StateDeviceManager.removeDeviceHandler(counter);
+
+        assertEquals("Every toggle should reach the handler", THREADS * TOGGLES, updates.get());
+        for(String id : ids) {
+            assertEquals(State.OFF, StateDeviceManager.getDevice(id).getState());
+        }
+    }
+
+    /**
+     * Threads racing on the same device never lose the device or leave it in
+     * a state nobody wrote
+     */
+    @Test
+    public void testContendedDevice() throws Exception {
+        final String id = "contended0001";
+        StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                .setId(id)
+                .setName("Garage")
+                .setType(Type.GARAGEDOOR)
+                .setState(State.CLOSED)
+                .build());
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for(int t = 0; t < THREADS; t++) {
+            final State state = t % 2 == 0 ? State.OPEN : State.CLOSED;
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < TOGGLES; i++) {
+                        StateDeviceManager.updateStateDevice(id, state);
+                    }
+                }
+            }));
+        }
+        for(Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        State state = StateDeviceManager.getDevice(id).getState();
+        assertTrue(state == State.OPEN || state == State.CLOSED);
+    }
+
+    /**
+     * Threads toggling the same device with compareAndSetState never lose a
+     * toggle: every successful toggle is one version, and the final state
+     * matches the number of toggles
+     */
+    @Test
+    public void testCompareAndSet() throws Exception {
+        final String id = "cas0001";
+        StateDeviceManager.addStateDevice(new StateDevice.Builder()
+                .setId(id)
+                .setName("Lamp")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build());
+        assertTrue(!StateDeviceManager.compareAndSetState(id, State.ON, State.OFF));
+        assertTrue(!StateDeviceManager.compareAndSetState("missing", State.ON, State.OFF));
+        long start = StateDeviceManager.getImmutableDevice(id).getVersion();
+        assertTrue(!StateDeviceManager.updateIfVersion(id, start - 1, State.ON));
+
+        final AtomicInteger toggles = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for(int t = 0; t < THREADS; t++) {
+            final boolean byVersion = t % 2 == 0;
+            results.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < TOGGLES; i++) {
+                        ImmutableStateDevice device = StateDeviceManager.getImmutableDevice(id);
+                        State next = device.getState() == State.ON ? State.OFF : State.ON;
+                        boolean toggled = byVersion
+                                ? StateDeviceManager.updateIfVersion(id, device.getVersion(), next)
+                                : StateDeviceManager.compareAndSetState(id, device.getState(), next);
+                        if(toggled) toggles.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for(Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        ImmutableStateDevice device = StateDeviceManager.getImmutableDevice(id);
+        assertTrue(toggles.get() > 0);
+        assertEquals(toggles.get() % 2 == 0 ? State.OFF : State.ON, device.getState());
+        StateDeviceManager.removeStateDevice(device);
+    }
+
+    /**
+     * Threads changing the same device concurrently. Handlers see the
+     * device's versions in increasing order, and every event on the bus
+     * starts from the state the previous event ended in
+     */
+    @Test
+    public void testNotificationOrderPerDevice() throws Exception {
+        final String id = "ordered0001";
+        final AtomicLong lastVersion = new AtomicLong();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        StateDeviceHandler handler = new CountingHandler(new AtomicInteger()) {
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                if(!device.getId().equals(id)) return;
+                long version = ((ImmutableStateDevice) device).getVersion();
+                if(version <= lastVersion.getAndSet(version)) outOfOrder.incrementAndGet();
+            }
+        };
+        final AtomicReference<State> lastState = new AtomicReference<State>();
+        final AtomicInteger brokenChain = new AtomicInteger();
+        StateDeviceEventBus bus = new StateDeviceEventBus(1024);
+        bus.addListener(new StateDeviceEventListener() {
+            @Override
+            public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+                if(!event.getId().equals(id)) return;
+                if(event.getKind() == Kind.UPDATE && event.getOldState() != lastState.get()) {
+                    brokenChain.incrementAndGet();
+                }
+                lastState.set(event.getNewState());
+            }
+        });
+        StateDeviceManager.setEventBus(bus);
+        StateDeviceManager.addDeviceHandler(handler);
+        try {
+            StateDeviceManager.addStateDevice(new StateDevice.Builder()
+                    .setId(id)
+                    .setName("Garage")
+                    .setType(Type.GARAGEDOOR)
+                    .setState(State.CLOSED)
+                    .build());
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            final State[] states = new State[] { State.OPEN, State.CLOSED, State.ACTIVE, State.INACTIVE };
+            for(int t = 0; t < THREADS; t++) {
+                final int offset = t;
+                results.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        await(start);
+                        for(int i = 0; i < TOGGLES; i++) {
+                            StateDeviceManager.updateStateDevice(id, states[(i + offset) % states.length]);
+                        }
+                    }
+                }));
+            }
+            start.countDown();
+            for(Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+            pool.shutdown();
+            long deadline = System.currentTimeMillis() + 10000;
+            while(lastState.get() != StateDeviceManager.getDevice(id).getState()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertTrue(lastVersion.get() > 0);
+            assertEquals(0, outOfOrder.get());
+            assertEquals(0, brokenChain.get());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(handler);
+            StateDeviceManager.setEventBus(null);
+            bus.shutdown();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class CountingHandler implements StateDeviceHandler {
+        private final AtomicInteger updates;
+
+        CountingHandler(AtomicInteger updates) {
+            this.updates = updates;
+        }
+
+        @Override
+        public void onAddDevice(StateDevice device) {
+        }
+
+        @Override
+        public void onUpdateDevice(StateDevice device) {
+            if(device.getId().startsWith("concurrent")) updates.incrementAndGet();
+        }
+
+        @Override
+        public void onRemoveDevice(StateDevice device) {
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package com.alfred.common.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
+import com.alfred.common.datamodel.ImmutableStateDevice;
 import com.alfred.common.datamodel.StateDevice;
 import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.datamodel.StateHistory;
+import com.alfred.common.handlers.BatchStateDeviceHandler;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
 import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.messages.StateDeviceProtos.StateListMessage;
 
 public class DataModelTest {
 
@@ -60,9 +75,347 @@ public class DataModelTest {
         }
     }
 
+    /**
+     * Test that reads share the stored immutable device and that updates
+     * replace it rather than modify it
+     */
+    @Test
+    public void testImmutableDevice() {
+        String id = "device0003";
+        StateDevice device = new StateDevice.Builder()
+                            .setId(id)
+                            .setName("State Device 3")
+                            .setType(Type.LIGHT)
+                            .setState(State.OFF)
+                            .build();
+        StateDeviceManager.updateStateDevice(device);
+
+        // changing the caller's instance doesn't change the managed device
+        device.setState(State.ON);
+        ImmutableStateDevice stored = StateDeviceManager.getImmutableDevice(id);
+        assertEquals(State.OFF, stored.getState());
+        assertSame(stored, StateDeviceManager.getImmutableDevice(id));
+
+        StateDeviceManager.updateStateDevice(id, State.ON);
+        ImmutableStateDevice updated = StateDeviceManager.getImmutableDevice(id);
+        assertNotSame(stored, updated);
+        assertEquals(State.OFF, stored.getState());
+        assertEquals(State.ON, updated.getState());
+        assertSame(updated, updated.withState(State.ON));
+
+        // getAllDevices hands out copies that can be changed freely
+        StateDevice copy = StateDeviceManager.getAllDevices().get(id);
+        copy.setState(State.OFF);
+        assertEquals(State.ON, StateDeviceManager.getImmutableDevice(id).getState());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutableSetState() {
+        StateDevice device = new StateDevice.Builder()
+                            .setId("device0004")
+                            .setName("State Device 4")
+                            .setType(Type.LIGHT)
+                            .setState(State.OFF)
+                            .build();
+        ImmutableStateDevice.of(device).setState(State.ON);
+    }
+
+    /**
+     * Test that a state list is applied in one pass, skipping unchanged
+     * devices, with a single callback to batch handlers
+     */
+    @Test
+    public void testApplyStateList() {
+        StateDeviceManager.updateStateDevices(Arrays.asList(
+                new StateDevice.Builder().setId("batch0001").setName("Light 1")
+                        .setType(Type.LIGHT).setState(State.OFF).build(),
+                new StateDevice.Builder().setId("batch0002").setName("Light 2")
+                        .setType(Type.LIGHT).setState(State.OFF).build()));
+
+        final List<List<StateDevice>> batches = new ArrayList<List<StateDevice>>();
+        final List<StateDevice> singles = new ArrayList<StateDevice>();
+        BatchStateDeviceHandler handler = new BatchStateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+                singles.add(device);
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                singles.add(device);
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onBatchUpdate(List<StateDevice> devices) {
+                batches.add(devices);
+            }
+        };
+        StateDeviceManager.addDeviceHandler(handler);
+        try {
+            StateListMessage msg = StateListMessage.newBuilder()
+                    .addDevice(StateDeviceMessage.newBuilder().setId("batch0001").setState(State.OFF))
+                    .addDevice(StateDeviceMessage.newBuilder().setId("batch0002").setState(State.ON))
+                    .addDevice(StateDeviceMessage.newBuilder().setId("batch0003").setName("Fan")
+                            .setType(Type.CEILINGFAN).setState(State.ON))
+                    .build();
+            StateDeviceManager.applyStateList(msg);
+        } finally {
+            StateDeviceManager.removeDeviceHandler(handler);
+        }
+
+        assertEquals(0, singles.size());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals("batch0002", batches.get(0).get(0).getId());
+        assertEquals(State.ON, batches.get(0).get(0).getState());
+        assertEquals("batch0003", batches.get(0).get(1).getId());
+        assertEquals(Type.CEILINGFAN, StateDeviceManager.getDevice("batch0003").getType());
+        assertNull(StateDeviceManager.getDevice("batch0004"));
+    }
+
+    /**
+     * Test that handlers registered with a subscription only see matching
+     * devices
+     */
+    @Test
+    public void testSubscriptions() {
+        final List<String> doors = new ArrayList<String>();
+        final List<String> prefixed = new ArrayList<String>();
+        StateDeviceHandler doorHandler = new RecordingHandler(doors);
+        StateDeviceHandler prefixHandler = new RecordingHandler(prefixed);
+        StateDeviceManager.addDeviceHandler(doorHandler, new Subscription.Builder()
+                .addType(Type.GARAGEDOOR)
+                .addState(State.OPEN)
+                .build());
+        StateDeviceManager.addDeviceHandler(prefixHandler, new Subscription.Builder()
+                .addIdPrefix("sub-light")
+                .build());
+        try {
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder().setId("sub-door1")
+                    .setName("Door").setType(Type.GARAGEDOOR).setState(State.CLOSED).build());
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder().setId("sub-light1")
+                    .setName("Light").setType(Type.LIGHT).setState(State.OFF).build());
+            StateDeviceManager.updateStateDevice("sub-door1", State.OPEN);
+            StateDeviceManager.updateStateDevice("sub-light1", State.ON);
+            StateDeviceManager.updateStateDevice("sub-door1", State.CLOSED);
+        } finally {
+            StateDeviceManager.removeDeviceHandler(doorHandler);
+            StateDeviceManager.removeDeviceHandler(prefixHandler);
+        }
+        assertEquals(Arrays.asList("sub-door1 OPEN"), doors);
+        assertEquals(Arrays.asList("sub-light1 OFF", "sub-light1 ON"), prefixed);
+    }
+
+    /**
+     * Test that the type and state indexes follow adds, updates and removes
+     */
+    @Test
+    public void testIndexes() {
+        int outlets = StateDeviceManager.countDevices(Type.OUTLET);
+        int outletsOn = StateDeviceManager.countDevices(Type.OUTLET, State.ON);
+        StateDevice outlet = new StateDevice.Builder().setId("index0001")
+                .setName("Outlet").setType(Type.OUTLET).setState(State.OFF).build();
+        StateDeviceManager.addStateDevice(outlet);
+        assertEquals(outlets + 1, StateDeviceManager.countDevices(Type.OUTLET));
+        assertEquals(outletsOn, StateDeviceManager.countDevices(Type.OUTLET, State.ON));
+        assertTrue(StateDeviceManager.getDeviceIds(State.OFF).contains("index0001"));
+
+        StateDeviceManager.updateStateDevice("index0001", State.ON);
+        assertEquals(outletsOn + 1, StateDeviceManager.countDevices(Type.OUTLET, State.ON));
+        assertTrue(StateDeviceManager.getDeviceIds(State.ON).contains("index0001"));
+        assertTrue(!StateDeviceManager.getDeviceIds(State.OFF).contains("index0001"));
+        boolean found = false;
+        for(StateDevice device : StateDeviceManager.getDevices(Type.OUTLET, State.ON)) {
+            if(device.getId().equals("index0001")) found = true;
+        }
+        assertTrue(found);
+
+        StateDeviceManager.removeStateDevice(outlet);
+        assertEquals(outlets, StateDeviceManager.countDevices(Type.OUTLET));
+        assertEquals(outletsOn, StateDeviceManager.countDevices(Type.OUTLET, State.ON));
+        assertTrue(!StateDeviceManager.getDeviceIds(Type.OUTLET).contains("index0001"));
+    }
+
+    /**
+     * Test that a device keeps its handle, and that the handle reads follow
+     * the device
+     */
+    @Test
+    public void testHandles() {
+        assertEquals(-1, StateDeviceManager.getHandle("handle0001"));
+        StateDevice fan = new StateDevice.Builder().setId("handle0001")
+                .setName("Fan").setType(Type.CEILINGFAN).setState(State.OFF).build();
+        StateDeviceManager.addStateDevice(fan);
+        int handle = StateDeviceManager.getHandle("handle0001");
+        assertEquals("handle0001", StateDeviceManager.getDeviceId(handle));
+        assertEquals(State.OFF, StateDeviceManager.getState(handle));
+        assertEquals(Type.CEILINGFAN, StateDeviceManager.getType(handle));
+
+        StateDeviceManager.updateStateDevice(handle, State.ON);
+        assertEquals(State.ON, StateDeviceManager.getDevice("handle0001").getState());
+        assertEquals(State.ON, StateDeviceManager.getState(handle));
+        assertEquals(StateDeviceManager.getImmutableDevice("handle0001").getVersion(),
+                StateDeviceManager.getVersion(handle));
+        assertTrue(StateDeviceManager.getLastChanged(handle) > 0);
+        boolean found = false;
+        for(int on : StateDeviceManager.getHandles(Type.CEILINGFAN, State.ON)) {
+            if(on == handle) found = true;
+        }
+        assertTrue(found);
+
+        StateDeviceManager.removeStateDevice(fan);
+        assertEquals(null, StateDeviceManager.getState(handle));
+        StateDeviceManager.addStateDevice(fan);
+        assertEquals(handle, StateDeviceManager.getHandle("handle0001"));
+        StateDeviceManager.removeStateDevice(fan);
+    }
+
+    /**
+     * Test that the history keeps the last changes of a device, and answers
+     * time range and time in state queries
+     */
+    @Test
+    public void testHistory() throws Exception {
+        StateDeviceManager.setHistoryDepth(4);
+        try {
+            StateDevice door = new StateDevice.Builder().setId("history0001")
+                    .setName("Garage").setType(Type.GARAGEDOOR).setState(State.CLOSED).build();
+            StateDeviceManager.addStateDevice(door);
+            for(int i = 0; i < 4; i++) {
+                Thread.sleep(5);
+                StateDeviceManager.updateStateDevice("history0001", i % 2 == 0 ? State.OPEN : State.CLOSED);
+            }
+
+            // five changes, the oldest was overwritten
+            StateHistory all = StateDeviceManager.getHistory("history0001", 10);
+            assertEquals(4, all.size());
+            assertEquals(State.OPEN, all.getState(0));
+            assertEquals(State.CLOSED, all.getState(3));
+            assertEquals(2, StateDeviceManager.getHistory("history0001", 2).size());
+            assertEquals(State.CLOSED, StateDeviceManager.getHistory("history0001", 2).getState(1));
+            assertEquals(all.getTime(2), StateDeviceManager.getLastTimeInState("history0001", State.OPEN));
+
+            StateHistory range = StateDeviceManager.getHistory("history0001", all.getTime(1), all.getTime(3));
+            assertEquals(2, range.size());
+            assertEquals(all.getTime(1), range.getTime(0));
+
+            long open = (all.getTime(1) - all.getTime(0)) + (all.getTime(3) - all.getTime(2));
+            assertEquals(open, StateDeviceManager.getTimeInState("history0001", State.OPEN, 0, Long.MAX_VALUE));
+            assertEquals(0, StateDeviceManager.getHistory("missing", 10).size());
+
+            // a removed device's history is released
+            StateDeviceManager.removeStateDevice(door);
+            assertEquals(0, StateDeviceManager.getHistory("history0001", 10).size());
+            StateDeviceManager.addStateDevice(door);
+            assertEquals(1, StateDeviceManager.getHistory("history0001", 10).size());
+            StateDeviceManager.removeStateDevice(door);
+        } finally {
+            StateDeviceManager.setHistoryDepth(0);
+        }
+    }
+
+    /**
+     * Test that changes since a sequence number are returned as a delta, and
+     * that a removal forces a full resync
+     */
+    @Test
+    public void testChangesSince() {
+        StateDeviceManager.addStateDevice(new StateDevice.Builder().setId("delta0001")
+                .setName("Light").setType(Type.LIGHT).setState(State.OFF).build());
+        long since = StateDeviceManager.getSequence();
+        assertEquals(since, StateDeviceManager.getImmutableDevice("delta0001").getVersion());
+        assertEquals(0, StateDeviceManager.getChangesSince(since).getDeviceCount());
+
+        StateDeviceManager.updateStateDevice("delta0001", State.ON);
+        StateDeviceManager.updateStateDevice("delta0001", State.OFF);
+        StateDeviceManager.addStateDevice(new StateDevice.Builder().setId("delta0002")
+                .setName("Fan").setType(Type.CEILINGFAN).setState(State.OFF).build());
+        StateListMessage delta = StateDeviceManager.getChangesSince(since);
+        assertEquals(2, delta.getDeviceCount());
+        assertEquals("delta0001", delta.getDevice(0).getId());
+        assertEquals(State.OFF, delta.getDevice(0).getState());
+        assertEquals("delta0002", delta.getDevice(1).getId());
+        assertTrue(StateDeviceManager.getImmutableDevice("delta0001").getVersion() > since);
+
+        StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("delta0002"));
+        assertNull(StateDeviceManager.getChangesSince(since));
+        assertNull(StateDeviceManager.getChangesSince(StateDeviceManager.getSequence() - StateDeviceManager.CHANGE_LOG_SIZE - 1));
+    }
+
+    /**
+     * Test that a client holding a sequence number from before a restart is
+     * told to resync, and that numbers keep growing across restarts
+     */
+    @Test
+    public void testChangesSinceAfterRestart() {
+        StateDeviceManager.updateStateDevice(new StateDevice.Builder().setId("restart0001")
+                .setName("Light").setType(Type.LIGHT).setState(State.ON).build());
+        long current = StateDeviceManager.getSequence();
+        assertEquals(0, StateDeviceManager.getChangesSince(current).getDeviceCount());
+        assertNull(StateDeviceManager.getChangesSince(current + 1000));
+        // from a process that made a few changes
+        assertNull(StateDeviceManager.getChangesSince(0));
+        assertNull(StateDeviceManager.getChangesSince(3));
+        assertTrue(current > System.currentTimeMillis() - 60000 << 20);
+    }
+
+    /**
+     * Test that a removal reaches handlers subscribed by type when the
+     * device passed in has no type
+     */
+    @Test
+    public void testRemoveNotifiesTypeSubscribers() {
+        final List<String> removed = new ArrayList<String>();
+        StateDeviceHandler handler = new RecordingHandler(new ArrayList<String>()) {
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+                removed.add(device.getId() + " " + device.getType());
+            }
+        };
+        StateDeviceManager.addDeviceHandler(handler, new Subscription.Builder()
+                .addType(Type.OUTLET)
+                .build());
+        try {
+            StateDeviceManager.addStateDevice(new StateDevice.Builder().setId("remove0001")
+                    .setName("Outlet").setType(Type.OUTLET).setState(State.ON).build());
+            // only the id is set on the device passed in
+            StateDeviceManager.removeStateDevice(new StateDevice.Builder().setId("remove0001").build());
+            StateDeviceManager.removeStateDevice(new StateDevice.Builder().setId("remove0001").build());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(handler);
+        }
+        assertEquals(Arrays.asList("remove0001 OUTLET"), removed);
+    }
+
     @Test
     public void testProtobufEnum() {
         Type type = Type.valueOf("DOORBELL");
         assertEquals(Type.DOORBELL, type);
     }
+
+    private static class RecordingHandler implements StateDeviceHandler {
+        private final List<String> seen;
+
+        RecordingHandler(List<String> seen) {
+            this.seen = seen;
+        }
+
+        @Override
+        public void onAddDevice(StateDevice device) {
+            seen.add(device.getId() + " " + device.getState());
+        }
+
+        @Override
+        public void onUpdateDevice(StateDevice device) {
+            seen.add(device.getId() + " " + device.getState());
+        }
+
+        @Override
+        public void onRemoveDevice(StateDevice device) {
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.StateDeviceEvent;
+import com.alfred.common.handlers.StateDeviceEvent.Kind;
+import com.alfred.common.handlers.StateDeviceEventBus;
+import com.alfred.common.handlers.StateDeviceEventListener;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class EventBusTest {
+
+    private static final int EVENTS = 100000;
+
+    /**
+     * Every listener sees every event in sequence order, even when the ring
+     * wraps many times
+     */
+    @Test
+    public void testListenersSeeEveryEventInOrder() throws Exception {
+        StateDeviceEventBus bus = new StateDeviceEventBus(64);
+        SequenceChecker first = new SequenceChecker();
+        SequenceChecker second = new SequenceChecker();
+        bus.addListener(first);
+        bus.addListener(second);
+
+        StateDevice device = new StateDevice.Builder()
+                .setId("bus0001")
+                .setName("Light")
+                .setType(Type.LIGHT)
+                .setState(State.ON)
+                .build();
+        for(int i = 0; i < EVENTS; i++) {
+            bus.publish(Kind.UPDATE, device, State.OFF);
+        }
+        assertTrue(first.done.await(10, TimeUnit.SECONDS));
+        assertTrue(second.done.await(10, TimeUnit.SECONDS));
+        assertEquals(-1, first.error);
+        assertEquals(-1, second.error);
+        bus.shutdown();
+    }
+
+    /**
+     * A listener added after events were published with no listener still
+     * gates the publishers, so it sees every later event
+     */
+    @Test
+    public void testListenerAddedLater() throws Exception {
+        StateDeviceEventBus bus = new StateDeviceEventBus(4);
+        StateDevice device = new StateDevice.Builder()
+                .setId("bus0003")
+                .setType(Type.LIGHT)
+                .setState(State.ON)
+                .build();
+        for(int i = 0; i < 5; i++) {
+            bus.publish(Kind.UPDATE, device, State.OFF);
+        }
+        final CountDownLatch done = new CountDownLatch(100);
+        final long start = bus.getCursor() + 1;
+        final AtomicLong error = new AtomicLong(-1);
+        bus.addListener(new StateDeviceEventListener() {
+            long expected = start;
+
+            @Override
+            public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+                if(event.getSequence() != expected && error.get() < 0) error.set(expected);
+                expected++;
+                done.countDown();
+            }
+        });
+        for(int i = 0; i < 100; i++) {
+            bus.publish(Kind.UPDATE, device, State.OFF);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(-1, error.get());
+        bus.shutdown();
+    }
+
+    /**
+     * The device manager publishes changes with the old and new state
+     */
+    @Test
+    public void testManagerPublishes() throws Exception {
+        StateDeviceEventBus bus = new StateDeviceEventBus(16);
+        final CountDownLatch updated = new CountDownLatch(1);
+        final AtomicReference<String> seen = new AtomicReference<String>();
+        bus.addListener(new StateDeviceEventListener() {
+            @Override
+            public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+                if(event.getKind() == Kind.UPDATE && event.getId().equals("bus0002")) {
+                    seen.set(event.getOldState() + "->" + event.getNewState() + " " + event.getType());
+                    updated.countDown();
+                }
+            }
+        });
+        StateDeviceManager.setEventBus(bus);
+        try {
+            StateDeviceManager.updateStateDevice(new StateDevice.Builder()
+                    .setId("bus0002")
+                    .setName("Garage")
+                    .setType(Type.GARAGEDOOR)
+                    .setState(State.CLOSED)
+                    .build());
+            StateDeviceManager.updateStateDevice("bus0002", State.OPEN);
+            assertTrue(updated.await(10, TimeUnit.SECONDS));
+            assertEquals("CLOSED->OPEN GARAGEDOOR", seen.get());
+        } finally {
+            StateDeviceManager.setEventBus(null);
+            bus.shutdown();
+        }
+    }
+
+    private static class SequenceChecker implements StateDeviceEventListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        long expected = 0;
+        volatile long error = -1;
+
+        @Override
+        public void onEvent(StateDeviceEvent event, boolean endOfBatch) {
+            if(event.getSequence() != expected && error < 0) error = expected;
+            expected++;
+            if(expected == EVENTS) done.countDown();
+        }
+    }
+}
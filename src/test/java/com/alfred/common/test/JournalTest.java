@@ -0,0 +1,238 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceJournal;
+import com.alfred.common.datamodel.StateDeviceJournal.FsyncPolicy;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class JournalTest {
+
+    /**
+     * Devices written through the manager are restored from the journal, and
+     * a partly written record at the end is cut off
+     */
+    @Test
+    public void testReplay() throws Exception {
+        Path directory = Files.createTempDirectory("alfred-journal");
+        StateDevice light = new StateDevice.Builder()
+                .setId("journal0001")
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build();
+        StateDevice door = new StateDevice.Builder()
+                .setId("journal0002")
+                .setName("Garage")
+                .setType(Type.GARAGEDOOR)
+                .setState(State.CLOSED)
+                .build();
+
+        StateDeviceJournal journal = StateDeviceJournal.open(directory, FsyncPolicy.ALWAYS);
+        StateDeviceManager.setJournal(journal);
+        try {
+            StateDeviceManager.addStateDevice(light);
+            StateDeviceManager.addStateDevice(door);
+            StateDeviceManager.updateStateDevice("journal0001", State.ON);
+            StateDeviceManager.removeStateDevice(door);
+        } finally {
+            StateDeviceManager.clearJournal();
+            journal.close();
+        }
+
+        // forget the devices, then restore them from the journal
+        StateDeviceManager.removeStateDevice(light);
+        assertFalse(StateDeviceManager.contains("journal0001"));
+        restore(directory);
+        assertEquals(State.ON, StateDeviceManager.getDevice("journal0001").getState());
+        assertEquals("Porch Light", StateDeviceManager.getDevice("journal0001").getName());
+        assertFalse(StateDeviceManager.contains("journal0002"));
+
+        // a torn write at the end of the journal is discarded
+        Path segment = onlySegment(directory);
+        long size = Files.size(segment);
+        Files.write(segment, new byte[] { 0, 42, 10 }, StandardOpenOption.APPEND);
+        StateDeviceManager.removeStateDevice(light);
+        restore(directory);
+        assertEquals(size, Files.size(segment));
+        assertEquals(State.ON, StateDeviceManager.getDevice("journal0001").getState());
+        StateDeviceManager.removeStateDevice(light);
+    }
+
+    /**
+     * A snapshot replaces the older segments, and a restart reads the
+     * snapshot plus the changes made after it
+     */
+    @Test
+    public void testSnapshot() throws Exception {
+        Path directory = Files.createTempDirectory("alfred-journal");
+        List<StateDevice> devices = new ArrayList<StateDevice>();
+        for(int i = 0; i < 100; i++) {
+            devices.add(new StateDevice.Builder()
+                    .setId(String.format("snapshot%04d", i))
+                    .setName("Light " + i)
+                    .setType(Type.LIGHT)
+                    .setState(State.OFF)
+                    .build());
+        }
+
+        StateDeviceJournal journal = StateDeviceJournal.open(directory, FsyncPolicy.NEVER);
+        StateDeviceManager.setJournal(journal);
+        try {
+            StateDeviceManager.updateStateDevices(devices);
+            StateDeviceManager.updateStateDevice("snapshot0001", State.ON);
+            StateDeviceManager.snapshot();
+            StateDeviceManager.updateStateDevice("snapshot0002", State.ON);
+            StateDeviceManager.removeStateDevice(devices.get(3));
+        } finally {
+            StateDeviceManager.clearJournal();
+            journal.close();
+        }
+        assertEquals(2, list(directory).size());
+        assertTrue(list(directory).contains("snapshot-0000000000000002.snap"));
+        assertTrue(list(directory).contains("journal-0000000000000002.log"));
+
+        for(StateDevice device : devices) {
+            StateDeviceManager.removeStateDevice(device);
+        }
+        restore(directory);
+        assertEquals(State.ON, StateDeviceManager.getDevice("snapshot0001").getState());
+        assertEquals(State.ON, StateDeviceManager.getDevice("snapshot0002").getState());
+        assertFalse(StateDeviceManager.contains("snapshot0003"));
+        assertEquals(State.OFF, StateDeviceManager.getDevice("snapshot0099").getState());
+        for(StateDevice device : devices) {
+            StateDeviceManager.removeStateDevice(device);
+        }
+    }
+
+    /**
+     * A restored device that never reports again goes offline after its time
+     * to live
+     */
+    @Test
+    public void testRestoredDevicesExpire() throws Exception {
+        Path directory = Files.createTempDirectory("alfred-journal");
+        StateDevice outlet = new StateDevice.Builder()
+                .setId("journal0010")
+                .setName("Outlet")
+                .setType(Type.OUTLET)
+                .setState(State.ON)
+                .build();
+
+        StateDeviceJournal journal = StateDeviceJournal.open(directory, FsyncPolicy.NEVER);
+        StateDeviceManager.setJournal(journal);
+        try {
+            StateDeviceManager.addStateDevice(outlet);
+        } finally {
+            StateDeviceManager.clearJournal();
+            journal.close();
+        }
+        StateDeviceManager.removeStateDevice(outlet);
+
+        StateDeviceManager.setDeviceTtl(Type.OUTLET, 100, TimeUnit.MILLISECONDS);
+        try {
+            restore(directory);
+            assertTrue(StateDeviceManager.contains("journal0010"));
+            long deadline = System.currentTimeMillis() + 2000;
+            while(StateDeviceManager.contains("journal0010") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertFalse(StateDeviceManager.contains("journal0010"));
+        } finally {
+            StateDeviceManager.setDeviceTtl(Type.OUTLET, 0, TimeUnit.MILLISECONDS);
+            StateDeviceManager.removeStateDevice(outlet);
+        }
+    }
+
+    /**
+     * Once the journal can't be written, changes are refused before they are
+     * made instead of being kept in memory
+     */
+    @Test
+    public void testWriteFailure() throws Exception {
+        Path directory = Files.createTempDirectory("alfred-journal");
+        StateDevice light = new StateDevice.Builder()
+                .setId("journal0020")
+                .setName("Porch Light")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build();
+
+        StateDeviceJournal journal = StateDeviceJournal.open(directory, FsyncPolicy.NEVER);
+        StateDeviceManager.setJournal(journal);
+        try {
+            StateDeviceManager.addStateDevice(light);
+            // the next segment can't be created
+            for(String name : list(directory)) {
+                Files.delete(directory.resolve(name));
+            }
+            Files.delete(directory);
+            try {
+                StateDeviceManager.snapshot();
+                fail("Expected the snapshot to fail");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                StateDeviceManager.updateStateDevice("journal0020", State.ON);
+                fail("Expected the update to be refused");
+            } catch (UncheckedIOException e) {
+                // expected
+            }
+            assertEquals(State.OFF, StateDeviceManager.getDevice("journal0020").getState());
+        } finally {
+            StateDeviceManager.clearJournal();
+            journal.close();
+            StateDeviceManager.removeStateDevice(light);
+        }
+    }
+
+    private static List<String> list(Path directory) throws IOException {
+        List<String> names = new ArrayList<String>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    private static void restore(Path directory) throws IOException {
+        StateDeviceJournal journal = StateDeviceJournal.open(directory, FsyncPolicy.NEVER);
+        try {
+            StateDeviceManager.setJournal(journal);
+        } finally {
+            StateDeviceManager.clearJournal();
+            journal.close();
+        }
+    }
+
+    private static Path onlySegment(Path directory) throws IOException {
+        Path segment = null;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                assertTrue(segment == null);
+                segment = file;
+            }
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,160 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.MappedStateDeviceTable;
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class MappedTableTest {
+
+    /**
+     * Devices can be added, changed and removed, and are still there after
+     * the table is reopened
+     */
+    @Test
+    public void testTable() throws Exception {
+        Path file = Files.createTempDirectory("alfred-table").resolve("devices.tbl");
+        MappedStateDeviceTable table = MappedStateDeviceTable.open(file, 64, 16, 16);
+        try {
+            assertTrue(table.put(new StateDevice.Builder()
+                    .setId("doorbell1")
+                    .setName("Front Door")
+                    .setType(Type.DOORBELL)
+                    .setState(State.INACTIVE)
+                    .build()));
+            assertTrue(table.put(new StateDevice.Builder()
+                    .setId("light1")
+                    .setName("A name too long to keep")
+                    .setType(Type.LIGHT)
+                    .setState(State.OFF)
+                    .build()));
+            assertEquals(2, table.size());
+            assertTrue(table.setState("doorbell1", State.ACTIVE));
+            assertFalse(table.setState("missing", State.ACTIVE));
+            assertEquals(State.ACTIVE, table.getState(new StringBuilder("doorbell1")));
+            assertEquals(Type.DOORBELL, table.getType("doorbell1"));
+            assertEquals("A name too long ", table.getDevice("light1").getName());
+            assertNull(table.getState("missing"));
+
+            assertTrue(table.remove("light1"));
+            assertFalse(table.contains("light1"));
+            assertEquals(1, table.size());
+        } finally {
+            table.close();
+        }
+
+        // the capacity and lengths come from the file
+        table = MappedStateDeviceTable.open(file, 1024, 255, 255);
+        try {
+            assertEquals(64, table.getCapacity());
+            assertEquals(1, table.size());
+            StateDevice device = table.getDevice("doorbell1");
+            assertEquals("Front Door", device.getName());
+            assertEquals(State.ACTIVE, device.getState());
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * A full table refuses new devices, and slots of removed devices are
+     * used again
+     */
+    @Test
+    public void testFull() throws Exception {
+        Path file = Files.createTempDirectory("alfred-table").resolve("devices.tbl");
+        MappedStateDeviceTable table = MappedStateDeviceTable.open(file, 8, 8, 0);
+        try {
+            for(int i = 0; i < 6; i++) {
+                table.put(new StateDevice.Builder().setId("fan" + i).setState(State.OFF).build());
+            }
+            try {
+                table.put(new StateDevice.Builder().setId("fan6").setState(State.OFF).build());
+                fail("Expected a full table");
+            } catch (IllegalStateException e) {
+            }
+            for(int round = 0; round < 20; round++) {
+                assertTrue(table.remove("fan" + (round % 6)));
+                assertTrue(table.put(new StateDevice.Builder().setId("fan" + (round % 6)).setState(State.ON).build()));
+            }
+            assertEquals(6, table.size());
+            assertEquals(State.ON, table.getState("fan5"));
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * Removed slots are cleared by rehashing in place, and every device can
+     * still be found afterwards and after reopening
+     */
+    @Test
+    public void testRehash() throws Exception {
+        Path file = Files.createTempDirectory("alfred-table").resolve("devices.tbl");
+        Map<String, State> expected = new HashMap<String, State>();
+        MappedStateDeviceTable table = MappedStateDeviceTable.open(file, 64, 12, 4);
+        try {
+            for(int i = 0; i < 2000; i++) {
+                String id = "outlet" + (i * 7919 % 97);
+                if(expected.size() >= 40 || (expected.containsKey(id) && i % 3 == 0)) {
+                    String victim = expected.keySet().iterator().next();
+                    assertTrue(table.remove(victim));
+                    expected.remove(victim);
+                }
+                State state = i % 2 == 0 ? State.ON : State.OFF;
+                table.put(new StateDevice.Builder().setId(id).setName("Plug").setState(state).build());
+                expected.put(id, state);
+            }
+            assertEquals(expected.size(), table.size());
+            for(Map.Entry<String, State> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.getState(entry.getKey()));
+            }
+        } finally {
+            table.close();
+        }
+        table = MappedStateDeviceTable.open(file, 64, 12, 4);
+        try {
+            assertEquals(expected.size(), table.size());
+            for(Map.Entry<String, State> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.getDevice(entry.getKey()).getState());
+            }
+        } finally {
+            table.close();
+        }
+    }
+
+    /**
+     * A closed table refuses to be used, and can be closed again
+     */
+    @Test
+    public void testClosed() throws Exception {
+        Path file = Files.createTempDirectory("alfred-table").resolve("devices.tbl");
+        MappedStateDeviceTable table = MappedStateDeviceTable.open(file, 8, 8, 0);
+        table.put(new StateDevice.Builder().setId("fan0").setState(State.OFF).build());
+        table.close();
+        table.close();
+        try {
+            table.getState("fan0");
+            fail("Expected a closed table");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            table.setState("fan0", State.ON);
+            fail("Expected a closed table");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
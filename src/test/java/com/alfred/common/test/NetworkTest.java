@@ -0,0 +1,501 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.ImmutableStateDevice;
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.handlers.Subscription;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.messages.StateDeviceProtos.StateListMessage;
+import com.alfred.common.network.BlockingConnection;
+import com.alfred.common.network.BlockingStateDeviceServer;
+import com.alfred.common.network.MessageFrame;
+import com.alfred.common.network.NetworkHandler;
+import com.alfred.common.network.NetworkMessageRouter;
+import com.alfred.common.network.NioConnection;
+import com.alfred.common.network.NioStateDeviceServer;
+import com.alfred.common.network.SlowConsumerPolicy;
+import com.google.protobuf.ByteString;
+
+public class NetworkTest {
+
+    /**
+     * Many clients send to and receive from one server with two event loops,
+     * including a message that arrives a byte at a time
+     */
+    @Test
+    public void testNioServer() throws Exception {
+        final int clients = 100;
+        final int messages = 10;
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger received = new AtomicInteger();
+        NioStateDeviceServer server = new NioStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.addNetworkHandler(new NetworkHandler() {
+            @Override
+            public void onConnect(Socket connection) {
+                connected.incrementAndGet();
+            }
+
+            @Override
+            public void onMessageReceived(StateDeviceMessage msg) {
+                received.incrementAndGet();
+            }
+        });
+        server.start();
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for(int i = 0; i < clients; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                sockets.add(socket);
+                OutputStream out = socket.getOutputStream();
+                for(int j = 0; j < messages; j++) {
+                    message("net" + i, State.ON).writeDelimitedTo(out);
+                }
+                out.flush();
+            }
+            // one message split across many reads
+            Socket slow = sockets.get(0);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            message("net-slow", State.OFF).writeDelimitedTo(bytes);
+            for(byte b : bytes.toByteArray()) {
+                slow.getOutputStream().write(b);
+                slow.getOutputStream().flush();
+                Thread.sleep(2);
+            }
+
+            waitFor(received, clients * messages + 1);
+            assertEquals(clients, connected.get());
+            assertEquals(clients, server.getConnectionCount());
+            assertEquals(clients * messages + 1, received.get());
+
+            server.broadcast(message("net-broadcast", State.OPEN));
+            for(Socket socket : sockets) {
+                InputStream in = socket.getInputStream();
+                StateDeviceMessage msg = StateDeviceMessage.parseDelimitedFrom(in);
+                assertEquals("net-broadcast", msg.getId());
+                assertEquals(State.OPEN, msg.getState());
+            }
+        } finally {
+            for(Socket socket : sockets) {
+                socket.close();
+            }
+            server.shutdown();
+        }
+    }
+
+    /**
+     * The blocking server reads and writes the same frames, closes a client
+     * that goes quiet, and leaves no connection threads behind on shutdown
+     */
+    @Test
+    public void testBlockingServer() throws Exception {
+        final int clients = 50;
+        final AtomicInteger received = new AtomicInteger();
+        BlockingStateDeviceServer server = new BlockingStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 300, TimeUnit.MILLISECONDS);
+        server.addNetworkHandler(new NetworkHandler() {
+            @Override
+            public void onConnect(Socket connection) {
+                // blocking writes from the connection's own thread
+                try {
+                    message("greeting", State.ON).writeDelimitedTo(connection.getOutputStream());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void onMessageReceived(StateDeviceMessage msg) {
+                received.incrementAndGet();
+            }
+        });
+        server.start();
+        List<Socket> sockets = new ArrayList<Socket>();
+        try {
+            for(int i = 0; i < clients; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                sockets.add(socket);
+                message("block" + i, State.ON).writeDelimitedTo(socket.getOutputStream());
+                assertEquals("greeting", StateDeviceMessage.parseDelimitedFrom(socket.getInputStream()).getId());
+            }
+            waitFor(received, clients);
+            assertEquals(clients, received.get());
+
+            server.broadcast(message("block-broadcast", State.OFF));
+            for(Socket socket : sockets) {
+                assertEquals("block-broadcast", StateDeviceMessage.parseDelimitedFrom(socket.getInputStream()).getId());
+            }
+
+            // nothing sent within the read timeout, so the server hangs up
+            for(Socket socket : sockets) {
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        } finally {
+            assertTrue(server.shutdown(5, TimeUnit.SECONDS));
+            for(Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A client of the blocking server that doesn't read holds up neither the
+     * broadcast nor the other clients, and its queue stays under the limit
+     */
+    @Test
+    public void testBlockingSlowConsumer() throws Exception {
+        BlockingStateDeviceServer server = new BlockingStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0, TimeUnit.MILLISECONDS);
+        server.setOutboundLimit(64 * 1024, SlowConsumerPolicy.HOLD);
+        server.start();
+        Socket slow = new Socket();
+        final Socket fast = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        try {
+            slow.setReceiveBufferSize(4096);
+            slow.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            fast.setSoTimeout(10000);
+            long deadline = System.currentTimeMillis() + 10000;
+            while(server.getConnectionCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            BlockingConnection stalled = null;
+            BlockingConnection reading = null;
+            for(BlockingConnection connection : server.getConnections()) {
+                if(connection.getRemoteAddress().equals(slow.getLocalSocketAddress())) stalled = connection;
+                else reading = connection;
+            }
+            final AtomicInteger last = new AtomicInteger();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(!StateDeviceMessage.parseDelimitedFrom(fast.getInputStream()).getId().equals("block-last")) {
+                            // skip the big messages
+                        }
+                        last.incrementAndGet();
+                    } catch (IOException e) {
+                        // the test fails on the count
+                    }
+                }
+            });
+            reader.start();
+
+            for(int i = 0; i < 2000; i++) {
+                server.broadcast(bigMessage("block-slow" + i, i));
+            }
+            // the reading client catches up while the other is still stuck
+            deadline = System.currentTimeMillis() + 10000;
+            while(reading.getQueuedBytes() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            server.broadcast(message("block-last", State.ON));
+            reader.join(10000);
+            assertEquals(1, last.get());
+
+            assertTrue(stalled.isOpen());
+            assertTrue(stalled.getDroppedCount() > 0);
+            assertTrue(stalled.getQueuedBytes() <= 64 * 1024);
+        } finally {
+            slow.close();
+            fast.close();
+            assertTrue(server.shutdown(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A frame is serialized once and every connection gets its own view of
+     * the same bytes
+     */
+    @Test
+    public void testSharedFrame() throws Exception {
+        ImmutableStateDevice device = ImmutableStateDevice.of(new StateDevice(message("frame0001", State.ON)));
+        assertSame(device.toMessage(), device.toMessage());
+
+        MessageFrame frame = MessageFrame.of(device);
+        ByteBuffer first = frame.getBuffer();
+        ByteBuffer second = frame.getBuffer();
+        assertTrue(first.isReadOnly());
+        first.get();
+        assertEquals(frame.size(), second.remaining());
+
+        byte[] bytes = new byte[second.remaining()];
+        second.get(bytes);
+        assertEquals(device.toMessage(), StateDeviceMessage.parseDelimitedFrom(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * A client that doesn't read gets the latest state of a busy device, is
+     * resynced once it falls too far behind, and is disconnected under the
+     * disconnect policy
+     */
+    @Test
+    public void testSlowConsumer() throws Exception {
+        NioStateDeviceServer server = new NioStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        server.setOutboundLimit(64 * 1024, SlowConsumerPolicy.RESYNC);
+        server.start();
+        StateDeviceManager.addStateDevice(new StateDevice(message("slow0001", State.ON)));
+        Socket socket = new Socket();
+        try {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            socket.setSoTimeout(5000);
+            waitFor(server, 1);
+            NioConnection connection = server.getConnections().iterator().next();
+
+            // one busy device takes up one entry in the queue
+            for(int i = 0; i < 2000; i++) {
+                server.broadcast(bigMessage("slow-busy", i));
+            }
+            assertTrue(connection.isOpen());
+            assertTrue(connection.getQueuedBytes() <= bigMessage("slow-busy", 1999).getSerializedSize() + 5);
+            assertEquals(0, connection.getDroppedCount());
+
+            // many devices do, and the client is resynced
+            for(int i = 0; i < 2000; i++) {
+                server.broadcast(bigMessage("slow-many" + i, i));
+            }
+            assertTrue(connection.getDroppedCount() > 0);
+            assertTrue(connection.getQueuedBytes() <= 64 * 1024);
+            InputStream in = socket.getInputStream();
+            while(!StateDeviceMessage.parseDelimitedFrom(in).getId().equals("slow0001")) {
+                // skip what was written before the resync
+            }
+            assertTrue(connection.isOpen());
+        } finally {
+            socket.close();
+            server.shutdown();
+            StateDeviceManager.removeStateDevice(new StateDevice(message("slow0001", State.ON)));
+        }
+
+        // the slow client is closed by the event loop, which keeps serving
+        // the other clients on it
+        server = new NioStateDeviceServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        server.setOutboundLimit(64 * 1024, SlowConsumerPolicy.DISCONNECT);
+        server.start();
+        socket = new Socket();
+        Socket other = null;
+        try {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            waitFor(server, 1);
+            for(int i = 0; i < 2000; i++) {
+                server.broadcast(bigMessage("slow-many" + i, i));
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while(server.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, server.getConnectionCount());
+
+            other = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            other.setSoTimeout(5000);
+            waitFor(server, 1);
+            server.broadcast(message("slow-after", State.ON));
+            assertEquals("slow-after", StateDeviceMessage.parseDelimitedFrom(other.getInputStream()).getId());
+        } finally {
+            socket.close();
+            if(other != null) other.close();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * A resync of a registry larger than the queue limit reaches the client
+     * in full while updates keep arriving, and the queue stays under the limit
+     */
+    @Test
+    public void testResyncLargeRegistry() throws Exception {
+        final int count = 3000;
+        List<StateDevice> devices = new ArrayList<StateDevice>();
+        for(int i = 0; i < count; i++) {
+            devices.add(new StateDevice(message(String.format("resync%04d", i), State.ON)));
+        }
+        StateDeviceManager.updateStateDevices(devices);
+        NioStateDeviceServer server = new NioStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        server.setOutboundLimit(16 * 1024, SlowConsumerPolicy.RESYNC);
+        server.start();
+        Socket socket = new Socket();
+        try {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+            socket.setSoTimeout(5000);
+            waitFor(server, 1);
+            NioConnection connection = server.getConnections().iterator().next();
+            for(int i = 0; i < 500; i++) {
+                server.broadcast(bigMessage("resync-many" + i, i));
+            }
+            assertTrue(connection.getDroppedCount() > 0);
+
+            // the client reads while other devices keep changing
+            Set<String> seen = new HashSet<String>();
+            InputStream in = socket.getInputStream();
+            int update = 0;
+            long deadline = System.currentTimeMillis() + 20000;
+            while(seen.size() < count && System.currentTimeMillis() < deadline) {
+                server.broadcast(bigMessage("resync-busy" + (update++ % 100), update));
+                String id = StateDeviceMessage.parseDelimitedFrom(in).getId();
+                if(id.matches("resync\\d+")) seen.add(id);
+                assertTrue(connection.getQueuedBytes() <= 16 * 1024);
+            }
+            assertEquals(count, seen.size());
+            assertTrue(connection.isOpen());
+        } finally {
+            socket.close();
+            server.shutdown();
+            for(StateDevice device : devices) {
+                StateDeviceManager.removeStateDevice(device);
+            }
+        }
+    }
+
+    /**
+     * With batching on, a message to an idle client goes out at once and a
+     * burst goes out in a few StateListMessage frames
+     */
+    @Test
+    public void testBatching() throws Exception {
+        NioStateDeviceServer server = new NioStateDeviceServer(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        server.setBatching(1, TimeUnit.SECONDS, 64);
+        server.start();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            waitFor(server, 1);
+            InputStream in = socket.getInputStream();
+
+            long start = System.nanoTime();
+            server.broadcast(message("batch-single", State.ON));
+            StateListMessage list = StateListMessage.parseDelimitedFrom(in);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+            assertEquals(1, list.getDeviceCount());
+            assertEquals("batch-single", list.getDevice(0).getId());
+
+            // a scene that turns on 40 lights, after the window has passed
+            Thread.sleep(1100);
+            for(int i = 0; i < 40; i++) {
+                server.broadcast(message("batch" + i, State.ON));
+            }
+            int frames = 0;
+            List<String> ids = new ArrayList<String>();
+            while(ids.size() < 40) {
+                list = StateListMessage.parseDelimitedFrom(in);
+                frames++;
+                for(StateDeviceMessage msg : list.getDeviceList()) {
+                    ids.add(msg.getId());
+                }
+            }
+            assertEquals("batch0", ids.get(0));
+            assertEquals("batch39", ids.get(39));
+            assertTrue("frames " + frames, frames <= 3);
+        } finally {
+            socket.close();
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Messages only reach the handlers that subscribed to their type or id,
+     * and the catch-all handler gets every message
+     */
+    @Test
+    public void testRouter() {
+        NetworkMessageRouter router = new NetworkMessageRouter();
+        CountingHandler all = new CountingHandler();
+        CountingHandler doorbells = new CountingHandler();
+        CountingHandler porch = new CountingHandler();
+        CountingHandler openDoors = new CountingHandler();
+        router.addHandler(all);
+        router.addHandler(doorbells, new Subscription.Builder().addType(Type.DOORBELL).build());
+        router.addHandler(porch, new Subscription.Builder().addId("route0001").build());
+        router.addHandler(openDoors, new Subscription.Builder()
+                .addType(Type.GARAGEDOOR)
+                .addState(State.OPEN)
+                .build());
+
+        router.onMessageReceived(message("route0001", State.ON));
+        router.onMessageReceived(message("route0002", State.ON).toBuilder().setType(Type.DOORBELL).build());
+        router.onMessageReceived(message("route0003", State.OPEN).toBuilder().setType(Type.GARAGEDOOR).build());
+        router.onMessageReceived(message("route0003", State.CLOSED).toBuilder().setType(Type.GARAGEDOOR).build());
+        router.onMessageReceived(StateDeviceMessage.newBuilder().setId("route0004").build());
+        assertEquals(5, all.count.get());
+        assertEquals(1, doorbells.count.get());
+        assertEquals(1, porch.count.get());
+        assertEquals(1, openDoors.count.get());
+
+        router.removeHandler(all);
+        router.onMessageReceived(message("route0001", State.OFF));
+        assertEquals(5, all.count.get());
+        assertEquals(2, porch.count.get());
+        assertEquals(3, router.getHandlers().size());
+    }
+
+    private static class CountingHandler implements NetworkHandler {
+        final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void onConnect(Socket connection) {
+        }
+
+        @Override
+        public void onMessageReceived(StateDeviceMessage msg) {
+            count.incrementAndGet();
+        }
+    }
+
+    private static StateDeviceMessage bigMessage(String id, int value) {
+        return message(id, State.ON).toBuilder()
+                .setValue(value)
+                .setData(ByteString.copyFrom(new byte[4096]))
+                .build();
+    }
+
+    private static void waitFor(NioStateDeviceServer server, int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(server.getConnectionCount() < connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    static StateDeviceMessage message(String id, State state) {
+        return StateDeviceMessage.newBuilder()
+                .setId(id)
+                .setName("Light")
+                .setType(Type.LIGHT)
+                .setState(state)
+                .build();
+    }
+
+    static void waitFor(AtomicInteger counter, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(counter.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+import com.alfred.common.rules.Rule;
+import com.alfred.common.rules.RuleEngine;
+
+public class RuleTest {
+
+    /**
+     * A rule runs when its last condition becomes true, only inside its time
+     * window, and may trigger another rule
+     */
+    @Test
+    public void testRules() {
+        RuleEngine engine = new RuleEngine(clockAt(LocalTime.of(20, 0)));
+        engine.addRule(new Rule.Builder("doorbell porch light")
+                .when("rule0001", State.ACTIVE)
+                .when("rule0002", State.OFF)
+                .between(LocalTime.of(18, 0), LocalTime.of(6, 0))
+                .then("rule0002", State.ON)
+                .build());
+        engine.addRule(new Rule.Builder("porch light hall light")
+                .when("rule0002", State.ON)
+                .then("rule0003", State.ON)
+                .build());
+        engine.addRule(new Rule.Builder("doorbell in the morning")
+                .when("rule0001", State.ACTIVE)
+                .between(LocalTime.of(6, 0), LocalTime.of(12, 0))
+                .then("rule0004", State.ON)
+                .build());
+        StateDeviceManager.addDeviceHandler(engine);
+        try {
+            StateDeviceManager.addStateDevice(device("rule0001", Type.DOORBELL, State.INACTIVE));
+            StateDeviceManager.addStateDevice(device("rule0002", Type.LIGHT, State.OFF));
+            StateDeviceManager.addStateDevice(device("rule0003", Type.LIGHT, State.OFF));
+            StateDeviceManager.addStateDevice(device("rule0004", Type.LIGHT, State.OFF));
+            assertEquals(0, engine.getFiredCount());
+
+            StateDeviceManager.updateStateDevice("rule0001", State.ACTIVE);
+            assertEquals(State.ON, StateDeviceManager.getDevice("rule0002").getState());
+            assertEquals(State.ON, StateDeviceManager.getDevice("rule0003").getState());
+            assertEquals(State.OFF, StateDeviceManager.getDevice("rule0004").getState());
+            assertEquals(2, engine.getFiredCount());
+
+            // the porch light is already on, so the first rule doesn't hold
+            StateDeviceManager.updateStateDevice("rule0001", State.INACTIVE);
+            StateDeviceManager.updateStateDevice("rule0001", State.ACTIVE);
+            assertEquals(2, engine.getFiredCount());
+
+            assertTrue(engine.removeRule("porch light hall light"));
+            assertEquals(2, engine.getRules().size());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(engine);
+            for(String id : new String[] { "rule0001", "rule0002", "rule0003", "rule0004" }) {
+                StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice(id));
+            }
+        }
+    }
+
+    /**
+     * Rules that could trigger each other in a loop are refused
+     */
+    @Test
+    public void testCycle() {
+        RuleEngine engine = new RuleEngine();
+        engine.addRule(new Rule.Builder("a")
+                .when("rule0101", State.ON)
+                .then("rule0102", State.ON)
+                .build());
+        engine.addRule(new Rule.Builder("b")
+                .when("rule0102", State.ON)
+                .then("rule0103", State.OPEN)
+                .build());
+        try {
+            engine.addRule(new Rule.Builder("c")
+                    .when(Type.GARAGEDOOR, State.OPEN)
+                    .then("rule0101", State.ON)
+                    .build());
+            fail("Cycle not found");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2, engine.getRules().size());
+    }
+
+    /**
+     * A loop that gets past the cycle check, because a device changed type
+     * after the rules were added, is stopped at the maximum depth even
+     * though each change is delivered after the rule that made it returns
+     */
+    @Test(timeout = 10000)
+    public void testDepthLimit() {
+        StateDeviceManager.addStateDevice(device("rule0202", Type.DOORBELL, State.OFF));
+        RuleEngine engine = new RuleEngine();
+        engine.addRule(new Rule.Builder("light on")
+                .when(Type.LIGHT, State.ON)
+                .then("rule0202", State.OFF)
+                .build());
+        engine.addRule(new Rule.Builder("light off")
+                .when(Type.LIGHT, State.OFF)
+                .then("rule0202", State.ON)
+                .build());
+        StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("rule0202"));
+        StateDeviceManager.addStateDevice(device("rule0202", Type.LIGHT, State.ON));
+        StateDeviceManager.addStateDevice(device("rule0201", Type.LIGHT, State.OFF));
+        StateDeviceManager.addDeviceHandler(engine);
+        try {
+            StateDeviceManager.updateStateDevice("rule0201", State.ON);
+            assertEquals(RuleEngine.MAX_DEPTH, engine.getFiredCount());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(engine);
+            StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("rule0201"));
+            StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("rule0202"));
+        }
+    }
+
+    /**
+     * A condition or action without its type or state is refused
+     */
+    @Test
+    public void testIncompleteRule() {
+        try {
+            new Rule.Builder("no type").when((Type) null, State.ON).then("rule0301", State.ON).build();
+            fail("Missing type not found");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new Rule.Builder("no state").when("rule0301", null).then("rule0302", State.ON).build();
+            fail("Missing state not found");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * With thousands of rules a change only runs the rules on its device
+     */
+    @Test
+    public void testManyRules() {
+        final int count = 5000;
+        RuleEngine engine = new RuleEngine();
+        List<Rule> rules = new ArrayList<Rule>();
+        for(int i = 0; i < count; i++) {
+            rules.add(new Rule.Builder("rule " + i)
+                    .when("rule1" + i, State.ON)
+                    .then("rule2" + i, State.ON)
+                    .build());
+        }
+        engine.addRules(rules);
+        StateDeviceManager.addDeviceHandler(engine);
+        try {
+            StateDeviceManager.addStateDevice(device("rule17", Type.LIGHT, State.OFF));
+            StateDeviceManager.addStateDevice(device("rule27", Type.LIGHT, State.OFF));
+            StateDeviceManager.updateStateDevice("rule17", State.ON);
+            assertEquals(1, engine.getFiredCount());
+            assertEquals(State.ON, StateDeviceManager.getDevice("rule27").getState());
+        } finally {
+            StateDeviceManager.removeDeviceHandler(engine);
+            StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("rule17"));
+            StateDeviceManager.removeStateDevice(StateDeviceManager.getDevice("rule27"));
+        }
+    }
+
+    private static Clock clockAt(LocalTime time) {
+        Instant instant = LocalDateTime.of(2016, 1, 1, time.getHour(), time.getMinute()).toInstant(ZoneOffset.UTC);
+        return Clock.fixed(instant, ZoneOffset.UTC);
+    }
+
+    private static StateDevice device(String id, Type type, State state) {
+        return new StateDevice.Builder()
+                .setId(id)
+                .setName(id)
+                .setType(type)
+                .setState(state)
+                .build();
+    }
+}
@@ -0,0 +1,244 @@
+package com.alfred.common.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.alfred.common.datamodel.StateDevice;
+import com.alfred.common.datamodel.StateDeviceManager;
+import com.alfred.common.datamodel.TimingWheel;
+import com.alfred.common.datamodel.TimingWheel.Timeout;
+import com.alfred.common.handlers.OfflineStateDeviceHandler;
+import com.alfred.common.handlers.StateDeviceHandler;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.State;
+import com.alfred.common.messages.StateDeviceProtos.StateDeviceMessage.Type;
+
+public class TimerTest {
+
+    // A wheel driven by the test's clock, so no test waits for time to pass
+    private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+    private final TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 512, clock::get);
+    private TimingWheel original;
+
+    @Before
+    public void setUp() {
+        original = StateDeviceManager.getTimingWheel();
+        StateDeviceManager.setTimingWheel(wheel);
+    }
+
+    @After
+    public void tearDown() {
+        StateDeviceManager.setTimingWheel(original);
+    }
+
+    /**
+     * Scheduled changes run in order, and a change made by hand cancels the
+     * ones still waiting
+     */
+    @Test
+    public void testScheduledChanges() throws Exception {
+        StateDeviceManager.addStateDevice(light("timer0001"));
+        StateDeviceManager.scheduleStateChange("timer0001", State.ON, 20, TimeUnit.MILLISECONDS);
+        StateDeviceManager.scheduleStateChange("timer0001", State.OFF, 60, TimeUnit.MILLISECONDS);
+        advance(40);
+        assertEquals(State.ON, StateDeviceManager.getDevice("timer0001").getState());
+        advance(40);
+        assertEquals(State.OFF, StateDeviceManager.getDevice("timer0001").getState());
+
+        // turned on by hand after the timer was set, so it stays on
+        StateDeviceManager.addStateDevice(light("timer0002"));
+        Timeout timeout = StateDeviceManager.scheduleStateChange("timer0002", State.ON, 100, TimeUnit.MILLISECONDS);
+        Timeout later = StateDeviceManager.scheduleStateChange("timer0002", State.OFF, 200, TimeUnit.MILLISECONDS);
+        StateDeviceManager.updateStateDevice("timer0002", State.ON);
+        assertTrue(timeout.isCancelled());
+        assertTrue(later.isCancelled());
+        advance(300);
+        assertEquals(State.ON, StateDeviceManager.getDevice("timer0002").getState());
+
+        Timeout cancelled = StateDeviceManager.scheduleStateChange("timer0002", State.OFF, 1, TimeUnit.HOURS);
+        assertEquals(1, StateDeviceManager.cancelScheduledChanges("timer0002"));
+        assertTrue(cancelled.isCancelled());
+
+        StateDeviceManager.removeStateDevice(light("timer0001"));
+        StateDeviceManager.removeStateDevice(light("timer0002"));
+    }
+
+    /**
+     * A change that a handler makes to another device while a scheduled
+     * change is being made still cancels that device's scheduled changes,
+     * and handlers aren't run on the wheel thread
+     */
+    @Test
+    public void testScheduledChangeCascade() throws Exception {
+        // the wheel thread is what's being tested
+        StateDeviceManager.setTimingWheel(original);
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch changed = new CountDownLatch(1);
+        StateDeviceHandler handler = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+                if(device.getId().equals("timer0010")) {
+                    threads.add(Thread.currentThread().getName());
+                    StateDeviceManager.updateStateDevice("timer0011", State.ON);
+                    changed.countDown();
+                }
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+        };
+        StateDeviceManager.addStateDevice(light("timer0010"));
+        StateDeviceManager.addStateDevice(light("timer0011"));
+        StateDeviceManager.addDeviceHandler(handler);
+        try {
+            Timeout other = StateDeviceManager.scheduleStateChange("timer0011", State.OFF, 1, TimeUnit.HOURS);
+            StateDeviceManager.scheduleStateChange("timer0010", State.ON, 20, TimeUnit.MILLISECONDS);
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+            assertEquals(State.ON, StateDeviceManager.getDevice("timer0011").getState());
+            assertTrue(other.isCancelled());
+            assertEquals(1, threads.size());
+            assertTrue(!threads.get(0).equals("alfred-timer"));
+        } finally {
+            StateDeviceManager.removeDeviceHandler(handler);
+            StateDeviceManager.removeStateDevice(light("timer0010"));
+            StateDeviceManager.removeStateDevice(light("timer0011"));
+        }
+    }
+
+    /**
+     * One wheel thread runs a large number of timeouts, and cancelled ones
+     * never run
+     */
+    @Test
+    public void testManyTimeouts() throws Exception {
+        final int count = 200000;
+        final AtomicInteger ran = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        int expected = 0;
+        for(int i = 0; i < count; i++) {
+            Timeout timeout = wheel.schedule(task, i % 500, TimeUnit.MILLISECONDS);
+            if(i % 10 == 0) assertTrue(timeout.cancel());
+            else expected++;
+        }
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+        wheel.advance();
+        assertTrue(ran.get() > 0 && ran.get() < expected);
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+        wheel.advance();
+        assertEquals(expected, ran.get());
+        assertEquals(0, wheel.getPendingCount());
+        wheel.shutdown();
+    }
+
+    /**
+     * A device that stops reporting goes offline after its time to live,
+     * while a device that keeps reporting stays. A device added before the
+     * time to live was set expires too
+     */
+    @Test
+    public void testLiveness() throws Exception {
+        final List<String> offline = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> removed = Collections.synchronizedList(new ArrayList<String>());
+        OfflineStateDeviceHandler offlineHandler = new OfflineStateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onDeviceOffline(StateDevice device) {
+                offline.add(device.getId());
+            }
+        };
+        StateDeviceHandler removeHandler = new StateDeviceHandler() {
+            @Override
+            public void onAddDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onUpdateDevice(StateDevice device) {
+            }
+
+            @Override
+            public void onRemoveDevice(StateDevice device) {
+                removed.add(device.getId());
+            }
+        };
+        StateDeviceManager.addDeviceHandler(offlineHandler);
+        StateDeviceManager.addDeviceHandler(removeHandler);
+        StateDeviceManager.addStateDevice(outlet("live0003"));
+        StateDeviceManager.setDeviceTtl(Type.OUTLET, 100, TimeUnit.MILLISECONDS);
+        try {
+            StateDeviceManager.addStateDevice(outlet("live0001"));
+            StateDeviceManager.addStateDevice(outlet("live0002"));
+            for(int i = 0; i < 10; i++) {
+                advance(30);
+                assertTrue(StateDeviceManager.heartbeat("live0001"));
+            }
+            assertTrue(StateDeviceManager.contains("live0001"));
+            assertTrue(!StateDeviceManager.contains("live0002"));
+            assertTrue(!StateDeviceManager.contains("live0003"));
+            assertTrue(offline.contains("live0002"));
+            assertTrue(offline.contains("live0003"));
+            assertTrue(removed.contains("live0002"));
+            assertTrue(!offline.contains("live0001"));
+            assertTrue(StateDeviceManager.getTimeSinceSeen("live0001", TimeUnit.MILLISECONDS) < 100);
+        } finally {
+            StateDeviceManager.setDeviceTtl(Type.OUTLET, 0, TimeUnit.MILLISECONDS);
+            StateDeviceManager.removeDeviceHandler(offlineHandler);
+            StateDeviceManager.removeDeviceHandler(removeHandler);
+            StateDeviceManager.removeStateDevice(outlet("live0001"));
+        }
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        wheel.advance();
+    }
+
+    private static StateDevice outlet(String id) {
+        return new StateDevice.Builder()
+                .setId(id)
+                .setName("Outlet")
+                .setType(Type.OUTLET)
+                .setState(State.ON)
+                .build();
+    }
+
+    private static StateDevice light(String id) {
+        return new StateDevice.Builder()
+                .setId(id)
+                .setName("Lamp")
+                .setType(Type.LIGHT)
+                .setState(State.OFF)
+                .build();
+    }
+}